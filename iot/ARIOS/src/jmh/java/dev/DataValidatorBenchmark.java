@@ -0,0 +1,64 @@
+package dev;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link DataValidator} per {@link NetService.ServiceType} for accepted and rejected values, in packets per
+ * second. Run with the gc profiler (default in build.gradle); gc.alloc.rate.norm must be 0 for valid(), as accepted
+ * packets are validated without allocating.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DataValidatorBenchmark {
+
+    @Param({"TOGGLE", "COLORPICKER", "TEXTFIELD", "CHECKBOX"})
+    private NetService.ServiceType type;
+
+    private DataValidator validator;
+    private String key;
+    private String validValue;
+    private String invalidValue;
+
+    @Setup
+    public void setup() {
+        // rejected values are logged, which is not what is measured here
+        Log.setLevel(Log.Level.OFF);
+        this.validator = new DataValidator();
+        this.key = this.type.name();
+
+        switch (this.type) {
+            case COLORPICKER:
+                this.validValue = "00FF7F";
+                this.invalidValue = "00FF7G";
+                break;
+            case TEXTFIELD:
+                this.validValue = "The quick brown fox jumps over the lazy dog";
+                this.invalidValue = "<txt-record>running=false</txt-record>";
+                break;
+            default:
+                this.validValue = "true";
+                this.invalidValue = "yes";
+                break;
+        }
+    }
+
+    @Benchmark
+    public boolean valid() {
+        return this.validator.validData(this.key, this.validValue, "127.0.0.1");
+    }
+
+    @Benchmark
+    public boolean invalid() {
+        return this.validator.validData(this.key, this.invalidValue, "127.0.0.1");
+    }
+}
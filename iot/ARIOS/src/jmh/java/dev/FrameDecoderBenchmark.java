@@ -0,0 +1,53 @@
+package dev;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures splitting received bytes into frames and key/value pairs, per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameDecoderBenchmark {
+
+    private static final int FRAMES = 32;
+
+    private FrameDecoder decoder;
+    private ByteBuffer input;
+
+    @Setup
+    public void setup() {
+        StringBuilder frames = new StringBuilder();
+        String[] samples = {"TOGGLE=true", "COLORPICKER=00FF7F", "TEXTFIELD=hello world", "CHECKBOX.1=false"};
+        for (int i = 0; i < FRAMES; i++) {
+            frames.append(samples[i % samples.length]).append('\n');
+        }
+        // the decoder must hold a whole read, as it does for a pipelining client
+        byte[] bytes = frames.toString().getBytes(StandardCharsets.UTF_8);
+        this.input = ByteBuffer.wrap(bytes);
+        this.decoder = new FrameDecoder(bytes.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decode(Blackhole blackhole) {
+        this.input.rewind();
+        this.decoder.put(this.input);
+        while (this.decoder.next() == FrameDecoder.Status.FRAME) {
+            blackhole.consume(this.decoder.key());
+            blackhole.consume(this.decoder.value());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package dev;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the text and the binary protocol per update: the same changes per {@link NetService.ServiceType} are
+ * decoded, validated and stored in their {@link NetService}s the way {@link ServiceProvider} handles received frames,
+ * once from text frames and once from binary frames. The time per operation is the server's CPU time per update;
+ * the bytes per frame of both protocols are printed with the output of the benchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProtocolBenchmark {
+
+    private static final int FRAMES = 32;
+    private static final int SERVICES = 16;
+    private static final String CLIENT = "127.0.0.1";
+
+    @Param({"TOGGLE", "COLORPICKER", "TEXTFIELD"})
+    private NetService.ServiceType type;
+
+    private ServiceRegistry registry;
+    private DataValidator validator;
+    private FrameDecoder textDecoder;
+    private BinaryFrameDecoder binaryDecoder;
+    private ByteBuffer textInput;
+    private ByteBuffer binaryInput;
+
+    @Setup
+    public void setup() {
+        // rejected values are logged, which is not what is measured here
+        Log.setLevel(Log.Level.OFF);
+        this.validator = new DataValidator();
+
+        List<NetService> services = new ArrayList<>();
+        for (int i = 0; i < SERVICES; i++) {
+            services.add(new NetService(this.type));
+        }
+        this.registry = new ServiceRegistry(services);
+
+        StringBuilder text = new StringBuilder();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            NetService service = this.registry.get(i % SERVICES);
+            boolean flag = (i & 1) == 1;
+            int color = flag ? 0x00FF7F : 0xFF7F00;
+            String message = flag ? "The quick brown fox" : "jumps over the lazy dog";
+            int id = service.getId();
+
+            switch (this.type) {
+                case COLORPICKER:
+                    text.append(service.getKey()).append('=').append(DataValidator.formatColor(color)).append('\n');
+                    binary.writeBytes(new byte[] { (byte) BinaryFrameDecoder.OP_SET_RGB, (byte) (id >> 8), (byte) id,
+                            (byte) (color >> 16), (byte) (color >> 8), (byte) color });
+                    break;
+                case TEXTFIELD:
+                    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+                    text.append(service.getKey()).append('=').append(message).append('\n');
+                    binary.writeBytes(new byte[] { (byte) BinaryFrameDecoder.OP_SET_TEXT, (byte) (id >> 8), (byte) id,
+                            (byte) (bytes.length >> 8), (byte) bytes.length });
+                    binary.writeBytes(bytes);
+                    break;
+                default:
+                    text.append(service.getKey()).append('=').append(flag).append('\n');
+                    binary.writeBytes(new byte[] { (byte) (flag ? BinaryFrameDecoder.OP_SET_TRUE : BinaryFrameDecoder.OP_SET_FALSE),
+                            (byte) (id >> 8), (byte) id });
+                    break;
+            }
+        }
+
+        // the decoders must hold a whole read, as they do for a pipelining client
+        byte[] textBytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] binaryBytes = binary.toByteArray();
+        this.textInput = ByteBuffer.wrap(textBytes);
+        this.binaryInput = ByteBuffer.wrap(binaryBytes);
+        this.textDecoder = new FrameDecoder(textBytes.length);
+        this.binaryDecoder = new BinaryFrameDecoder(binaryBytes.length);
+
+        System.out.printf("%n%s: text %.1f bytes/frame, binary %.1f bytes/frame%n", this.type,
+                (double) textBytes.length / FRAMES, (double) binaryBytes.length / FRAMES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long text() {
+        long versions = 0;
+        this.textInput.rewind();
+        this.textDecoder.put(this.textInput);
+        while (this.textDecoder.next() == FrameDecoder.Status.FRAME) {
+            CharSequence key = this.textDecoder.key();
+            CharSequence value = this.textDecoder.value();
+            if (this.validator.validData(key, value, CLIENT)) {
+                NetService service = this.registry.get(DataValidator.lookupType(key), DataValidator.parseInstance(key));
+                versions += service.setValue(NetService.valueOf(service.getType(), value));
+            }
+        }
+        return versions;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long binary() {
+        long versions = 0;
+        this.binaryInput.rewind();
+        this.binaryDecoder.put(this.binaryInput);
+        while (this.binaryDecoder.next() == FrameDecoder.Status.FRAME) {
+            NetService service = this.registry.get(this.binaryDecoder.serviceId());
+            String value;
+            switch (this.binaryDecoder.opcode()) {
+                case BinaryFrameDecoder.OP_SET_FALSE:
+                case BinaryFrameDecoder.OP_SET_TRUE:
+                    value = String.valueOf(this.binaryDecoder.flag());
+                    break;
+                case BinaryFrameDecoder.OP_SET_RGB:
+                    value = DataValidator.formatColor(this.binaryDecoder.color());
+                    break;
+                case BinaryFrameDecoder.OP_SET_TEXT:
+                default:
+                    value = this.binaryDecoder.text().toString();
+                    break;
+            }
+            if (this.validator.validData(service.getType(), value, CLIENT)) {
+                versions += service.setValue(value);
+            }
+        }
+        return versions;
+    }
+}
@@ -0,0 +1,88 @@
+package dev;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures persisting one changed value, i.e. changing the model and rendering the service file, against service
+ * files of increasing size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ServiceFileBenchmark {
+
+    @Param({"4", "64", "1024"})
+    private int records;
+
+    private Path directory;
+    private ServiceFile serviceFile;
+    private boolean value;
+
+    @Setup
+    public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("arios-jmh");
+        Path path = this.directory.resolve("bench.service");
+        Files.write(path, createServiceFile(this.records));
+
+        // the flusher thread is never started, every invocation flushes itself
+        this.serviceFile = new ServiceFile(path.toString(), Long.MAX_VALUE, Integer.MAX_VALUE);
+        Map<String, String> values = this.serviceFile.read();
+        this.serviceFile.define("_http._tcp", 4711, values);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void updateService() throws IOException {
+        this.value = !this.value;
+        this.serviceFile.setRecord("toggle", String.valueOf(this.value));
+        this.serviceFile.flush();
+    }
+
+    /**
+     * Create the lines of a service file.
+     * @param count     Number of &lt;txt-record&gt;s besides toggle and running.
+     * @return  The lines.
+     */
+    static List<String> createServiceFile(int count) {
+        List<String> lines = new ArrayList<>();
+        lines.add("<?xml version=\"1.0\" standalone='no'?>");
+        lines.add("<!DOCTYPE service-group SYSTEM \"avahi-service.dtd\">");
+        lines.add("<service-group>");
+        lines.add("  <name replace-wildcards=\"yes\">ARIOS on %h</name>");
+        lines.add("  <service>");
+        lines.add("    <type>_http._tcp</type>");
+        lines.add("    <port>4711</port>");
+        lines.add("    <txt-record>running=true</txt-record>");
+        lines.add("    <txt-record>toggle=false</txt-record>");
+        for (int i = 1; i <= count; i++) {
+            lines.add("    <txt-record>textfield." + i + "=value " + i + "</txt-record>");
+        }
+        lines.add("  </service>");
+        lines.add("</service-group>");
+        return lines;
+    }
+}
@@ -0,0 +1,71 @@
+package dev;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures rendering the service file from its model and reading the records of an existing file, as done on
+ * startup, for many records.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ServiceFileRendererBenchmark {
+
+    @Param({"4", "64", "1024"})
+    private int records;
+
+    private Map<String, String> model;
+    private StringBuilder out = new StringBuilder();
+    private Path directory;
+    private ServiceFile serviceFile;
+
+    @Setup
+    public void setup() throws IOException {
+        this.model = new LinkedHashMap<>();
+        this.model.put("running", "true");
+        for (int i = 1; i <= this.records; i++) {
+            this.model.put("textfield." + i, "value <" + i + ">");
+        }
+
+        this.directory = Files.createTempDirectory("arios-jmh");
+        Path path = this.directory.resolve("bench.service");
+        Files.write(path, ServiceFileBenchmark.createServiceFile(this.records));
+        this.serviceFile = new ServiceFile(path.toString(), Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int render() {
+        this.out.setLength(0);
+        ServiceFileRenderer.render(this.out, "%h", true, "_http._tcp", 4711, this.model);
+        return this.out.length();
+    }
+
+    @Benchmark
+    public Map<String, String> read() throws IOException {
+        return this.serviceFile.read();
+    }
+}
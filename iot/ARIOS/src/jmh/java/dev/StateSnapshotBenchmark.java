@@ -0,0 +1,117 @@
+package dev;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures reads of service values while a writer keeps changing them, once served from a {@link StateSnapshot} and
+ * once under the lock the writer holds.
+ *
+ * The groups run three readers and one writer by default. Vary the readers to see how reads scale across cores,
+ * e.g. with threadGroups = [8, 1] in the jmh block of build.gradle or -tg 8,1 on the command line of the benchmark
+ * jar.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StateSnapshotBenchmark {
+
+    @Param({"16", "256"})
+    private int services;
+
+    private final Object lock = new Object();
+    private ServiceRegistry registry;
+    private AtomicReference<StateSnapshot> state;
+    private NetService[] byId;
+
+    /**
+     * Position of a thread in the services. Every thread has its own, so threads never contend on it and only the
+     * reads and writes of values are measured.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        @Setup
+        public void setup() {
+            // start threads at different services
+            this.next = ThreadLocalRandom.current().nextInt(1 << 16);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        List<NetService> list = new ArrayList<>();
+        for (int i = 0; i < this.services; i++) {
+            list.add(new NetService(NetService.ServiceType.TOGGLE));
+        }
+        this.registry = new ServiceRegistry(list);
+        this.state = new AtomicReference<>(StateSnapshot.of(this.registry));
+        this.byId = new NetService[this.state.get().capacity()];
+        for (NetService service: this.registry.getServices()) {
+            this.byId[service.getId()] = service;
+        }
+    }
+
+    /**
+     * Returns the id accessed by a thread next.
+     * @param cursor    The {@link Cursor} of the calling thread.
+     * @return  The id.
+     */
+    private int nextId(Cursor cursor) {
+        return (cursor.next++ & Integer.MAX_VALUE) % this.byId.length;
+    }
+
+    @Benchmark
+    @Group("snapshot")
+    @GroupThreads(3)
+    public String snapshotRead(Cursor cursor) {
+        return this.state.get().getValue(nextId(cursor));
+    }
+
+    @Benchmark
+    @Group("snapshot")
+    @GroupThreads(1)
+    public void snapshotWrite(Cursor cursor) {
+        NetService service = this.byId[nextId(cursor)];
+        synchronized (this.lock) {
+            String value = "true".equals(service.getValue()) ? "false" : "true";
+            service.setValue(value);
+            this.state.set(this.state.get().with(service, value));
+        }
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(3)
+    public String lockedRead(Cursor cursor) {
+        NetService service = this.byId[nextId(cursor)];
+        synchronized (this.lock) {
+            return service.getValue();
+        }
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(1)
+    public void lockedWrite(Cursor cursor) {
+        NetService service = this.byId[nextId(cursor)];
+        synchronized (this.lock) {
+            service.setValue("true".equals(service.getValue()) ? "false" : "true");
+        }
+    }
+}
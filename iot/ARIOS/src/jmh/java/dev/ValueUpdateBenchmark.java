@@ -0,0 +1,77 @@
+package dev;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures storing one changed value per {@link NetService.ServiceType}, once from its text form as received from
+ * text clients and once from its primitive form, each followed by publishing a new {@link StateSnapshot}.
+ * Run with the gc profiler (default in build.gradle); gc.alloc.rate.norm is the heap allocated per update.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ValueUpdateBenchmark {
+
+    @Param({"TOGGLE", "COLORPICKER", "TEXTFIELD"})
+    private NetService.ServiceType type;
+
+    private NetService service;
+    private StateSnapshot snapshot;
+    private String[] values;
+    private int[] payloads;
+    private int next;
+
+    @Setup
+    public void setup() {
+        List<NetService> services = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            services.add(new NetService(this.type));
+        }
+        ServiceRegistry registry = new ServiceRegistry(services);
+        this.service = registry.get(0);
+        this.snapshot = StateSnapshot.of(registry);
+
+        switch (this.type) {
+            case COLORPICKER:
+                this.values = new String[] { "00FF7F", "FF7F00" };
+                this.payloads = new int[] { 0x00FF7F, 0xFF7F00 };
+                break;
+            case TEXTFIELD:
+                this.values = new String[] { "The quick brown fox", "jumps over the lazy dog" };
+                break;
+            default:
+                this.values = new String[] { "true", "false" };
+                this.payloads = new int[] { 1, 0 };
+                break;
+        }
+    }
+
+    @Benchmark
+    public StateSnapshot text() {
+        String value = this.values[this.next++ & 1];
+        this.service.setValue(value);
+        return this.snapshot = this.snapshot.with(this.service, value);
+    }
+
+    @Benchmark
+    public StateSnapshot primitive() {
+        if (this.payloads == null) {
+            // text has no primitive form
+            return text();
+        }
+        int i = this.next++ & 1;
+        this.service.compareAndSet(NetService.ANY_VERSION, this.payloads[i]);
+        return this.snapshot = this.snapshot.with(this.service, this.values[i]);
+    }
+}
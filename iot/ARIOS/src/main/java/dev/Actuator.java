@@ -0,0 +1,19 @@
+package dev;
+
+/**
+ * Handler turning value changes of a {@link NetService} into actions, e.g. switching a GPIO pin, setting an LED or
+ * running a script. Actuators are run by an {@link ActuatorPipeline} on its workers, never on the thread serving
+ * the clients, so they may block.
+ */
+@FunctionalInterface
+public interface Actuator {
+
+    /**
+     * Act on a new value. Called for one service at a time and in the order the values were applied, but possibly
+     * for different services at the same time.
+     * @param service   The changed {@link NetService}.
+     * @param value     The value to act on. Newer values may already have been applied to the service.
+     * @throws Exception    If the action failed. The failure is logged and the next value is handled.
+     */
+    void actuate(NetService service, String value) throws Exception;
+}
@@ -0,0 +1,195 @@
+package dev;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the {@link Actuator}s of value changes on a pool of workers. Values of the same {@link NetService} are handled
+ * strictly one after another and in order, values of different services in parallel.
+ *
+ * Every service has a lane of pending values which is drained by at most one worker at a time. If collapsing is
+ * enabled for a {@link NetService.ServiceType}, a lane holds only the latest pending value, so an actuator which
+ * falls behind skips intermediate values instead of replaying them.
+ */
+public class ActuatorPipeline {
+
+    private static final int MAX_BATCH = 16;
+
+    /**
+     * Pending values of a single service.
+     */
+    private class Lane implements Runnable {
+        private NetService service;
+        private Actuator actuator;
+        private boolean collapse;
+        private ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private boolean scheduled = false;
+
+        Lane(NetService pService, Actuator pActuator, boolean pCollapse) {
+            this.service = pService;
+            this.actuator = pActuator;
+            this.collapse = pCollapse;
+        }
+
+        /**
+         * Queue a value and schedule the lane unless a worker is already draining it.
+         * @param value     The value to act on.
+         */
+        void offer(String value) {
+            synchronized (this) {
+                if (this.collapse && !this.pending.isEmpty()) {
+                    this.pending.clear();
+                    Metrics.ACTUATIONS_COLLAPSED.increment();
+                }
+                this.pending.add(new Pending(value, System.nanoTime()));
+
+                if (this.scheduled) {
+                    return;
+                }
+                this.scheduled = true;
+            }
+            schedule(this);
+        }
+
+        /**
+         * Handle a limited number of pending values, then give the worker back, so a busy lane cannot starve the
+         * others.
+         */
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_BATCH; i++) {
+                Pending next;
+                synchronized (this) {
+                    next = this.pending.poll();
+                    if (next == null) {
+                        this.scheduled = false;
+                        return;
+                    }
+                }
+
+                try {
+                    this.actuator.actuate(this.service, next.value);
+                    Metrics.ACTUATIONS.increment();
+                } catch (Exception e) {
+                    Metrics.ACTUATION_FAILURES.increment();
+                    Log.error("An error occurred while actuating {} = {}.", this.service.getKey(), next.value, e);
+                }
+                Metrics.ACTUATION_LATENCY.recordSince(next.since);
+            }
+            schedule(this);
+        }
+
+        synchronized void clear() {
+            this.pending.clear();
+        }
+    }
+
+    /**
+     * A value waiting for its actuator.
+     */
+    private static class Pending {
+        private String value;
+        private long since;
+
+        Pending(String pValue, long pSince) {
+            this.value = pValue;
+            this.since = pSince;
+        }
+    }
+
+    private Map<NetService.ServiceType, Actuator> actuators = new EnumMap<>(NetService.ServiceType.class);
+    private Map<NetService.ServiceType, Boolean> collapsing = new EnumMap<>(NetService.ServiceType.class);
+    private Map<NetService, Lane> lanes = new ConcurrentHashMap<>();
+    private ExecutorService workers;
+
+    /**
+     * Class constructor.
+     *
+     * @param pWorkers  Number of workers running actuators.
+     */
+    public ActuatorPipeline(int pWorkers) {
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(pWorkers, runnable -> {
+            Thread thread = new Thread(runnable, "Actuator-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Act on changes of a {@link NetService.ServiceType}. Must be called before the first value is submitted.
+     * @param type      The {@link NetService.ServiceType}.
+     * @param actuator  The {@link Actuator} handling its changes.
+     * @param collapse  Whether only the latest pending value is handled when the actuator falls behind.
+     */
+    public void setActuator(NetService.ServiceType type, Actuator actuator, boolean collapse) {
+        this.actuators.put(type, actuator);
+        this.collapsing.put(type, collapse);
+    }
+
+    /**
+     * Returns whether any {@link Actuator} is set.
+     * @return  Return true if values are acted on. Otherwise return false.
+     */
+    public boolean isEmpty() { return this.actuators.isEmpty(); }
+
+    /**
+     * Hand an applied value to the {@link Actuator} of its service's type. Never blocks.
+     * @param service   The changed {@link NetService}.
+     * @param value     The applied value.
+     */
+    public void submit(NetService service, String value) {
+        Actuator actuator = this.actuators.get(service.getType());
+        if (actuator == null) {
+            return;
+        }
+
+        this.lanes.computeIfAbsent(service, s -> new Lane(s, actuator, this.collapsing.get(s.getType()))).offer(value);
+    }
+
+    /**
+     * Drop the pending values of a service which is no longer provided.
+     * @param service   The removed {@link NetService}.
+     */
+    public void discard(NetService service) {
+        Lane lane = this.lanes.remove(service);
+        if (lane != null) {
+            lane.clear();
+        }
+    }
+
+    /**
+     * Hand a lane to a worker.
+     * @param lane      The {@link Lane} to drain.
+     */
+    private void schedule(Lane lane) {
+        try {
+            this.workers.execute(lane);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            lane.clear();
+        }
+    }
+
+    /**
+     * Stop accepting values and wait for pending ones to be handled.
+     * @param timeoutMillis     Maximum time to wait in milliseconds.
+     */
+    public void close(long timeoutMillis) {
+        this.workers.shutdown();
+        try {
+            if (!this.workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                Log.warn("Actuators did not finish within {} ms.", timeoutMillis);
+            }
+        } catch (InterruptedException e) {
+            // shutting down anyway
+        }
+    }
+}
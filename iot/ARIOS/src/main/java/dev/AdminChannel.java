@@ -0,0 +1,220 @@
+package dev;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Local command channel to add and remove {@link NetService}s of a running {@link ServiceProvider}. Listens on the
+ * loopback interface only and serves one administrator at a time with a line-based protocol:
+ * <ul>
+ *     <li>{@code ADD <type> [<value>]} provides a new service, answered with {@code OK <key> <id>}.</li>
+ *     <li>{@code REMOVE <key>|<id>} stops providing a service, answered with {@code OK <key>}.</li>
+ *     <li>{@code LIST} lists all services as {@code <id> <key>=<value>}, followed by {@code END}.</li>
+ *     <li>{@code QUIT} closes the connection.</li>
+ * </ul>
+ * Failed commands are answered with {@code ERROR <reason>}. Connected clients of the provider keep their connections
+ * and receive the new layout.
+ */
+public class AdminChannel extends Thread {
+
+    private static final int MAX_LINE = 1024;
+
+    private ServiceProvider provider;
+    private int port;
+    private ServerSocket server;
+    private DataValidator validator = new DataValidator();
+
+    private volatile boolean running = true;
+
+    /**
+     * Class constructor.
+     *
+     * @param pProvider The {@link ServiceProvider} to administrate.
+     * @param pPort     The port to listen on, 0 for a random port.
+     */
+    public AdminChannel(ServiceProvider pProvider, int pPort) {
+        super("AdminChannel");
+        setDaemon(true);
+
+        this.provider = pProvider;
+        this.port = pPort;
+    }
+
+    /**
+     * Bind the channel to localhost:port and start serving administrators.
+     * @throws IOException  If the port cannot be bound.
+     */
+    public void open() throws IOException {
+        this.server = new ServerSocket();
+        this.server.setReuseAddress(true);
+        this.server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port));
+        this.port = this.server.getLocalPort();
+        start();
+        Log.info("Admin channel listening on localhost:{}.", this.port);
+    }
+
+    /**
+     * Stop serving administrators.
+     */
+    public void close() {
+        this.running = false;
+        try {
+            if (this.server != null) {
+                this.server.close();
+            }
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * Returns the port the channel is listening on.
+     * @return  The port.
+     */
+    public int getPort() { return this.port; }
+
+    /**
+     * Accept administrators one after another until the channel is closed. Commands are only handled once the
+     * provider is listening, i.e. its service file and journal are in place.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!this.provider.awaitListening(1000)) {
+                if (!this.running) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        while (this.running) {
+            try (Socket socket = this.server.accept()) {
+                serve(socket);
+            } catch (SocketException e) {
+                // channel closed
+            } catch (IOException e) {
+                Log.warn("An error occurred while serving the admin channel: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Handle the commands of one administrator until it quits or disconnects.
+     * @param socket    The accepted {@link Socket}.
+     * @throws IOException  If reading or writing fails.
+     */
+    private void serve(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+
+        String line;
+        while (this.running && (line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.length() > MAX_LINE) {
+                out.write("ERROR line too long\n");
+            } else if (line.equalsIgnoreCase("QUIT")) {
+                return;
+            } else {
+                out.write(handle(line));
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Execute a single command.
+     * @param line      The command line.
+     * @return  The answer, terminated by a line break.
+     */
+    private String handle(String line) {
+        String[] args = line.split("\\s+", 3);
+        switch (args[0].toUpperCase(Locale.ROOT)) {
+            case "ADD":
+                return add(args);
+            case "REMOVE":
+                return remove(args);
+            case "LIST":
+                return list();
+            default:
+                return "ERROR unknown command " + args[0] + "\n";
+        }
+    }
+
+    private String add(String[] args) {
+        if (args.length < 2) {
+            return "ERROR usage: ADD <type> [<value>]\n";
+        }
+
+        NetService.ServiceType type = DataValidator.lookupType(args[1].toUpperCase(Locale.ROOT));
+        if (type == null || args[1].indexOf(NetService.INSTANCE_SEPARATOR) >= 0) {
+            return "ERROR unknown type " + args[1] + "\n";
+        }
+
+        String value = args.length > 2 ? args[2] : NetService.getDefaultValue(type);
+        if (!this.validator.validData(type, value, "admin")) {
+            return "ERROR invalid value " + value + "\n";
+        }
+
+        try {
+            NetService service = this.provider.addService(type, value);
+            return "OK " + service.getKey() + " " + service.getId() + "\n";
+        } catch (IllegalStateException e) {
+            return "ERROR " + e.getMessage() + "\n";
+        }
+    }
+
+    private String remove(String[] args) {
+        if (args.length != 2) {
+            return "ERROR usage: REMOVE <key>|<id>\n";
+        }
+
+        NetService service = resolve(args[1]);
+        if (service == null || !this.provider.removeService(service)) {
+            return "ERROR unknown service " + args[1] + "\n";
+        }
+        return "OK " + service.getKey() + "\n";
+    }
+
+    private String list() {
+        StringBuilder answer = new StringBuilder();
+        for (NetService service: this.provider.getRegistry().getServices()) {
+            answer.append(service.getId()).append(' ').append(service.getKey()).append('=').append(service.getValue()).append('\n');
+        }
+        return answer.append("END\n").toString();
+    }
+
+    /**
+     * Find a service by its id or key.
+     * @param name      The id or key, e.g. 3 or TOGGLE.1.
+     * @return  The {@link NetService} or null if there is none.
+     */
+    private NetService resolve(String name) {
+        ServiceRegistry registry = this.provider.getRegistry();
+        if (!name.isEmpty() && Character.isDigit(name.charAt(0))) {
+            try {
+                return registry.get(Integer.parseInt(name));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        String key = name.toUpperCase(Locale.ROOT);
+        NetService.ServiceType type = DataValidator.lookupType(key);
+        return type != null ? registry.get(type, DataValidator.parseInstance(key)) : null;
+    }
+}
@@ -0,0 +1,99 @@
+package dev;
+
+/**
+ * Value changes of a single connection collected between BEGIN and COMMIT, applied as one unit.
+ */
+public class Batch {
+
+    public static final int MAX_SIZE = 64;
+
+    private int[] indexes = new int[MAX_SIZE];
+    private String[] values = new String[MAX_SIZE];
+    private long[] expected = new long[MAX_SIZE];
+    private int size = 0;
+
+    private boolean open = false;
+    private boolean failed = false;
+
+    /**
+     * Start collecting changes. Changes of a previously opened batch are dropped.
+     */
+    public void begin() {
+        clear();
+        this.open = true;
+    }
+
+    /**
+     * Returns whether changes are currently collected.
+     * @return  Return true between BEGIN and COMMIT. Otherwise return false.
+     */
+    public boolean isOpen() { return this.open; }
+
+    /**
+     * Add a validated change. Marks the batch as failed if it exceeds {@link #MAX_SIZE}.
+     * @param index     The index of the {@link NetService} to change.
+     * @param value     The new value.
+     * @param version   The version the service must be at when the batch is committed, or
+     *                  {@link NetService#ANY_VERSION}.
+     */
+    public void add(int index, String value, long version) {
+        if (this.size == MAX_SIZE) {
+            this.failed = true;
+            return;
+        }
+        this.indexes[this.size] = index;
+        this.values[this.size] = value;
+        this.expected[this.size] = version;
+        this.size++;
+    }
+
+    /**
+     * Mark the batch as failed because one of its changes is invalid.
+     */
+    public void fail() { this.failed = true; }
+
+    /**
+     * Returns whether one of the collected changes was invalid.
+     * @return  Return true if the batch must be rejected. Otherwise return false.
+     */
+    public boolean isFailed() { return this.failed; }
+
+    /**
+     * Returns the number of collected changes.
+     * @return  The number of changes.
+     */
+    public int size() { return this.size; }
+
+    /**
+     * Returns the index of the {@link NetService} changed by the i-th change.
+     * @param i         Position of the change.
+     * @return  The index of the {@link NetService}.
+     */
+    public int getIndex(int i) { return this.indexes[i]; }
+
+    /**
+     * Returns the value of the i-th change.
+     * @param i         Position of the change.
+     * @return  The new value.
+     */
+    public String getValue(int i) { return this.values[i]; }
+
+    /**
+     * Returns the version the service of the i-th change must be at.
+     * @param i         Position of the change.
+     * @return  The expected version or {@link NetService#ANY_VERSION}.
+     */
+    public long getExpected(int i) { return this.expected[i]; }
+
+    /**
+     * Stop collecting and drop all changes.
+     */
+    public void clear() {
+        for (int i = 0; i < this.size; i++) {
+            this.values[i] = null;
+        }
+        this.size = 0;
+        this.open = false;
+        this.failed = false;
+    }
+}
@@ -0,0 +1,268 @@
+package dev;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Incremental decoder for the compact binary protocol.
+ *
+ * A client selects the binary protocol by sending {@link #MAGIC} followed by its protocol version as the first two
+ * bytes of a connection; the server answers with {@link #MAGIC} and the accepted version (0 if rejected).
+ * Every following frame starts with a one-byte opcode and the two-byte (big-endian) id of the addressed service:
+ * <ul>
+ *     <li>{@link #OP_SET_FALSE}, {@link #OP_SET_TRUE}: no payload, the boolean is the opcode's lowest bit.</li>
+ *     <li>{@link #OP_SET_RGB}: three bytes red, green, blue.</li>
+ *     <li>{@link #OP_SET_TEXT}: two-byte length followed by as many bytes of UTF-8 text.</li>
+ * </ul>
+ * {@link #OP_BATCH_BEGIN} and {@link #OP_BATCH_COMMIT} consist of the opcode only and enclose changes which are
+ * applied as one unit. {@link #OP_SUBSCRIBE} and {@link #OP_UNSUBSCRIBE} consist of the opcode only and start or stop
+ * the push of changes, which the server sends as set frames. {@link #OP_PING} and {@link #OP_PONG} consist of the opcode
+ * only; either side answers a ping with a pong. A client requests the current set of services with {@link #OP_LAYOUT},
+ * which consists of the opcode only; the server answers, and sends again whenever services are added or removed,
+ * {@link #OP_LAYOUT} followed by the two-byte number of services and, for every service, its two-byte id, its
+ * one-byte {@link NetService.ServiceType} ordinal and its two-byte instance number.
+ * {@link #OP_GET} carries the id of a service and no payload; the server answers with the service's set frame, or
+ * echoes the frame if there is no such service. {@link #OP_SNAPSHOT} consists of the opcode only; the server answers
+ * with {@link #OP_SNAPSHOT}, the two-byte number of services and one set frame per service.
+ * {@link #OP_IF_VERSION} carries the id of a service and an eight-byte version; it makes the next set frame, which
+ * must be for that service, conditional on the service still being at this version. The server answers a conditional
+ * change with {@link #OP_IF_VERSION} and the version the value was set as, or with {@link #OP_CONFLICT}, the service's
+ * id and current version followed by its set frame. A set frame for another service is rejected the same way, or fails
+ * the open batch, instead of being applied unconditionally.
+ * {@link #OP_HISTORY} carries the id of a service and two eight-byte times in milliseconds since the epoch; the server
+ * answers with {@link #OP_HISTORY}, the id, the two-byte number of changes recorded within the times and, for every
+ * change, its eight-byte time, the one-byte length of the client's address, the address and the set frame. A request
+ * for a service which does not exist is answered like {@link #OP_GET}.
+ * The server sends {@link #OP_CLOSE} before it closes the connection.
+ */
+public class BinaryFrameDecoder {
+
+    public static final byte MAGIC = (byte) 0xA5;
+    public static final byte VERSION = 1;
+
+    public static final int OP_SET_FALSE = 0x10;
+    public static final int OP_SET_TRUE = 0x11;
+    public static final int OP_SET_RGB = 0x20;
+    public static final int OP_SET_TEXT = 0x30;
+    public static final int OP_BATCH_BEGIN = 0x40;
+    public static final int OP_BATCH_COMMIT = 0x41;
+    public static final int OP_SUBSCRIBE = 0x50;
+    public static final int OP_UNSUBSCRIBE = 0x51;
+    public static final int OP_PING = 0x60;
+    public static final int OP_PONG = 0x61;
+    public static final int OP_LAYOUT = 0x70;
+    public static final int OP_GET = 0x80;
+    public static final int OP_SNAPSHOT = 0x81;
+    public static final int OP_HISTORY = 0x82;
+    public static final int OP_IF_VERSION = 0x90;
+    public static final int OP_CONFLICT = 0x91;
+    public static final int OP_CLOSE = 0x7F;
+
+    private static final int HEADER_LENGTH = 3;
+
+    private ByteBuffer buffer;
+    private byte[] bytes;
+
+    private FrameDecoder.Slice text;
+
+    private int start = 0;
+    private int opcode;
+    private int serviceId;
+    private int color;
+    private long version;
+    private long from;
+    private long to;
+
+    /**
+     * Class constructor.
+     *
+     * @param maxFrameLength    Maximum length of a frame including its header.
+     */
+    public BinaryFrameDecoder(int maxFrameLength) {
+        this.buffer = ByteBuffer.allocate(maxFrameLength);
+        this.bytes = this.buffer.array();
+        this.text = new FrameDecoder.Slice(this.bytes);
+    }
+
+    /**
+     * Add bytes which have already been read from the connection.
+     * @param src       The bytes to add.
+     */
+    public void put(ByteBuffer src) {
+        this.buffer.put(src);
+    }
+
+    /**
+     * Read available bytes from the channel into the buffer.
+     * @param channel   The channel to read from.
+     * @return  The number of bytes read, or -1 at end of stream.
+     * @throws IOException  If reading fails.
+     */
+    public int fill(ReadableByteChannel channel) throws IOException {
+        return channel.read(this.buffer);
+    }
+
+    /**
+     * Decode the next buffered frame.
+     * @return  {@link FrameDecoder.Status#FRAME} if a new frame is available, {@link FrameDecoder.Status#NONE} if more
+     *          bytes are needed, {@link FrameDecoder.Status#MALFORMED} if the stream cannot be decoded.
+     */
+    public FrameDecoder.Status next() {
+        int available = this.buffer.position() - this.start;
+        if (available < 1) {
+            compact();
+            return FrameDecoder.Status.NONE;
+        }
+
+        int op = this.bytes[this.start] & 0xFF;
+        if (op == OP_BATCH_BEGIN || op == OP_BATCH_COMMIT || op == OP_SUBSCRIBE || op == OP_UNSUBSCRIBE || op == OP_PING || op == OP_PONG
+                || op == OP_LAYOUT || op == OP_SNAPSHOT) {
+            this.opcode = op;
+            this.start++;
+            return FrameDecoder.Status.FRAME;
+        }
+        if (available < HEADER_LENGTH) {
+            compact();
+            return FrameDecoder.Status.NONE;
+        }
+
+        int length;
+        switch (op) {
+            case OP_SET_FALSE:
+            case OP_SET_TRUE:
+            case OP_GET:
+                length = HEADER_LENGTH;
+                break;
+            case OP_SET_RGB:
+                length = HEADER_LENGTH + 3;
+                break;
+            case OP_IF_VERSION:
+                length = HEADER_LENGTH + 8;
+                break;
+            case OP_HISTORY:
+                length = HEADER_LENGTH + 16;
+                break;
+            case OP_SET_TEXT:
+                if (available < HEADER_LENGTH + 2) {
+                    compact();
+                    return FrameDecoder.Status.NONE;
+                }
+                length = HEADER_LENGTH + 2 + readShort(this.start + HEADER_LENGTH);
+                if (length > this.bytes.length) {
+                    return FrameDecoder.Status.MALFORMED;
+                }
+                break;
+            default:
+                return FrameDecoder.Status.MALFORMED;
+        }
+
+        if (available < length) {
+            compact();
+            return FrameDecoder.Status.NONE;
+        }
+
+        this.opcode = op;
+        this.serviceId = readShort(this.start + 1);
+        if (op == OP_SET_RGB) {
+            this.color = ((this.bytes[this.start + 3] & 0xFF) << 16) | ((this.bytes[this.start + 4] & 0xFF) << 8) | (this.bytes[this.start + 5] & 0xFF);
+        } else if (op == OP_SET_TEXT) {
+            this.text.set(this.start + HEADER_LENGTH + 2, length - HEADER_LENGTH - 2);
+        } else if (op == OP_IF_VERSION) {
+            this.version = readLong(this.start + HEADER_LENGTH);
+        } else if (op == OP_HISTORY) {
+            this.from = readLong(this.start + HEADER_LENGTH);
+            this.to = readLong(this.start + HEADER_LENGTH + 8);
+        }
+
+        this.start += length;
+        return FrameDecoder.Status.FRAME;
+    }
+
+    /**
+     * Returns the opcode of the current frame.
+     * @return  The opcode.
+     */
+    public int opcode() { return this.opcode; }
+
+    /**
+     * Returns the id of the service addressed by the current frame.
+     * @return  The service id.
+     */
+    public int serviceId() { return this.serviceId; }
+
+    /**
+     * Returns the boolean carried by an {@link #OP_SET_FALSE} or {@link #OP_SET_TRUE} frame.
+     * @return  The boolean.
+     */
+    public boolean flag() { return (this.opcode & 1) == 1; }
+
+    /**
+     * Returns the colour carried by an {@link #OP_SET_RGB} frame.
+     * @return  The colour as 0xRRGGBB.
+     */
+    public int color() { return this.color; }
+
+    /**
+     * Returns the text carried by an {@link #OP_SET_TEXT} frame. Only valid until the next call to {@link #next()}.
+     * @return  The text.
+     */
+    public CharSequence text() { return this.text; }
+
+    /**
+     * Returns the version carried by an {@link #OP_IF_VERSION} frame.
+     * @return  The expected version.
+     */
+    public long version() { return this.version; }
+
+    /**
+     * Returns the start of the time range carried by an {@link #OP_HISTORY} frame.
+     * @return  The time in milliseconds since the epoch.
+     */
+    public long from() { return this.from; }
+
+    /**
+     * Returns the end of the time range carried by an {@link #OP_HISTORY} frame.
+     * @return  The time in milliseconds since the epoch.
+     */
+    public long to() { return this.to; }
+
+    /**
+     * Read an unsigned big-endian short from the buffer.
+     * @param index     Position of the short.
+     * @return  The value.
+     */
+    private int readShort(int index) {
+        return ((this.bytes[index] & 0xFF) << 8) | (this.bytes[index + 1] & 0xFF);
+    }
+
+    /**
+     * Read a big-endian int from the buffer.
+     * @param index     Position of the int.
+     * @return  The value.
+     */
+    private int readInt(int index) {
+        return (readShort(index) << 16) | readShort(index + 2);
+    }
+
+    /**
+     * Read a big-endian long from the buffer.
+     * @param index     Position of the long.
+     * @return  The value.
+     */
+    private long readLong(int index) {
+        return ((long) readInt(index) << 32) | (readInt(index + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Move the incomplete frame to the start of the buffer.
+     */
+    private void compact() {
+        int remaining = this.buffer.position() - this.start;
+        if (this.start > 0) {
+            System.arraycopy(this.bytes, this.start, this.bytes, 0, remaining);
+            this.buffer.position(remaining);
+            this.start = 0;
+        }
+    }
+}
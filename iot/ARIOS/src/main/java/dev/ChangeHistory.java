@@ -0,0 +1,399 @@
+package dev;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The latest changes of every {@link NetService}, kept in a memory-mapped file next to the Avahi service file, so
+ * "who changed it when" can be answered without logging every change. Every service has a ring of a fixed number of
+ * entries holding the time, the client and the value of a change; the oldest entry is overwritten first.
+ *
+ * The file consists of a header (magic, format, entries per ring) followed by the rings. Every ring starts with the
+ * id and {@link NetService.ServiceType} of its service, the size of its entries and the number of changes recorded so
+ * far. Rings are appended when a service changes for the first time. If the id belongs to a service of another type,
+ * e.g. after a restart, its ring is cleared and marked free with id -1; a free ring of the same entry size is reused
+ * before the file grows, so replacing services does not make the file grow without bound.
+ *
+ * Recording a change writes into the mapped file directly and allocates nothing. The mapped pages are written back
+ * by the operating system, so they survive a restart of the application without any explicit write.
+ */
+public class ChangeHistory {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final int MAGIC = 0x41524853;
+    private static final int FORMAT = 2;
+    private static final int FILE_HEADER = 16;
+
+    // ring header: id (FREE if unused), type ordinal, entry size, reserved, number of recorded changes
+    private static final int RING_HEADER = 24;
+    private static final int RING_COUNT = 16;
+    private static final int FREE = -1;
+
+    // entry: time, client length and bytes, value
+    private static final int CLIENT_LENGTH = 45;
+    private static final int VALUE_OFFSET = 8 + 1 + CLIENT_LENGTH;
+    private static final int PRIMITIVE_ENTRY = 64;
+    // text: length and up to 3 bytes of UTF-8 per char, a surrogate pair takes 4 bytes for 2 chars; 8 byte aligned
+    private static final int TEXT_ENTRY = (VALUE_OFFSET + 2 + NetService.MAX_TEXT_LENGTH * 3 + 7) & ~7;
+
+    /**
+     * A recorded change.
+     */
+    public static class Entry {
+        private long time;
+        private String client;
+        private String value;
+
+        Entry(long pTime, String pClient, String pValue) {
+            this.time = pTime;
+            this.client = pClient;
+            this.value = pValue;
+        }
+
+        public long getTime() { return this.time; }
+
+        public String getClient() { return this.client; }
+
+        public String getValue() { return this.value; }
+    }
+
+    /**
+     * The mapped entries of a single service.
+     */
+    private static class Ring {
+        private MappedByteBuffer buffer;
+        private NetService.ServiceType type;
+        private int entrySize;
+        private long count;
+
+        Ring(MappedByteBuffer pBuffer, NetService.ServiceType pType, int pEntrySize, long pCount) {
+            this.buffer = pBuffer;
+            this.type = pType;
+            this.entrySize = pEntrySize;
+            this.count = pCount;
+        }
+    }
+
+    private Path path;
+    private int capacity;
+    private FileChannel channel;
+    private long end;
+    private volatile Ring[] rings = new Ring[0];
+    private List<Ring> free = new ArrayList<>();
+
+    /**
+     * Class constructor.
+     *
+     * @param serviceFilePath   The path of the Avahi service file the history belongs to.
+     * @param pCapacity         Number of changes kept per service.
+     */
+    public ChangeHistory(String serviceFilePath, int pCapacity) {
+        this.path = Paths.get(serviceFilePath + ".history");
+        this.capacity = pCapacity;
+    }
+
+    /**
+     * Open the history file and map the rings recorded by earlier runs. A file written with another number of
+     * entries per ring is started anew.
+     * @throws IOException  If the file cannot be accessed.
+     */
+    public synchronized void open() throws IOException {
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+        if (this.channel.read(header, 0) < FILE_HEADER || header.getInt(0) != MAGIC || header.getInt(4) != FORMAT
+                || header.getInt(8) != this.capacity) {
+            if (this.channel.size() > 0) {
+                Log.warn("Discarding history of another format @ {}", this.path);
+            }
+            this.channel.truncate(0);
+            header.clear();
+            header.putInt(MAGIC).putInt(FORMAT).putInt(this.capacity).putInt(0).flip();
+            this.channel.write(header, 0);
+        }
+
+        long size = this.channel.size();
+        long offset = FILE_HEADER;
+        ByteBuffer ringHeader = ByteBuffer.allocate(RING_HEADER);
+        while (offset + RING_HEADER <= size) {
+            ringHeader.clear();
+            this.channel.read(ringHeader, offset);
+            int id = ringHeader.getInt(0);
+            int type = ringHeader.getInt(4);
+            int entrySize = ringHeader.getInt(8);
+            long length = RING_HEADER + (long) this.capacity * entrySize;
+            if ((entrySize != PRIMITIVE_ENTRY && entrySize != TEXT_ENTRY) || type < 0
+                    || type >= NetService.ServiceType.values().length || offset + length > size) {
+                // torn by a crash while the ring was appended
+                Log.warn("Discarding {} corrupted bytes of history @ {}", size - offset, this.path);
+                this.channel.truncate(offset);
+                break;
+            }
+
+            MappedByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, offset, length);
+            Ring ring = new Ring(buffer, NetService.ServiceType.values()[type], entrySize, buffer.getLong(RING_COUNT));
+            if (id == FREE) {
+                this.free.add(ring);
+            } else if (id < 0 || id >= ServiceRegistry.MAX_SERVICES) {
+                // no service has this id, the ring is sound but its header is corrupted
+                Log.warn("Resetting ring with invalid id {} of history @ {}", id, this.path);
+                release(ring);
+            } else {
+                // a later ring for the same id replaces an earlier one
+                if (id < this.rings.length && this.rings[id] != null) {
+                    release(this.rings[id]);
+                }
+                put(id, ring);
+            }
+            offset += length;
+        }
+        this.end = offset;
+    }
+
+    /**
+     * Record a change. Must be called by the writer which applied it, in the order changes are applied.
+     * @param service   The changed {@link NetService}.
+     * @param value     The applied value.
+     * @param client    The address of the client the value was received from.
+     * @param time      The time of the change in milliseconds since the epoch.
+     */
+    public void record(NetService service, String value, String client, long time) {
+        Ring ring = ring(service);
+        if (ring == null) {
+            return;
+        }
+
+        synchronized (ring) {
+            int base = RING_HEADER + (int) (ring.count % this.capacity) * ring.entrySize;
+            MappedByteBuffer buffer = ring.buffer;
+            buffer.putLong(base, time);
+
+            int length = Math.min(client.length(), CLIENT_LENGTH);
+            buffer.put(base + 8, (byte) length);
+            for (int i = 0; i < length; i++) {
+                buffer.put(base + 9 + i, (byte) client.charAt(i));
+            }
+
+            if (ring.type == NetService.ServiceType.TEXTFIELD) {
+                int written = putUtf8(buffer, base + VALUE_OFFSET + 2, value, ring.entrySize - VALUE_OFFSET - 2);
+                buffer.putShort(base + VALUE_OFFSET, (short) written);
+            } else {
+                buffer.putInt(base + VALUE_OFFSET, NetService.toPayload(ring.type, value));
+            }
+
+            // the entry is complete before it is counted
+            ring.count++;
+            buffer.putLong(RING_COUNT, ring.count);
+        }
+    }
+
+    /**
+     * Returns the recorded changes of a service within a time range, oldest first.
+     * @param service   The {@link NetService}.
+     * @param from      Start of the range in milliseconds since the epoch, inclusive.
+     * @param to        End of the range in milliseconds since the epoch, inclusive.
+     * @return  The changes.
+     */
+    public List<Entry> query(NetService service, long from, long to) {
+        Ring[] current = this.rings;
+        int id = service.getId();
+        List<Entry> entries = new ArrayList<>();
+        if (id < 0 || id >= current.length || current[id] == null || current[id].type != service.getType()) {
+            return entries;
+        }
+
+        Ring ring = current[id];
+        synchronized (ring) {
+            for (long i = Math.max(0, ring.count - this.capacity); i < ring.count; i++) {
+                int base = RING_HEADER + (int) (i % this.capacity) * ring.entrySize;
+                long time = ring.buffer.getLong(base);
+                if (time < from || time > to) {
+                    continue;
+                }
+
+                byte[] client = get(ring.buffer, base + 9, ring.buffer.get(base + 8));
+                String value;
+                if (ring.type == NetService.ServiceType.TEXTFIELD) {
+                    byte[] text = get(ring.buffer, base + VALUE_OFFSET + 2, ring.buffer.getShort(base + VALUE_OFFSET) & 0xFFFF);
+                    value = new String(text, StandardCharsets.UTF_8);
+                } else {
+                    value = NetService.format(ring.type, ring.buffer.getInt(base + VALUE_OFFSET));
+                }
+                entries.add(new Entry(time, new String(client, StandardCharsets.US_ASCII), value));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Write all recorded changes back and close the file.
+     */
+    public synchronized void close() {
+        if (this.channel == null) {
+            return;
+        }
+
+        for (Ring ring: this.rings) {
+            if (ring != null) {
+                synchronized (ring) {
+                    ring.buffer.force();
+                }
+            }
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // mapped rings stay valid until the application exits
+        }
+        this.channel = null;
+    }
+
+    /**
+     * Returns the ring of a service. If the service has none yet, a free ring of the same entry size is reused or
+     * one is appended to the file. A ring recorded for another type under the same id is released first.
+     * @param service   The {@link NetService}.
+     * @return  The {@link Ring} or null if the history is closed or cannot grow.
+     */
+    private Ring ring(NetService service) {
+        Ring[] current = this.rings;
+        int id = service.getId();
+        if (id >= 0 && id < current.length && current[id] != null && current[id].type == service.getType()) {
+            return current[id];
+        }
+
+        synchronized (this) {
+            if (this.channel == null) {
+                return null;
+            }
+            if (id < this.rings.length && this.rings[id] != null) {
+                release(this.rings[id]);
+                put(id, null);
+            }
+
+            int entrySize = service.getType() == NetService.ServiceType.TEXTFIELD ? TEXT_ENTRY : PRIMITIVE_ENTRY;
+            MappedByteBuffer buffer = null;
+            for (int i = 0; i < this.free.size() && buffer == null; i++) {
+                if (this.free.get(i).entrySize == entrySize) {
+                    buffer = this.free.remove(i).buffer;
+                }
+            }
+
+            if (buffer == null) {
+                long length = RING_HEADER + (long) this.capacity * entrySize;
+                try {
+                    buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, this.end, length);
+                } catch (IOException e) {
+                    Log.warn("An error occurred while growing history @ {}. Changes of {} are not recorded.", this.path, service.getKey(), e);
+                    return null;
+                }
+                buffer.putInt(0, FREE);
+                buffer.putInt(8, entrySize);
+                this.end += length;
+            }
+
+            // the ring is empty before it is claimed, so a crash in between leaves no entries of another type
+            buffer.putLong(RING_COUNT, 0);
+            buffer.putInt(4, service.getType().ordinal());
+            buffer.putInt(0, id);
+
+            Ring ring = new Ring(buffer, service.getType(), entrySize, 0);
+            put(id, ring);
+            return ring;
+        }
+    }
+
+    /**
+     * Clear a ring and mark it free, so it can be reused for another service. Must be called holding the lock of
+     * this history.
+     * @param ring      The {@link Ring}.
+     */
+    private void release(Ring ring) {
+        synchronized (ring) {
+            // queries still holding the ring find it empty
+            ring.count = 0;
+            ring.buffer.putInt(0, FREE);
+            ring.buffer.putLong(RING_COUNT, 0);
+        }
+        this.free.add(ring);
+    }
+
+    /**
+     * Publish the ring of a service id. Must be called holding the lock of this history.
+     * @param id        The id of the {@link NetService}.
+     * @param ring      Its {@link Ring}.
+     */
+    private void put(int id, Ring ring) {
+        Ring[] next = id < this.rings.length ? this.rings.clone() : Arrays.copyOf(this.rings, id + 1);
+        next[id] = ring;
+        this.rings = next;
+    }
+
+    /**
+     * Copy bytes out of the buffer without moving its position.
+     * @param buffer    The buffer to read from.
+     * @param index     Position of the first byte.
+     * @param length    Number of bytes.
+     * @return  The bytes.
+     */
+    private static byte[] get(ByteBuffer buffer, int index, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(index + i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Encode text as UTF-8 into the buffer without allocating, cut off at a character boundary if it does not fit.
+     * @param buffer    The buffer to write to.
+     * @param index     Position of the first byte.
+     * @param text      The text.
+     * @param limit     Maximum number of bytes.
+     * @return  The number of bytes written.
+     */
+    private static int putUtf8(ByteBuffer buffer, int index, String text, int limit) {
+        int written = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int c = text.codePointAt(i);
+            int length = c < 0x80 ? 1 : c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
+            if (written + length > limit) {
+                break;
+            }
+
+            int at = index + written;
+            switch (length) {
+                case 1:
+                    buffer.put(at, (byte) c);
+                    break;
+                case 2:
+                    buffer.put(at, (byte) (0xC0 | (c >> 6)));
+                    buffer.put(at + 1, (byte) (0x80 | (c & 0x3F)));
+                    break;
+                case 3:
+                    buffer.put(at, (byte) (0xE0 | (c >> 12)));
+                    buffer.put(at + 1, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put(at + 2, (byte) (0x80 | (c & 0x3F)));
+                    break;
+                default:
+                    buffer.put(at, (byte) (0xF0 | (c >> 18)));
+                    buffer.put(at + 1, (byte) (0x80 | ((c >> 12) & 0x3F)));
+                    buffer.put(at + 2, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put(at + 3, (byte) (0x80 | (c & 0x3F)));
+                    i++;
+                    break;
+            }
+            written += length;
+        }
+        return written;
+    }
+}
@@ -0,0 +1,119 @@
+package dev;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coalesces bursts of changes to a service, e.g. while a color picker is dragged. The first change of a service
+ * opens a window of the duration configured for its {@link NetService.ServiceType}; changes within the window only
+ * replace the pending value, and the latest value is applied once the window has passed (last write wins).
+ * Intermediate values are never applied, journaled, logged or persisted.
+ */
+public class Coalescer {
+
+    /**
+     * Receiver of coalesced changes.
+     */
+    public interface Sink {
+        /**
+         * Apply a validated value.
+         * @param service   The {@link NetService} to change.
+         * @param value     The latest value.
+         * @param client    The address of the client which sent the latest value.
+         */
+        void apply(NetService service, String value, String client);
+    }
+
+    /**
+     * Latest value received within a window.
+     */
+    private static class Pending {
+        private NetService service;
+        private String value;
+        private String client;
+
+        Pending(NetService pService, String pValue, String pClient) {
+            this.service = pService;
+            this.value = pValue;
+            this.client = pClient;
+        }
+    }
+
+    private long[] windows = new long[NetService.ServiceType.values().length];
+    private Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private TimerWheel timers;
+    private Sink sink;
+
+    /**
+     * Class constructor.
+     *
+     * @param pTimers   The {@link TimerWheel} closing the windows.
+     * @param pSink     The {@link Sink} receiving the latest value of every window.
+     */
+    public Coalescer(TimerWheel pTimers, Sink pSink) {
+        this.timers = pTimers;
+        this.sink = pSink;
+    }
+
+    /**
+     * Set the window of a {@link NetService.ServiceType}.
+     * @param type          The {@link NetService.ServiceType}.
+     * @param windowMillis  The window in milliseconds, 0 applies every change immediately.
+     */
+    public void setWindow(NetService.ServiceType type, long windowMillis) {
+        this.windows[type.ordinal()] = windowMillis;
+    }
+
+    /**
+     * Offer a validated change. May be called from any thread.
+     * @param service   The {@link NetService} to change.
+     * @param value     The validated value.
+     * @param client    The address of the client the value was received from.
+     * @return  Return true if the change is coalesced. Otherwise return false, the caller applies it immediately.
+     */
+    public boolean offer(NetService service, String value, String client) {
+        long window = this.windows[service.getType().ordinal()];
+        if (window <= 0) {
+            return false;
+        }
+
+        int id = service.getId();
+        if (this.pending.put(id, new Pending(service, value, client)) == null) {
+            // first change, open the window
+            this.timers.schedule(new TimerWheel.Timeout(() -> apply(id)), window);
+        } else {
+            Metrics.COALESCED.increment();
+        }
+        return true;
+    }
+
+    /**
+     * Drop the pending change of a service, e.g. because a newer value has been applied directly.
+     * @param id    The id of the {@link NetService}.
+     */
+    public void discard(int id) {
+        if (this.pending.remove(id) != null) {
+            Metrics.COALESCED.increment();
+        }
+    }
+
+    /**
+     * Apply all pending changes immediately, e.g. before shutting down.
+     */
+    public void drain() {
+        for (Integer id: this.pending.keySet()) {
+            apply(id);
+        }
+    }
+
+    /**
+     * Close the window of a service and apply its latest value.
+     * @param id    The id of the {@link NetService}.
+     */
+    private void apply(int id) {
+        Pending latest = this.pending.remove(id);
+        if (latest != null) {
+            this.sink.apply(latest.service, latest.value, latest.client);
+        }
+    }
+}
@@ -0,0 +1,804 @@
+package dev;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * State of a single client served by a {@link ServiceProvider}.
+ */
+public class Connection {
+    /**
+     * Enum to determine the protocol spoken on a connection.
+     */
+    public enum Protocol {
+        UNKNOWN,
+        TEXT,
+        BINARY
+    }
+
+    private SocketChannel channel;
+    private ServiceProvider provider;
+    private String address;
+
+    private Protocol protocol = Protocol.UNKNOWN;
+    private ByteBuffer handshake = ByteBuffer.allocate(2);
+    private FrameDecoder textDecoder;
+    private BinaryFrameDecoder binaryDecoder;
+
+    private Batch batch = new Batch();
+    private int conditionId = -1;
+    private long conditionVersion;
+
+    public static final int CONTROL_PING = 1;
+    public static final int CONTROL_PONG = 2;
+    public static final int CONTROL_LAYOUT = 4;
+
+    /**
+     * Returned by {@link #takeCondition(int)} if the pending condition was set for another service.
+     */
+    public static final long MISMATCHED_CONDITION = -2;
+
+    private static final int MAX_OUTBOUND = 8 * 1024;
+    private static final int MAX_REPLIES = 256;
+    private static final byte[] TEXT_PING = "PING\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TEXT_PONG = "PONG\n".getBytes(StandardCharsets.UTF_8);
+    private static final String TEXT_LAYOUT = "LAYOUT=";
+    private static final String TEXT_SNAPSHOT = "SNAPSHOT=";
+    private static final String TEXT_HISTORY = "HISTORY=";
+    private static final String TEXT_ERROR = "ERROR=";
+    private static final String TEXT_OK = "OK=";
+    private static final String TEXT_CONFLICT = "CONFLICT=";
+    private static final String TEXT_VERSION = " version=";
+
+    private EventLoop eventLoop;
+    private SelectionKey key;
+    private boolean subscribed = false;
+    private boolean writerStarted = false;
+    private BitSet changed = new BitSet();
+    private ByteBuffer outbound = ByteBuffer.allocate(MAX_OUTBOUND);
+    private int control = 0;
+    private ArrayDeque<ByteBuffer> replies = new ArrayDeque<>();
+    private ByteBuffer reply;
+    private boolean repliesDropped = false;
+
+    private volatile long lastRead;
+    private long lastPing;
+    private TimerWheel.Timeout timeout;
+
+    private TokenBucket rateLimit;
+    private boolean limited = false;
+
+    /**
+     * Class constructor.
+     *
+     * @param pChannel  The accepted {@link SocketChannel}.
+     * @param pProvider The {@link ServiceProvider} serving this connection.
+     */
+    public Connection(SocketChannel pChannel, ServiceProvider pProvider) {
+        this.channel = pChannel;
+        this.provider = pProvider;
+        this.address = pChannel.socket().getInetAddress().toString().substring(1);
+        this.lastRead = System.nanoTime();
+        this.lastPing = this.lastRead - 1;
+
+        try {
+            // let the operating system detect half-open connections, too
+            this.channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        } catch (IOException e) {
+            // keep-alive is not supported, idle timeouts still apply
+        }
+    }
+
+    /**
+     * Read available bytes and hand every complete frame to the {@link ServiceProvider}.
+     * The protocol is negotiated with the first bytes of the connection.
+     * Blocks until data is available if the channel is in blocking mode.
+     * @return  The number of bytes read, or -1 if the connection has to be closed.
+     * @throws IOException  If reading from the channel fails.
+     */
+    public int read() throws IOException {
+        int read;
+        switch (this.protocol) {
+            case TEXT:
+                read = readText(this.textDecoder.fill(this.channel));
+                break;
+            case BINARY:
+                read = readBinary(this.binaryDecoder.fill(this.channel));
+                break;
+            case UNKNOWN:
+            default:
+                read = negotiate();
+                break;
+        }
+
+        if (read > 0) {
+            this.lastRead = System.nanoTime();
+        }
+        return read;
+    }
+
+    /**
+     * Determine the protocol from the first bytes of the connection. Binary clients start with
+     * {@link BinaryFrameDecoder#MAGIC} and their version; everything else is treated as text.
+     * @return  The number of bytes read, or -1 if the connection has to be closed.
+     * @throws IOException  If reading from or writing to the channel fails.
+     */
+    private int negotiate() throws IOException {
+        int read = this.channel.read(this.handshake);
+        if (read <= 0) {
+            return read;
+        }
+
+        if (this.handshake.get(0) != BinaryFrameDecoder.MAGIC) {
+            this.protocol = Protocol.TEXT;
+            this.textDecoder = new FrameDecoder(FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+            this.handshake.flip();
+            this.textDecoder.put(this.handshake);
+            return readText(read);
+        }
+
+        if (this.handshake.position() < 2) {
+            return read;
+        }
+
+        if (this.handshake.get(1) != BinaryFrameDecoder.VERSION) {
+            Log.warn("Unsupported binary protocol version {} [{}]!", this.handshake.get(1), this.address);
+            this.channel.write(ByteBuffer.wrap(new byte[] { BinaryFrameDecoder.MAGIC, 0 }));
+            return -1;
+        }
+
+        this.protocol = Protocol.BINARY;
+        this.binaryDecoder = new BinaryFrameDecoder(FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+        this.channel.write(ByteBuffer.wrap(new byte[] { BinaryFrameDecoder.MAGIC, BinaryFrameDecoder.VERSION }));
+        return read;
+    }
+
+    /**
+     * Hand every buffered text frame to the {@link ServiceProvider}.
+     * @param read      The number of bytes read before.
+     * @return  read
+     */
+    private int readText(int read) {
+        if (read <= 0) {
+            return read;
+        }
+
+        FrameDecoder.Status status;
+        while ((status = this.textDecoder.next()) != FrameDecoder.Status.NONE) {
+            if (status == FrameDecoder.Status.FRAME) {
+                this.provider.handleFrame(this, this.textDecoder.key(), this.textDecoder.value());
+            } else {
+                Log.warn("Received packet [{}] exceeds {} bytes!", this.address, FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+            }
+        }
+
+        return read;
+    }
+
+    /**
+     * Hand every buffered binary frame to the {@link ServiceProvider}.
+     * @param read      The number of bytes read before.
+     * @return  read, or -1 if the stream is malformed.
+     */
+    private int readBinary(int read) {
+        if (read <= 0) {
+            return read;
+        }
+
+        FrameDecoder.Status status;
+        while ((status = this.binaryDecoder.next()) != FrameDecoder.Status.NONE) {
+            if (status == FrameDecoder.Status.FRAME) {
+                this.provider.handleBinaryFrame(this, this.binaryDecoder);
+            } else {
+                Log.warn("Received malformed binary frame [{}]!", this.address);
+                return -1;
+            }
+        }
+
+        return read;
+    }
+
+    /**
+     * Attach the connection to the {@link EventLoop} serving it. Connections without {@link EventLoop} are blocking
+     * and push changes from their own writer thread.
+     * @param pEventLoop    The {@link EventLoop}.
+     * @param pKey          The {@link SelectionKey} of the channel.
+     */
+    public void attach(EventLoop pEventLoop, SelectionKey pKey) {
+        this.eventLoop = pEventLoop;
+        this.key = pKey;
+    }
+
+    /**
+     * Returns the {@link SelectionKey} of the channel.
+     * @return  The {@link SelectionKey}, or null for blocking connections.
+     */
+    public SelectionKey getKey() { return this.key; }
+
+    /**
+     * Start or stop receiving changes of all services.
+     * @param pSubscribed   Whether changes should be pushed to the client.
+     */
+    public void setSubscribed(boolean pSubscribed) {
+        synchronized (this) {
+            this.subscribed = pSubscribed;
+            if (!pSubscribed) {
+                this.changed.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns whether changes are pushed to the client.
+     * @return  Return true if the client has subscribed. Otherwise return false.
+     */
+    public synchronized boolean isSubscribed() { return this.subscribed; }
+
+    /**
+     * Note that a service has changed. Only the latest value of every service is pushed, so a slow client never
+     * queues more than one pending change per service. Never blocks on the network.
+     * @param id        The id of the changed {@link NetService}.
+     */
+    public void markChanged(int id) {
+        boolean schedule;
+        synchronized (this) {
+            if (!this.subscribed) {
+                return;
+            }
+            schedule = this.changed.isEmpty();
+            this.changed.set(id);
+            notifyAll();
+        }
+
+        if (schedule && this.eventLoop != null) {
+            this.eventLoop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Encode the latest values of changed services into the outbound buffer and write as much as the channel accepts.
+     * Must only be called by the single writer of this connection.
+     * @return  Return true if changes or bytes are still pending. Otherwise return false.
+     * @throws IOException  If writing to the channel fails.
+     */
+    public boolean flush() throws IOException {
+        // nothing may be put in the middle of a reply
+        boolean complete = encodeReplies(true) && encodeControl() && encodeReplies(false);
+
+        // values handed on by their writers, never ones still being applied
+        StateSnapshot snapshot = this.provider.getSnapshot();
+        int id = -1;
+        while (complete && (id = nextChanged(id + 1)) >= 0) {
+            NetService service = snapshot.getService(id);
+            if (service == null) {
+                continue;
+            }
+
+            if (!put(service, snapshot)) {
+                // no room left, push it with the next flush
+                markChanged(id);
+                break;
+            }
+        }
+
+        this.outbound.flip();
+        this.channel.write(this.outbound);
+        this.outbound.compact();
+
+        synchronized (this) {
+            return this.outbound.position() > 0 || hasPending();
+        }
+    }
+
+    /**
+     * Encode the value of a service in a snapshot into the outbound buffer. Booleans and colours are encoded straight
+     * from their primitive form, without allocating.
+     * @param service   The changed {@link NetService}.
+     * @param snapshot  The {@link StateSnapshot} holding its value.
+     * @return  Return true if the frame fit into the buffer. Otherwise return false.
+     */
+    private boolean put(NetService service, StateSnapshot snapshot) {
+        NetService.ServiceType type = service.getType();
+        if (type == NetService.ServiceType.TEXTFIELD) {
+            byte[] frame = encode(service, snapshot.getValue(service.getId()));
+            if (frame.length > this.outbound.remaining()) {
+                return false;
+            }
+            this.outbound.put(frame);
+            return true;
+        }
+
+        int payload = snapshot.getPayload(service.getId());
+        if (this.protocol == Protocol.BINARY) {
+            if (this.outbound.remaining() < (type == NetService.ServiceType.COLORPICKER ? 6 : 3)) {
+                return false;
+            }
+            if (type == NetService.ServiceType.COLORPICKER) {
+                this.outbound.put((byte) BinaryFrameDecoder.OP_SET_RGB).putShort((short) service.getId())
+                        .put((byte) (payload >> 16)).put((byte) (payload >> 8)).put((byte) payload);
+            } else {
+                int opcode = payload != 0 ? BinaryFrameDecoder.OP_SET_TRUE : BinaryFrameDecoder.OP_SET_FALSE;
+                this.outbound.put((byte) opcode).putShort((short) service.getId());
+            }
+            return true;
+        }
+
+        // keys, booleans and colours are ASCII
+        String key = service.getKey();
+        String value = type == NetService.ServiceType.COLORPICKER ? null : NetService.format(type, payload);
+        if (this.outbound.remaining() < key.length() + (value == null ? 6 : value.length()) + 2) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            this.outbound.put((byte) key.charAt(i));
+        }
+        this.outbound.put((byte) '=');
+        if (value == null) {
+            for (int shift = 20; shift >= 0; shift -= 4) {
+                this.outbound.put((byte) Character.toUpperCase(Character.forDigit((payload >> shift) & 0xF, 16)));
+            }
+        } else {
+            for (int i = 0; i < value.length(); i++) {
+                this.outbound.put((byte) value.charAt(i));
+            }
+        }
+        this.outbound.put((byte) '\n');
+        return true;
+    }
+
+    /**
+     * Returns whether frames wait to be encoded. Must be called holding the lock of this connection.
+     * @return  Return true if changes, control frames or replies are pending. Otherwise return false.
+     */
+    private boolean hasPending() {
+        return !this.changed.isEmpty() || this.control != 0 || this.reply != null || !this.replies.isEmpty();
+    }
+
+    /**
+     * Queue the reply to a request of this client. Replies are sent in order, ahead of pushed changes, and may be
+     * larger than the outbound buffer. Blocking connections need a writer thread to send them.
+     * @param frame     The encoded reply.
+     * @return  Return true if the reply has been queued, false if too many replies are pending already.
+     */
+    public boolean queueReply(byte[] frame) {
+        synchronized (this) {
+            if (this.replies.size() >= MAX_REPLIES) {
+                if (!this.repliesDropped) {
+                    // report once until the client catches up
+                    this.repliesDropped = true;
+                    Log.warn("{} is not reading its replies, dropping them!", this.address);
+                }
+                return false;
+            }
+            this.repliesDropped = false;
+            this.replies.add(ByteBuffer.wrap(frame));
+            notifyAll();
+        }
+
+        if (this.eventLoop != null) {
+            this.eventLoop.requestWrite(this);
+        }
+        return true;
+    }
+
+    /**
+     * Move queued replies into the outbound buffer, a large reply part by part.
+     * @param current   Whether to only finish the reply already started.
+     * @return  Return true if no reply is left half-way. Otherwise return false.
+     */
+    private synchronized boolean encodeReplies(boolean current) {
+        while (true) {
+            if (this.reply == null) {
+                if (current || (this.reply = this.replies.poll()) == null) {
+                    return true;
+                }
+            }
+
+            int length = Math.min(this.reply.remaining(), this.outbound.remaining());
+            this.outbound.put(this.reply.array(), this.reply.position(), length);
+            this.reply.position(this.reply.position() + length);
+            if (this.reply.hasRemaining()) {
+                return false;
+            }
+            this.reply = null;
+        }
+    }
+
+    /**
+     * Queue a control frame ({@link #CONTROL_PING}, {@link #CONTROL_PONG} or {@link #CONTROL_LAYOUT}) for the writer
+     * of this connection.
+     * Blocking connections need a writer thread to send it.
+     * @param pControl  The control frame.
+     */
+    public void queueControl(int pControl) {
+        boolean schedule;
+        synchronized (this) {
+            schedule = this.control == 0 && this.changed.isEmpty();
+            this.control |= pControl;
+            notifyAll();
+        }
+
+        if (schedule && this.eventLoop != null) {
+            this.eventLoop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Move queued control frames into the outbound buffer, ahead of pushed changes.
+     * @return  Always true, control frames which do not fit stay queued.
+     */
+    private boolean encodeControl() {
+        synchronized (this) {
+            int pending = this.control;
+            this.control = 0;
+
+            if ((pending & CONTROL_PING) != 0 && !putControl(this.protocol == Protocol.BINARY
+                    ? new byte[] { (byte) BinaryFrameDecoder.OP_PING } : TEXT_PING)) {
+                this.control |= CONTROL_PING;
+            }
+            if ((pending & CONTROL_PONG) != 0 && !putControl(this.protocol == Protocol.BINARY
+                    ? new byte[] { (byte) BinaryFrameDecoder.OP_PONG } : TEXT_PONG)) {
+                this.control |= CONTROL_PONG;
+            }
+            if ((pending & CONTROL_LAYOUT) != 0) {
+                byte[] layout = encodeLayout();
+                if (layout.length > this.outbound.capacity()) {
+                    Log.warn("Layout of {} bytes exceeds the outbound buffer, not sending it to {}!", layout.length, this.address);
+                } else if (!putControl(layout)) {
+                    this.control |= CONTROL_LAYOUT;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encode the current set of services in the protocol of this connection. Text clients receive their keys,
+     * binary clients their ids, types and instance numbers.
+     * @return  The encoded frame.
+     */
+    private byte[] encodeLayout() {
+        List<NetService> services = this.provider.getRegistry().getServices();
+
+        if (this.protocol != Protocol.BINARY) {
+            StringBuilder layout = new StringBuilder(TEXT_LAYOUT);
+            for (int i = 0; i < services.size(); i++) {
+                layout.append(i == 0 ? "" : ",").append(services.get(i).getKey());
+            }
+            return layout.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        ByteBuffer layout = ByteBuffer.allocate(3 + 5 * services.size())
+                .put((byte) BinaryFrameDecoder.OP_LAYOUT).putShort((short) services.size());
+        for (NetService service: services) {
+            layout.putShort((short) service.getId()).put((byte) service.getType().ordinal())
+                    .putShort((short) service.getInstance());
+        }
+        return layout.array();
+    }
+
+    private boolean putControl(byte[] frame) {
+        if (frame.length > this.outbound.remaining()) {
+            return false;
+        }
+        this.outbound.put(frame);
+        return true;
+    }
+
+    /**
+     * Claim the writer of a blocking connection. Only the first call returns true, so a connection never gets
+     * more than one writer thread.
+     * @return  Return true if the caller has to start {@link #runWriter()}. Otherwise return false.
+     */
+    public synchronized boolean claimWriter() {
+        boolean claimed = !this.writerStarted;
+        this.writerStarted = true;
+        return claimed;
+    }
+
+    /**
+     * Push changes with blocking writes until the connection is closed. Used by blocking connections only.
+     */
+    public void runWriter() {
+        try {
+            while (this.channel.isOpen()) {
+                synchronized (this) {
+                    while (!hasPending() && this.outbound.position() == 0 && this.channel.isOpen()) {
+                        wait(1000);
+                    }
+                }
+                flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // connection closed
+        }
+    }
+
+    /**
+     * Take the next changed service.
+     * @param fromId    The id to start searching from.
+     * @return  The id of the changed service, or -1 if there is none.
+     */
+    private synchronized int nextChanged(int fromId) {
+        int id = this.changed.nextSetBit(fromId);
+        if (id >= 0) {
+            this.changed.clear(id);
+        }
+        return id;
+    }
+
+    /**
+     * Encode the value of a service in the protocol of this connection.
+     * @param service   The {@link NetService} to encode.
+     * @param value     The value to encode.
+     * @return  The encoded frame.
+     */
+    public byte[] encode(NetService service, String value) {
+        if (this.protocol != Protocol.BINARY) {
+            return (service.getKey() + "=" + value + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        int id = service.getId();
+        switch (service.getType()) {
+            case TOGGLE:
+            case CHECKBOX:
+                int opcode = Boolean.parseBoolean(value) ? BinaryFrameDecoder.OP_SET_TRUE : BinaryFrameDecoder.OP_SET_FALSE;
+                return new byte[] { (byte) opcode, (byte) (id >> 8), (byte) id };
+            case COLORPICKER:
+                int color = DataValidator.parseColor(value);
+                return new byte[] { (byte) BinaryFrameDecoder.OP_SET_RGB, (byte) (id >> 8), (byte) id,
+                        (byte) (color >> 16), (byte) (color >> 8), (byte) color };
+            case TEXTFIELD:
+            default:
+                byte[] text = value.getBytes(StandardCharsets.UTF_8);
+                return ByteBuffer.allocate(5 + text.length).put((byte) BinaryFrameDecoder.OP_SET_TEXT)
+                        .putShort((short) id).putShort((short) text.length).put(text).array();
+        }
+    }
+
+    /**
+     * Encode all values of a {@link StateSnapshot} in the protocol of this connection. Text clients receive
+     * SNAPSHOT=&lt;count&gt; followed by one KEY=value line per service, binary clients
+     * {@link BinaryFrameDecoder#OP_SNAPSHOT} with the two-byte count followed by one set frame per service.
+     * @param snapshot  The {@link StateSnapshot} to encode.
+     * @return  The encoded reply.
+     */
+    public byte[] encode(StateSnapshot snapshot) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 32 * snapshot.capacity());
+        int count = snapshot.size();
+        if (this.protocol != Protocol.BINARY) {
+            out.writeBytes((TEXT_SNAPSHOT + count + "\n").getBytes(StandardCharsets.UTF_8));
+        } else {
+            out.write(BinaryFrameDecoder.OP_SNAPSHOT);
+            out.write(count >> 8);
+            out.write(count);
+        }
+
+        for (int id = 0; id < snapshot.capacity(); id++) {
+            NetService service = snapshot.getService(id);
+            if (service != null) {
+                out.writeBytes(encode(service, snapshot.getValue(id)));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode changes recorded by the {@link ChangeHistory} in the protocol of this connection. Text clients receive
+     * HISTORY=&lt;count&gt; followed by one line per change: its time (ISO-8601), the client's address and KEY=value.
+     * Binary clients receive {@link BinaryFrameDecoder#OP_HISTORY} with the id and the two-byte count followed by
+     * the eight-byte time, the one-byte length of the address, the address and the set frame of every change.
+     * @param service   The {@link NetService} the changes belong to.
+     * @param entries   The changes, oldest first.
+     * @return  The encoded reply.
+     */
+    public byte[] encodeHistory(NetService service, List<ChangeHistory.Entry> entries) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 64 * entries.size());
+        if (this.protocol != Protocol.BINARY) {
+            out.writeBytes((TEXT_HISTORY + entries.size() + "\n").getBytes(StandardCharsets.UTF_8));
+            for (ChangeHistory.Entry entry: entries) {
+                out.writeBytes((Instant.ofEpochMilli(entry.getTime()) + " " + entry.getClient() + " ").getBytes(StandardCharsets.UTF_8));
+                out.writeBytes(encode(service, entry.getValue()));
+            }
+            return out.toByteArray();
+        }
+
+        out.writeBytes(ByteBuffer.allocate(5).put((byte) BinaryFrameDecoder.OP_HISTORY).putShort((short) service.getId())
+                .putShort((short) entries.size()).array());
+        for (ChangeHistory.Entry entry: entries) {
+            byte[] client = entry.getClient().getBytes(StandardCharsets.US_ASCII);
+            out.writeBytes(ByteBuffer.allocate(9).putLong(entry.getTime()).put((byte) client.length).array());
+            out.writeBytes(client);
+            out.writeBytes(encode(service, entry.getValue()));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the answer to a malformed request. Only text clients are answered, binary requests cannot be malformed
+     * this way.
+     * @param message   The reason.
+     * @return  The encoded reply.
+     */
+    public byte[] encodeError(String message) {
+        return (TEXT_ERROR + message + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode the answer to a request for a service which does not exist. Text clients receive ERROR=&lt;reason&gt;,
+     * binary clients {@link BinaryFrameDecoder#OP_GET} with the requested id.
+     * @param name      The requested key or id.
+     * @param id        The requested id, or -1 if a key was requested.
+     * @return  The encoded reply.
+     */
+    public byte[] encodeMissing(String name, int id) {
+        if (this.protocol != Protocol.BINARY) {
+            return (TEXT_ERROR + "unknown service " + name + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        return new byte[] { (byte) BinaryFrameDecoder.OP_GET, (byte) (id >> 8), (byte) id };
+    }
+
+    /**
+     * Encode the answer to an applied conditional change. Text clients receive OK=KEY version=&lt;version&gt;,
+     * binary clients {@link BinaryFrameDecoder#OP_IF_VERSION} with the service's id and the version.
+     * @param service   The changed {@link NetService}.
+     * @param version   The version the value was set as.
+     * @return  The encoded reply.
+     */
+    public byte[] encodeVersion(NetService service, long version) {
+        if (this.protocol != Protocol.BINARY) {
+            return (TEXT_OK + service.getKey() + TEXT_VERSION + version + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        return ByteBuffer.allocate(11).put((byte) BinaryFrameDecoder.OP_IF_VERSION).putShort((short) service.getId())
+                .putLong(version).array();
+    }
+
+    /**
+     * Encode the answer to a conditional change which was rejected because the service is at another version.
+     * Text clients receive CONFLICT=KEY version=&lt;version&gt; value=&lt;value&gt;, binary clients
+     * {@link BinaryFrameDecoder#OP_CONFLICT} with the service's id and version followed by its set frame.
+     * @param service   The {@link NetService} whose change was rejected.
+     * @param current   Its current {@link NetService.Revision}.
+     * @return  The encoded reply.
+     */
+    public byte[] encodeConflict(NetService service, NetService.Revision current) {
+        if (this.protocol != Protocol.BINARY) {
+            return (TEXT_CONFLICT + service.getKey() + TEXT_VERSION + current.getVersion() + " value=" + current.getValue() + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] frame = encode(service, current.getValue());
+        return ByteBuffer.allocate(11 + frame.length).put((byte) BinaryFrameDecoder.OP_CONFLICT)
+                .putShort((short) service.getId()).putLong(current.getVersion()).put(frame).array();
+    }
+
+    /**
+     * Send a message to the client and close the connection. Binary clients receive {@link BinaryFrameDecoder#OP_CLOSE} instead.
+     * @param message   The message to send before closing.
+     */
+    public void close(String message) {
+        try {
+            if (this.protocol == Protocol.BINARY) {
+                this.channel.write(ByteBuffer.wrap(new byte[] { (byte) BinaryFrameDecoder.OP_CLOSE }));
+            } else {
+                this.channel.write(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+            }
+        } catch (IOException e) {
+            // client already gone
+            // exception can be ignored.
+        }
+        close();
+    }
+
+    /**
+     * Close the connection.
+     */
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // exception can be ignored.
+        }
+    }
+
+    /**
+     * Returns whether the connection is still open.
+     * @return  Return true if the channel is open. Otherwise return false.
+     */
+    public boolean isOpen() { return this.channel.isOpen(); }
+
+    /**
+     * Returns the time of the last successful read.
+     * @return  The time as returned by {@link System#nanoTime()}.
+     */
+    public long getLastRead() { return this.lastRead; }
+
+    /**
+     * Returns the time the client was last pinged. Only used by the thread advancing the {@link TimerWheel}.
+     * @return  The time as returned by {@link System#nanoTime()}.
+     */
+    public long getLastPing() { return this.lastPing; }
+
+    public void setLastPing(long pLastPing) { this.lastPing = pLastPing; }
+
+    /**
+     * Returns the {@link TimerWheel.Timeout} watching this connection.
+     * @return  The {@link TimerWheel.Timeout}, or null if idle timeouts are disabled.
+     */
+    public TimerWheel.Timeout getTimeout() { return this.timeout; }
+
+    public void setTimeout(TimerWheel.Timeout pTimeout) { this.timeout = pTimeout; }
+
+    /**
+     * Returns the {@link TokenBucket} limiting the rate of frames of this connection.
+     * @return  The {@link TokenBucket}, or null if the rate is not limited.
+     */
+    public TokenBucket getRateLimit() { return this.rateLimit; }
+
+    public void setRateLimit(TokenBucket pRateLimit) { this.rateLimit = pRateLimit; }
+
+    /**
+     * Returns how long reading has to pause until the connection is back within its rate.
+     * @return  The delay in nanoseconds, 0 if reading may continue.
+     */
+    public long getThrottleDelay() { return this.rateLimit == null ? 0 : this.rateLimit.getDelay(); }
+
+    /**
+     * Returns whether frames of this connection are currently rejected by its rate limit.
+     * @return  Return true if the rate limit has been exceeded. Otherwise return false.
+     */
+    public boolean isLimited() { return this.limited; }
+
+    public void setLimited(boolean pLimited) { this.limited = pLimited; }
+
+    /**
+     * Returns the address of the client.
+     * @return  The client's address without leading slash.
+     */
+    public String getAddress() { return this.address; }
+
+    /**
+     * Returns the {@link Batch} collecting changes of this connection.
+     * @return  The {@link Batch}.
+     */
+    public Batch getBatch() { return this.batch; }
+
+    /**
+     * Make the next change of a service received on this connection conditional on its version.
+     * @param id        The id of the {@link NetService}.
+     * @param version   The version it must be at.
+     */
+    public void setCondition(int id, long version) {
+        this.conditionId = id;
+        this.conditionVersion = version;
+    }
+
+    /**
+     * Returns the condition set for a change of a service and clears it.
+     * @param id        The id of the changed {@link NetService}.
+     * @return  The version it must be at, {@link NetService#ANY_VERSION} if the change is unconditional or
+     *          {@link #MISMATCHED_CONDITION} if the condition was set for another service.
+     */
+    public long takeCondition(int id) {
+        if (this.conditionId < 0) {
+            return NetService.ANY_VERSION;
+        }
+        long version = this.conditionId == id ? this.conditionVersion : MISMATCHED_CONDITION;
+        this.conditionId = -1;
+        return version;
+    }
+
+    /**
+     * Returns the {@link ServiceProvider} serving this connection.
+     * @return  The {@link ServiceProvider}.
+     */
+    public ServiceProvider getProvider() { return this.provider; }
+}
@@ -0,0 +1,110 @@
+package dev;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes connections which stay idle for too long, e.g. phones which went away without closing their connection,
+ * and optionally sends heartbeats to idle clients. Every connection holds a single {@link TimerWheel.Timeout}; reading
+ * only records the time of the last read, the timeout itself is re-armed lazily whenever it expires.
+ *
+ * With heartbeats enabled, a client which has been silent for the heartbeat interval receives a PING and is expected
+ * to answer (with PONG or any other frame) before the idle timeout has passed.
+ *
+ * Idle timeouts are opt-in: clients which only send when the user changes a value, like the iOS app, stay silent for
+ * as long as nobody touches them and would otherwise be evicted while still in use.
+ */
+public class ConnectionLifecycle {
+
+    private TimerWheel wheel;
+    private long idleNanos;
+    private long heartbeatNanos;
+
+    /**
+     * Class constructor.
+     *
+     * @param pWheel            The {@link TimerWheel} driving the timeouts.
+     * @param pIdleTimeout      Time in milliseconds after which a silent connection is closed.
+     * @param pHeartbeat        Time in milliseconds after which a silent client is pinged, 0 disables heartbeats.
+     */
+    public ConnectionLifecycle(TimerWheel pWheel, long pIdleTimeout, long pHeartbeat) {
+        this.wheel = pWheel;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(pIdleTimeout);
+        this.heartbeatNanos = pHeartbeat > 0 && pHeartbeat < pIdleTimeout ? TimeUnit.MILLISECONDS.toNanos(pHeartbeat) : 0;
+    }
+
+    /**
+     * Start watching a newly accepted connection.
+     * @param connection    The {@link Connection}.
+     */
+    public void register(Connection connection) {
+        TimerWheel.Timeout timeout = new TimerWheel.Timeout(() -> check(connection));
+        connection.setTimeout(timeout);
+        this.wheel.schedule(timeout, TimeUnit.NANOSECONDS.toMillis(nextCheck(connection, System.nanoTime())));
+    }
+
+    /**
+     * Stop watching a closed connection.
+     * @param connection    The {@link Connection}.
+     */
+    public void unregister(Connection connection) {
+        TimerWheel.Timeout timeout = connection.getTimeout();
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Evict the connection if it has been idle for too long, ping it if a heartbeat is due, and re-arm its timeout.
+     * Runs on the thread advancing the {@link TimerWheel}.
+     * @param connection    The {@link Connection}.
+     */
+    private void check(Connection connection) {
+        if (!connection.isOpen()) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        long idle = now - connection.getLastRead();
+
+        if (idle >= this.idleNanos) {
+            Log.warn("{} has been idle for {} ms, closing connection!", connection.getAddress(), TimeUnit.NANOSECONDS.toMillis(idle));
+            Metrics.EVICTIONS.increment();
+            // tell the client, which may only notice a closed connection when it receives something
+            connection.close("Closing connection!");
+            connection.getProvider().onDisconnect(connection);
+            return;
+        }
+
+        if (this.heartbeatNanos > 0 && idle >= this.heartbeatNanos && answered(connection)) {
+            Log.debug("Sending heartbeat to {}.", connection.getAddress());
+            connection.setLastPing(now);
+            connection.getProvider().sendControl(connection, Connection.CONTROL_PING);
+        }
+
+        this.wheel.schedule(connection.getTimeout(), TimeUnit.NANOSECONDS.toMillis(nextCheck(connection, now)));
+    }
+
+    /**
+     * Returns the time until the next check of a connection is due.
+     * @param connection    The {@link Connection}.
+     * @param now           The current time.
+     * @return  The delay in nanoseconds.
+     */
+    private long nextCheck(Connection connection, long now) {
+        long lastRead = connection.getLastRead();
+        long due = lastRead + this.idleNanos;
+        if (this.heartbeatNanos > 0 && answered(connection)) {
+            due = Math.min(due, lastRead + this.heartbeatNanos);
+        }
+        return Math.max(0, due - now);
+    }
+
+    /**
+     * Returns whether the client has sent anything since it was last pinged.
+     * @param connection    The {@link Connection}.
+     * @return  Return true if no ping is outstanding. Otherwise return false.
+     */
+    private static boolean answered(Connection connection) {
+        return connection.getLastRead() - connection.getLastPing() > 0;
+    }
+}
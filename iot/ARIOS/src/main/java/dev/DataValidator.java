@@ -1,92 +1,343 @@
 package dev;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class DataValidator {
 
     /**
-     * Validates incoming packet content.
-     * @param data      Array containing key, separator, and value.
-     * @param provider  {@link ServiceProvider} who called function.
+     * Enum to determine the outcome of a packet validation.
+     */
+    public enum Result {
+        VALID,
+        FORMAT,
+        UNKNOWN_TYPE,
+        INJECTION,
+        VALUE_FORMAT
+    }
+
+    /**
+     * {@link NetService.ServiceType}s indexed by the length of their name. Names of the current types have
+     * distinct lengths, which makes the length a perfect hash; colliding names share a bucket.
+     */
+    private static final NetService.ServiceType[][] TYPES_BY_LENGTH = createTypeTable();
+
+    /**
+     * Suffix making a change conditional on the version of the service, e.g. TOGGLE=true IF version=4.
+     * No valid value ends with it and digits, so a received value ending that way always carries a condition.
+     */
+    public static final String CONDITION = " IF version=";
+
+    private static final String TRUE = "true";
+    private static final String FALSE = "false";
+
+    /**
+     * Validates incoming packet content and reports invalid packets.
+     * @param key       Received key, or null if the packet has no separator.
+     * @param value     Received value.
+     * @param client    Address of the client the packet was received from.
      * @return Return true if data is valid. Otherwise return false.
      */
-    public boolean validData(String[] data, ServiceProvider provider) {
-        // right format?
-        if(data.length != 2) {
-            System.err.println("Received packet [" + provider.getSocket().getInetAddress().toString().substring(1) + "]'" + data + "' doesn't conform format!");
+    public boolean validData(CharSequence key, CharSequence value, String client) {
+        return report(validate(key, value), key, value, client);
+    }
+
+    /**
+     * Validates a value addressed to a known {@link NetService.ServiceType} and reports invalid values.
+     * @param type      {@link NetService.ServiceType} of the addressed service.
+     * @param value     Received value.
+     * @param client    Address of the client the value was received from.
+     * @return Return true if value is valid. Otherwise return false.
+     */
+    public boolean validData(NetService.ServiceType type, CharSequence value, String client) {
+        return report(checkValue(type, value), type.name(), value, client);
+    }
+
+    /**
+     * Report the outcome of a validation.
+     * @param result    The {@link Result} of the validation.
+     * @param key       Received key.
+     * @param value     Received value.
+     * @param client    Address of the client the packet was received from.
+     * @return Return true if result is {@link Result#VALID}. Otherwise return false.
+     */
+    private boolean report(Result result, CharSequence key, CharSequence value, String client) {
+        if (result == Result.VALID) {
+            // everything is fine
+            return true;
+        }
+
+        Metrics.reject(result);
+        if (!Log.isEnabled(Log.Level.WARN)) {
             return false;
         }
 
-        // valid key?
-        List<String> services = new ArrayList<>();
-        for (NetService.ServiceType s: NetService.ServiceType.values()) {
-            services.add(s.toString());
+        // key and value may be views on a reused buffer, copy them before they are logged asynchronously
+        switch (result) {
+            case FORMAT:
+                Log.warn("Received packet [{}] doesn't conform format!", client);
+                break;
+            case UNKNOWN_TYPE:
+                Log.warn("Couldn't find matching ServiceType [{}]'{}={}'!", client, String.valueOf(key), String.valueOf(value));
+                break;
+            case INJECTION:
+                Log.warn("Received value contains possible injection [{}]'{}={}'!", client, String.valueOf(key), String.valueOf(value));
+                break;
+            case VALUE_FORMAT:
+                Log.warn("Received value is in wrong format [{}]'{}={}'!", client, String.valueOf(key), String.valueOf(value));
+                break;
         }
-        if(!services.contains(data[0])) {
-            System.err.println("Couldn't find matching ServiceType [" + provider.getSocket().getInetAddress().toString().substring(1) + "]'" + data + "'!");
-            return false;
+        return false;
+    }
+
+    /**
+     * Validates incoming packet content without allocating.
+     * @param key       Received key, or null if the packet has no separator.
+     * @param value     Received value.
+     * @return  The {@link Result} of the validation.
+     */
+    public Result validate(CharSequence key, CharSequence value) {
+        // right format?
+        if (key == null || value == null) {
+            return Result.FORMAT;
+        }
+
+        // valid key?
+        NetService.ServiceType type = lookupType(key);
+        if (type == null) {
+            return Result.UNKNOWN_TYPE;
         }
 
         // valid value?
-        if(checkDataForInjection(data[1])) {
-            System.err.println("Received value contains possible injection [" + provider.getSocket().getInetAddress().toString().substring(1) + "]'" + data + "'!");
-            return false;
+        return checkValue(type, value);
+    }
+
+    /**
+     * Resolve a key to its {@link NetService.ServiceType} without allocating. The key may carry an instance
+     * number separated by {@link NetService#INSTANCE_SEPARATOR}.
+     * @param key       Key to resolve.
+     * @return  The matching {@link NetService.ServiceType} or null if there is none.
+     */
+    public static NetService.ServiceType lookupType(CharSequence key) {
+        int length = typeLength(key);
+        if (length >= TYPES_BY_LENGTH.length || (length < key.length() && parseInstance(key) < 0)) {
+            return null;
         }
 
-        if(!checkForValueFormat(data[0], data[1])) {
-            System.err.println("Received value is in wrong format [" + provider.getSocket().getInetAddress().toString().substring(1) + "]'" + data + "'!");
-            return false;
+        for (NetService.ServiceType type: TYPES_BY_LENGTH[length]) {
+            if (regionEquals(type.name(), key, length)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse the instance number of a key without allocating.
+     * @param key       Key to parse, e.g. TOGGLE or TOGGLE.1.
+     * @return  The instance number, 0 if the key carries none, or -1 if it is malformed.
+     */
+    public static int parseInstance(CharSequence key) {
+        int start = typeLength(key) + 1;
+        if (start > key.length()) {
+            return 0;
+        }
+        if (start == key.length() || key.length() - start > 5) {
+            return -1;
         }
 
-        // everthing is fine
-        return true;
+        int instance = 0;
+        for (int i = start; i < key.length(); i++) {
+            int digit = Character.digit(key.charAt(i), 10);
+            if (digit == -1) {
+                return -1;
+            }
+            instance = instance * 10 + digit;
+        }
+        return instance;
     }
 
     /**
-     * Verify that received data-value does not contain possible injection.
-     * @param data      {@link String} to check.
-     * @return Return true if data contains possible injection. Otherwise return false.
+     * Find the {@link #CONDITION} at the end of a value without allocating.
+     * @param value     Value to search.
+     * @return  The position of the condition, or -1 if the value carries none.
      */
-    private boolean checkDataForInjection(String data) {
-        if (data.contains("<") && data.contains(">")) {
-            return true;
+    public static int findCondition(CharSequence value) {
+        int digits = 0;
+        while (digits < value.length() && Character.isDigit(value.charAt(value.length() - 1 - digits))) {
+            digits++;
         }
 
-        return false;
+        int start = value.length() - digits - CONDITION.length();
+        if (digits == 0 || start < 0) {
+            return -1;
+        }
+        for (int i = 0; i < CONDITION.length(); i++) {
+            if (value.charAt(start + i) != CONDITION.charAt(i)) {
+                return -1;
+            }
+        }
+        return start;
     }
 
     /**
-     * Checks value for correctness regarding its corresponding key.
-     * @param key       Corresponding key.
-     * @param value     Value to check.
-     * @return  Return true if value is valid. Otherwise return false.
+     * Parse the version of a {@link #CONDITION}.
+     * @param value     Value carrying the condition.
+     * @param start     Position of the condition as returned by {@link #findCondition(CharSequence)}.
+     * @return  The expected version, or -1 if it is out of range.
      */
-    private boolean checkForValueFormat(String key, String value) {
-        if (key.equals("TOGGLE") || key.equals("CHECKBOX")) {
-            if (value.equals("true") || value.equals(("false"))) {
-                return true;
-            } else {
-                return false;
+    public static long parseVersion(CharSequence value, int start) {
+        int first = start + CONDITION.length();
+        if (value.length() - first > 18) {
+            return -1;
+        }
+
+        long version = 0;
+        for (int i = first; i < value.length(); i++) {
+            version = version * 10 + Character.digit(value.charAt(i), 10);
+        }
+        return version;
+    }
+
+    /**
+     * Returns the length of the type name at the start of a key.
+     * @param key       Key to check.
+     * @return  The position of the instance separator, or the key's length if there is none.
+     */
+    private static int typeLength(CharSequence key) {
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) == NetService.INSTANCE_SEPARATOR) {
+                return i;
             }
-        } else if (key.equals("COLORPICKER")) {
-            // not in correct format
-            if (value.length() != 6) {
-                return false;
+        }
+        return key.length();
+    }
+
+    /**
+     * Parse a colour in hex-format (RRGGBB).
+     * @param value     Value to parse.
+     * @return  The colour as 0xRRGGBB or -1 if value is no valid colour.
+     */
+    public static int parseColor(CharSequence value) {
+        if (value.length() != 6) {
+            return -1;
+        }
+
+        int color = 0;
+        for (int i = 0; i < 6; i++) {
+            int digit = Character.digit(value.charAt(i), 16);
+            if (digit == -1) {
+                return -1;
             }
+            color = (color << 4) | digit;
+        }
+        return color;
+    }
+
+    /**
+     * Format a colour in hex-format (RRGGBB).
+     * @param color     The colour as 0xRRGGBB.
+     * @return  The formatted colour.
+     */
+    public static String formatColor(int color) {
+        char[] digits = new char[6];
+        for (int i = 5; i >= 0; i--) {
+            digits[i] = Character.toUpperCase(Character.forDigit(color & 0xF, 16));
+            color >>>= 4;
+        }
+        return new String(digits);
+    }
+
+    /**
+     * Checks value for possible injection and correctness regarding its type in a single pass.
+     * @param type      Corresponding {@link NetService.ServiceType}.
+     * @param value     Value to check.
+     * @return  The {@link Result} of the check.
+     */
+    private Result checkValue(NetService.ServiceType type, CharSequence value) {
+        boolean opening = false;
+        boolean closing = false;
+        boolean format;
+
+        switch (type) {
+            case TOGGLE:
+            case CHECKBOX:
+                format = equals(TRUE, value) || equals(FALSE, value);
+                break;
+            case COLORPICKER:
+                format = parseColor(value) != -1;
+                break;
+            case TEXTFIELD:
+            default:
+                // textfield needs to fit into a txt-record and must not be mistaken for a conditional change
+                format = value.length() <= NetService.MAX_TEXT_LENGTH && findCondition(value) < 0;
+                break;
+        }
+
+        // a value of valid boolean or colour format cannot contain brackets
+        if (format && type != NetService.ServiceType.TEXTFIELD) {
+            return Result.VALID;
+        }
+
+        boolean control = false;
+        for (int i = 0; i < value.length() && !(opening && closing); i++) {
+            char c = value.charAt(i);
+            opening |= c == '<';
+            closing |= c == '>';
+            // a line break would end the frame of text clients, other control characters break the service file
+            control |= c < 0x20 || c == 0x7F;
+        }
+
+        if (opening && closing) {
+            return Result.INJECTION;
+        }
+        return format && !control ? Result.VALID : Result.VALUE_FORMAT;
+    }
 
-            // check if input is in hex-format
-            for (int i = 1; i < value.length(); i++) {
-                if (Character.digit(value.charAt(i), 16) == -1) {
-                    return false;
-                }
+    /**
+     * Compare a {@link String} with a {@link CharSequence} without allocating.
+     * @param expected  The expected {@link String}.
+     * @param actual    The {@link CharSequence} to compare.
+     * @return  Return true if both contain the same characters. Otherwise return false.
+     */
+    private static boolean equals(String expected, CharSequence actual) {
+        return expected.length() == actual.length() && regionEquals(expected, actual, actual.length());
+    }
+
+    /**
+     * Compare a {@link String} with the start of a {@link CharSequence} without allocating.
+     * @param expected  The expected {@link String}.
+     * @param actual    The {@link CharSequence} to compare.
+     * @param length    The number of characters of actual to compare.
+     * @return  Return true if expected equals the first length characters of actual. Otherwise return false.
+     */
+    private static boolean regionEquals(String expected, CharSequence actual, int length) {
+        if (expected.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (expected.charAt(i) != actual.charAt(i)) {
+                return false;
             }
-            return true;
-        } else if (key.equals("TEXTFIELD")) {
-            // textfield requires no further checks
-            return true;
-        } else {
-            return true;
         }
+        return true;
+    }
+
+    /**
+     * Build the lookup table of {@link NetService.ServiceType}s by name length.
+     * @return  The lookup table.
+     */
+    private static NetService.ServiceType[][] createTypeTable() {
+        int maxLength = 0;
+        for (NetService.ServiceType type: NetService.ServiceType.values()) {
+            maxLength = Math.max(maxLength, type.name().length());
+        }
+
+        NetService.ServiceType[][] table = new NetService.ServiceType[maxLength + 1][0];
+        for (NetService.ServiceType type: NetService.ServiceType.values()) {
+            NetService.ServiceType[] bucket = table[type.name().length()];
+            NetService.ServiceType[] extended = new NetService.ServiceType[bucket.length + 1];
+            System.arraycopy(bucket, 0, extended, 0, bucket.length);
+            extended[bucket.length] = type;
+            table[type.name().length()] = extended;
+        }
+        return table;
     }
 }
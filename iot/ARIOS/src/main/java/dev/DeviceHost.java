@@ -0,0 +1,168 @@
+package dev;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many virtual devices in one process. Every device is a {@link ServiceProvider} with its own service file,
+ * port, services, journal and clients, but all of them are served by one {@link EventLoop} thread and one
+ * {@link TimerWheel}, and their service files and journals are written by one shared pool of workers, instead of
+ * a handful of threads per device.
+ *
+ * Devices are defined one per line of a configuration file, with the same inputs as on the command line:
+ * <pre>
+ * # service file path                  port    inputs
+ * /etc/avahi/services/lamp.service     5001    -b -p
+ * /etc/avahi/services/display.service  5002    -t -t -c
+ * </pre>
+ * Empty lines and lines starting with # are ignored.
+ */
+public class DeviceHost {
+
+    private static final String COMMENT = "#";
+
+    private EventLoop loop;
+    private TimerWheel timers;
+    private ScheduledExecutorService workers;
+    private List<ServiceProvider> providers = new ArrayList<>();
+
+    /**
+     * Class constructor.
+     *
+     * @param pWorkers      Number of workers writing service files and journals.
+     * @param tickMillis    Resolution of the shared {@link TimerWheel} in milliseconds.
+     * @throws IOException  If the {@link EventLoop} cannot be opened.
+     */
+    public DeviceHost(int pWorkers, long tickMillis) throws IOException {
+        this.loop = new EventLoop();
+        this.timers = new TimerWheel(tickMillis);
+        this.loop.setTimers(this.timers);
+
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = Executors.newScheduledThreadPool(pWorkers, runnable -> {
+            Thread thread = new Thread(runnable, "Worker-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Add the devices defined in a configuration file. The port of every device is bound right away.
+     * @param config    The path of the configuration file.
+     * @throws IOException  If the file cannot be read.
+     * @throws IllegalArgumentException If a definition is invalid or its port cannot be bound.
+     */
+    public void load(Path config) throws IOException {
+        List<String> lines = Files.readAllLines(config, StandardCharsets.UTF_8);
+        Set<Path> paths = new HashSet<>();
+
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith(COMMENT)) {
+                continue;
+            }
+
+            String[] fields = line.split("\\s+");
+            String location = config + ":" + (i + 1) + ": ";
+            if (fields.length < 3) {
+                throw new IllegalArgumentException(location + "expected <file path> <port> <inputs>");
+            }
+            if (!fields[0].contains(".service")) {
+                throw new IllegalArgumentException(location + fields[0] + " is no Avahi service file");
+            }
+            if (!paths.add(Paths.get(fields[0]).toAbsolutePath().normalize())) {
+                throw new IllegalArgumentException(location + fields[0] + " is used by another device");
+            }
+
+            int port;
+            try {
+                port = Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(location + "port " + fields[1] + " is not a number");
+            }
+
+            List<NetService> services = new ArrayList<>();
+            for (int f = 2; f < fields.length; f++) {
+                NetService service = Main.extractService(fields[f]);
+                if (service == null) {
+                    throw new IllegalArgumentException(location + "unknown input " + fields[f]);
+                }
+                services.add(service);
+            }
+
+            try {
+                add(fields[0], port, services);
+            } catch (IOException | IllegalArgumentException e) {
+                throw new IllegalArgumentException(location + "port " + port + " is not available");
+            }
+        }
+    }
+
+    /**
+     * Add a device. Its port is bound right away.
+     * @param path      The path of the device's Avahi service file.
+     * @param port      The port of the device, 0 for a random port.
+     * @param services  The {@link NetService}s provided by the device.
+     * @return  The {@link ServiceProvider} of the device, to be configured before {@link #run()}.
+     * @throws IOException  If the port cannot be bound.
+     */
+    public ServiceProvider add(String path, int port, List<NetService> services) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.bind(new InetSocketAddress(port));
+        } catch (IOException | IllegalArgumentException e) {
+            server.close();
+            throw e;
+        }
+
+        ServiceProvider provider = new ServiceProvider(services, path, server.socket().getLocalPort(), ServiceProvider.ServerMode.SELECTOR);
+        provider.setServer(server);
+        provider.host(this.loop, this.timers, this.workers);
+        this.providers.add(provider);
+        return provider;
+    }
+
+    /**
+     * Start all devices and serve their clients on the calling thread until {@link #close()} is called.
+     */
+    public void run() {
+        for (ServiceProvider provider: this.providers) {
+            provider.start();
+        }
+        Log.info("Hosting {} devices.", this.providers.size());
+
+        this.loop.run();
+    }
+
+    /**
+     * Shut all devices down, writing their outstanding changes, and stop the shared threads.
+     */
+    public void close() {
+        for (ServiceProvider provider: this.providers) {
+            if (provider.getRunning()) {
+                provider.toggleRunningRecord(false);
+            }
+        }
+
+        this.loop.close();
+        this.workers.shutdown();
+    }
+
+    /**
+     * Returns the hosted devices.
+     * @return  The {@link ServiceProvider} of every device.
+     */
+    public List<ServiceProvider> getProviders() { return this.providers; }
+}
@@ -0,0 +1,244 @@
+package dev;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded, non-blocking I/O loop serving any number of {@link Connection}s with one {@link Selector}.
+ * The listeners of several {@link ServiceProvider}s may share one loop, see {@link DeviceHost}; a failing client
+ * is closed without affecting any other.
+ */
+public class EventLoop {
+
+    private Selector selector;
+
+    private Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private TimerWheel timers;
+
+    private volatile boolean running = true;
+
+    /**
+     * Class constructor.
+     *
+     * @throws IOException  If the {@link Selector} cannot be opened.
+     */
+    public EventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Register a bound {@link ServerSocketChannel} whose accepted clients are handed to provider. May be called from
+     * any thread; the channel is registered by the loop's thread.
+     * @param server    The bound {@link ServerSocketChannel}.
+     * @param provider  The {@link ServiceProvider} handling the accepted clients.
+     * @throws IOException  If the channel cannot be switched to non-blocking mode.
+     */
+    public void register(ServerSocketChannel server, ServiceProvider provider) throws IOException {
+        server.configureBlocking(false);
+        this.tasks.add(() -> {
+            try {
+                server.register(this.selector, SelectionKey.OP_ACCEPT, provider);
+            } catch (IOException e) {
+                Log.error("An error occurred while registering port {}.", provider.getPort(), e);
+            }
+        });
+        this.selector.wakeup();
+    }
+
+    /**
+     * Advance a {@link TimerWheel} from this loop, so its timeouts run on the loop's thread.
+     * Must be called before {@link #run()}.
+     * @param pTimers   The {@link TimerWheel}.
+     */
+    public void setTimers(TimerWheel pTimers) {
+        this.timers = pTimers;
+    }
+
+    /**
+     * Select and dispatch ready channels until {@link #close()} is called.
+     */
+    public void run() {
+        long selectTimeout = this.timers == null ? 0 : this.timers.getTickMillis();
+
+        while (this.running) {
+            try {
+                this.selector.select(selectTimeout);
+            } catch (IOException e) {
+                Log.error("An error occurred while selecting.", e);
+                break;
+            }
+
+            runTasks();
+            enableWrites();
+
+            for (Iterator<SelectionKey> key_iterator = this.selector.selectedKeys().iterator(); key_iterator.hasNext();) {
+                SelectionKey key = key_iterator.next();
+                key_iterator.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isAcceptable()) {
+                    accept(key);
+                    continue;
+                }
+                try {
+                    if (key.isWritable()) {
+                        write(key);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                } catch (RuntimeException e) {
+                    // keep serving all other clients
+                    Connection connection = (Connection) key.attachment();
+                    Log.error("An error occurred while serving {}.", connection.getAddress(), e);
+                    key.cancel();
+                    connection.close();
+                    connection.getProvider().onDisconnect(connection);
+                }
+            }
+
+            if (this.timers != null) {
+                this.timers.advance(System.nanoTime());
+            }
+        }
+
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            // selector already closed
+            // exception can be ignored.
+        }
+    }
+
+    /**
+     * Accept a pending client and register it for reading.
+     * @param key       The {@link SelectionKey} of the {@link ServerSocketChannel}.
+     */
+    private void accept(SelectionKey key) {
+        ServiceProvider provider = (ServiceProvider) key.attachment();
+
+        try {
+            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+            if (channel == null) {
+                return;
+            }
+
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel, provider);
+            connection.attach(this, channel.register(this.selector, SelectionKey.OP_READ, connection));
+            provider.onConnect(connection);
+        } catch (IOException e) {
+            Log.error("An error occurred while accepting a connection on port {}", provider.getPort(), e);
+        }
+    }
+
+    /**
+     * Read available bytes of a client and hand complete packets to its {@link ServiceProvider}.
+     * @param key       The {@link SelectionKey} of the client.
+     */
+    private void read(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        ServiceProvider provider = connection.getProvider();
+
+        long delay = connection.getThrottleDelay();
+        if (delay > 0 && this.timers != null) {
+            // stop reading from this client only, until it is back within its rate
+            Metrics.THROTTLED.increment();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            this.timers.schedule(new TimerWheel.Timeout(() -> resumeReading(key)), TimeUnit.NANOSECONDS.toMillis(delay) + 1);
+            return;
+        }
+
+        try {
+            if (connection.read() >= 0) {
+                return;
+            }
+        } catch (IOException e) {
+            // connection reset
+        }
+
+        key.cancel();
+        connection.close();
+        provider.onDisconnect(connection);
+    }
+
+    /**
+     * Watch a throttled client for input again.
+     * @param key       The {@link SelectionKey} of the client.
+     */
+    private void resumeReading(SelectionKey key) {
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Push pending changes of a client as soon as its channel is writable. May be called from any thread.
+     * @param connection    The {@link Connection} with pending changes.
+     */
+    public void requestWrite(Connection connection) {
+        this.pendingWrites.add(connection);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Run the tasks handed to the loop's thread.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Register interest in writability for all clients with pending changes.
+     */
+    private void enableWrites() {
+        Connection connection;
+        while ((connection = this.pendingWrites.poll()) != null) {
+            SelectionKey key = connection.getKey();
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Push pending changes of a client. Stops watching writability once everything has been written.
+     * @param key       The {@link SelectionKey} of the client.
+     */
+    private void write(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+
+        try {
+            if (!connection.flush()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            // connection reset
+            key.cancel();
+            connection.close();
+            connection.getProvider().onDisconnect(connection);
+        }
+    }
+
+    /**
+     * Stop the loop and release the {@link Selector}.
+     */
+    public void close() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+}
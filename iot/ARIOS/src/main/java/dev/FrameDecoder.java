@@ -0,0 +1,182 @@
+package dev;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental decoder for frames in the format &lt;SERVICE_TYPE&gt;=&lt;value&gt;\n.
+ * Bytes are read into a fixed buffer and frames are located in place. Key and value are exposed as reusable
+ * {@link CharSequence} views on the buffer, so no intermediate {@link String}s are created. The views are only
+ * valid until the next call to {@link #next()} or {@link #fill(ReadableByteChannel)}.
+ */
+public class FrameDecoder {
+
+    /**
+     * Enum to determine the outcome of {@link #next()}.
+     */
+    public enum Status {
+        /** A complete frame is available. */
+        FRAME,
+        /** A frame exceeding the maximum frame length has been discarded. */
+        OVERSIZED,
+        /** No complete frame is buffered. */
+        NONE,
+        /** The stream cannot be decoded any further (binary protocol only). */
+        MALFORMED
+    }
+
+    /**
+     * View on a range of the buffer. Bytes are exposed as ISO-8859-1 characters, which is sufficient for
+     * validation; {@link #toString()} decodes the range as UTF-8.
+     */
+    public static class Slice implements CharSequence {
+        private byte[] bytes;
+        private int offset;
+        private int length;
+
+        Slice(byte[] pBytes) {
+            this.bytes = pBytes;
+        }
+
+        void set(int pOffset, int pLength) {
+            this.offset = pOffset;
+            this.length = pLength;
+        }
+
+        @Override
+        public int length() { return this.length; }
+
+        @Override
+        public char charAt(int index) { return (char) (this.bytes[this.offset + index] & 0xFF); }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            Slice slice = new Slice(this.bytes);
+            slice.set(this.offset + start, end - start);
+            return slice;
+        }
+
+        @Override
+        public String toString() { return new String(this.bytes, this.offset, this.length, StandardCharsets.UTF_8); }
+    }
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024;
+
+    private ByteBuffer buffer;
+    private byte[] bytes;
+
+    private Slice key;
+    private Slice value;
+    private boolean hasSeparator;
+
+    private int frameStart = 0;
+    private int scan = 0;
+    private int separator = -1;
+    private boolean discarding = false;
+
+    /**
+     * Class constructor.
+     *
+     * @param maxFrameLength    Maximum length of a frame including its line break.
+     */
+    public FrameDecoder(int maxFrameLength) {
+        this.buffer = ByteBuffer.allocate(maxFrameLength);
+        this.bytes = this.buffer.array();
+        this.key = new Slice(this.bytes);
+        this.value = new Slice(this.bytes);
+    }
+
+    /**
+     * Add bytes which have already been read from the connection.
+     * @param src       The bytes to add.
+     */
+    public void put(ByteBuffer src) {
+        this.buffer.put(src);
+    }
+
+    /**
+     * Read available bytes from the channel into the buffer.
+     * @param channel   The channel to read from.
+     * @return  The number of bytes read, or -1 at end of stream.
+     * @throws IOException  If reading fails.
+     */
+    public int fill(ReadableByteChannel channel) throws IOException {
+        return channel.read(this.buffer);
+    }
+
+    /**
+     * Locate the next buffered frame.
+     * @return  {@link Status#FRAME} if {@link #key()} and {@link #value()} point to a new frame,
+     *          {@link Status#OVERSIZED} if an oversized frame has been dropped, {@link Status#NONE} if more bytes are needed.
+     */
+    public Status next() {
+        int end = this.buffer.position();
+
+        for (int i = this.scan; i < end; i++) {
+            byte b = this.bytes[i];
+
+            if (b == '=' && this.separator < 0) {
+                this.separator = i;
+            } else if (b == '\n') {
+                Status status = this.discarding ? Status.OVERSIZED : Status.FRAME;
+                if (!this.discarding) {
+                    int frameEnd = (i > this.frameStart && this.bytes[i - 1] == '\r') ? i - 1 : i;
+                    this.hasSeparator = this.separator >= 0 && this.separator < frameEnd;
+                    if (this.hasSeparator) {
+                        this.key.set(this.frameStart, this.separator - this.frameStart);
+                        this.value.set(this.separator + 1, frameEnd - this.separator - 1);
+                    } else {
+                        this.key.set(this.frameStart, 0);
+                        this.value.set(this.frameStart, frameEnd - this.frameStart);
+                    }
+                }
+
+                this.frameStart = i + 1;
+                this.scan = i + 1;
+                this.separator = -1;
+                this.discarding = false;
+                return status;
+            }
+        }
+
+        compact(end);
+        return Status.NONE;
+    }
+
+    /**
+     * Returns the key of the current frame.
+     * @return  The key, or null if the frame contains no separator.
+     */
+    public CharSequence key() { return this.hasSeparator ? this.key : null; }
+
+    /**
+     * Returns the value of the current frame, or the whole frame if it contains no separator.
+     * @return  The value.
+     */
+    public CharSequence value() { return this.value; }
+
+    /**
+     * Move the incomplete frame to the start of the buffer. Starts discarding if it fills the whole buffer.
+     * @param end       End of the buffered bytes.
+     */
+    private void compact(int end) {
+        int remaining = end - this.frameStart;
+
+        if (this.discarding || remaining == this.bytes.length) {
+            // frame exceeds maximum length, drop everything until its line break
+            this.discarding = true;
+            remaining = 0;
+        } else if (this.frameStart > 0) {
+            System.arraycopy(this.bytes, this.frameStart, this.bytes, 0, remaining);
+        }
+
+        if (this.separator >= 0) {
+            this.separator = this.discarding ? -1 : this.separator - this.frameStart;
+        }
+        this.buffer.position(remaining);
+        this.frameStart = 0;
+        this.scan = remaining;
+    }
+}
@@ -0,0 +1,137 @@
+package dev;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets in the style of HdrHistogram: every power of two is split into
+ * {@link #SUB_BUCKETS} linear buckets, so recorded values are kept with a relative error below 12.5 % from nanoseconds
+ * up to centuries.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private String name;
+    private String help;
+
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private LongAdder count = new LongAdder();
+    private LongAdder sum = new LongAdder();
+    private volatile long max = 0;
+
+    /**
+     * Class constructor.
+     *
+     * @param pName     Name of the metric, e.g. arios_update_seconds.
+     * @param pHelp     Description of the metric.
+     */
+    public LatencyHistogram(String pName, String pHelp) {
+        this.name = pName;
+        this.help = pHelp;
+    }
+
+    /**
+     * Record a latency.
+     * @param nanos     The latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        this.buckets.incrementAndGet(index(nanos));
+        this.count.increment();
+        this.sum.add(nanos);
+        if (nanos > this.max) {
+            this.max = nanos;
+        }
+    }
+
+    /**
+     * Record the time passed since start.
+     * @param startNanos    Start as returned by {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the latency below which the given fraction of all recorded latencies lies.
+     * @param quantile  The quantile, between 0 and 1.
+     * @return  The latency in nanoseconds, or 0 if nothing has been recorded.
+     */
+    public long getQuantile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = this.buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), this.max);
+            }
+        }
+        return this.max;
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     * @return  The count.
+     */
+    public long getCount() { return this.count.sum(); }
+
+    /**
+     * Returns the sum of all recorded latencies.
+     * @return  The sum in nanoseconds.
+     */
+    public long getSum() { return this.sum.sum(); }
+
+    /**
+     * Returns the highest recorded latency.
+     * @return  The maximum in nanoseconds.
+     */
+    public long getMax() { return this.max; }
+
+    public String getName() { return this.name; }
+
+    public String getHelp() { return this.help; }
+
+    /**
+     * Returns the bucket of a value.
+     * @param value     The value, not negative.
+     * @return  The index of the bucket.
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the highest value falling into a bucket.
+     * @param index     The index of the bucket.
+     * @return  The upper bound of the bucket.
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
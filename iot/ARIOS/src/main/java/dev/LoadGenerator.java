@@ -0,0 +1,413 @@
+package dev;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Load generator for sizing deployments and catching regressions. Runs a real {@link ServiceProvider} on a loopback
+ * port and drives it with simulated clients, each owning one instance of every service type in the mix. The latency
+ * of a frame is the time from when it is due to be sent until its value appears in the service file, so a provider
+ * that falls behind is charged for the frames queued up behind a slow one.
+ *
+ * TOGGLE and CHECKBOX values carry a single bit, which cannot tell two frames apart. A client therefore only flips
+ * such a service once its previous flip is visible in the file; frames due in the meantime are held back.
+ */
+public class LoadGenerator {
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    /**
+     * Frame sent to a service, waiting to become visible in the service file.
+     */
+    private static class Pending {
+        private String value;
+        private long sent;
+
+        Pending(String pValue, long pSent) {
+            this.value = pValue;
+            this.sent = pSent;
+        }
+    }
+
+    /**
+     * Frames in flight for one service instance, owned by one client.
+     */
+    private static class Tracker {
+        private NetService.ServiceType type;
+        private String key;
+        private ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private int sequence = 0;
+        private boolean flag = false;
+
+        Tracker(NetService.ServiceType pType, String pKey) {
+            this.type = pType;
+            this.key = pKey;
+        }
+
+        /**
+         * Returns the next value to send, or null if a single-bit value is still in flight.
+         * @return  The value.
+         */
+        synchronized String next() {
+            switch (this.type) {
+                case TOGGLE:
+                case CHECKBOX:
+                    if (!this.pending.isEmpty()) {
+                        return null;
+                    }
+                    this.flag = !this.flag;
+                    return String.valueOf(this.flag);
+                case COLORPICKER:
+                    // never repeat the initial FFFFFF
+                    return String.format("%06X", this.sequence++ % 0xFFFFFF);
+                case TEXTFIELD:
+                default:
+                    return "load" + this.sequence++;
+            }
+        }
+
+        synchronized void sent(String value, long sent) {
+            this.pending.add(new Pending(value, sent));
+        }
+
+        /**
+         * Account all frames up to the one carrying the value found in the file. Values of a service are applied in
+         * the order they were sent, so every earlier frame has been applied (or superseded) as well.
+         * @param value     The value in the service file.
+         * @param now       Time of the observation.
+         * @param latencies The histogram to record into.
+         * @return  The number of frames accounted.
+         */
+        synchronized int observe(String value, long now, LatencyHistogram latencies) {
+            boolean found = false;
+            for (Pending p: this.pending) {
+                if (p.value.equals(value)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return 0;
+            }
+
+            int applied = 0;
+            Pending p;
+            do {
+                p = this.pending.poll();
+                latencies.record(now - p.sent);
+                applied++;
+            } while (!p.value.equals(value));
+            return applied;
+        }
+
+        synchronized int inFlight() { return this.pending.size(); }
+    }
+
+    private int clients = 8;
+    private int rate = 100;
+    private long durationMillis = 10000;
+    private long pollMicros = 500;
+    private Map<NetService.ServiceType, Integer> mix = new HashMap<>();
+    private ServiceProvider.ServerMode mode = ServiceProvider.ServerMode.SELECTOR;
+    private long flushInterval = 200;
+    private int flushThreshold = 64;
+
+    private LatencyHistogram latencies = new LatencyHistogram("load_latency", "Time from send until visible in the service file.");
+    private LongAdder sentFrames = new LongAdder();
+    private LongAdder appliedFrames = new LongAdder();
+    private LongAdder heldBack = new LongAdder();
+    private Map<String, Tracker> trackers = new HashMap<>();
+
+    /**
+     * Run a load test from the command line.
+     * @param args  The options, see {@link #usage()}.
+     */
+    public static void main(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        Log.setLevel(Log.Level.WARN);
+        generator.parse(args);
+
+        try {
+            generator.run();
+        } catch (IOException | InterruptedException e) {
+            System.err.println("An error occurred while generating load: " + e);
+            System.exit(1);
+        }
+        Log.flush(1000);
+        System.exit(0);
+    }
+
+    /**
+     * Parse command line options.
+     * @param args  The options.
+     */
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String s = args[i];
+            String value = i + 1 < args.length ? args[i + 1] : "";
+            try {
+                if (s.equals("--clients")) { this.clients = Integer.parseInt(value); i++; }
+                else if (s.equals("--rate")) { this.rate = Integer.parseInt(value); i++; }
+                else if (s.equals("--duration")) { this.durationMillis = Long.parseLong(value) * 1000; i++; }
+                else if (s.equals("--poll")) { this.pollMicros = Long.parseLong(value); i++; }
+                else if (s.equals("--mix")) { parseMix(value); i++; }
+                else if (s.equals("-m") || s.equals("--mode")) { this.mode = ServiceProvider.ServerMode.valueOf(value.toUpperCase()); i++; }
+                else if (s.equals("--flush-interval")) { this.flushInterval = Long.parseLong(value); i++; }
+                else if (s.equals("--flush-threshold")) { this.flushThreshold = Integer.parseInt(value); i++; }
+                else if (s.equals("--log-level")) { Log.setLevel(Log.Level.valueOf(value.toUpperCase())); i++; }
+                else { usage(); }
+            } catch (IllegalArgumentException e) {
+                usage();
+            }
+        }
+
+        if (this.mix.isEmpty()) {
+            for (NetService.ServiceType type: NetService.ServiceType.values()) {
+                this.mix.put(type, 1);
+            }
+        }
+        if (this.clients <= 0 || this.rate < 0 || this.durationMillis <= 0 || this.mix.values().stream().allMatch(w -> w == 0)) {
+            usage();
+        }
+        if (this.mode == ServiceProvider.ServerMode.BLOCKING && this.clients > 1) {
+            System.err.println("Blocking mode serves one client at a time, all other clients wait for it.");
+        }
+    }
+
+    /**
+     * Parse a mix like toggle=1,textfield=2.
+     * @param value     The mix.
+     */
+    private void parseMix(String value) {
+        for (String part: value.split(",")) {
+            String[] weight = part.split("=");
+            if (weight.length != 2) {
+                throw new IllegalArgumentException(part);
+            }
+            int w = Integer.parseInt(weight[1]);
+            if (w < 0) {
+                throw new IllegalArgumentException(part);
+            }
+            this.mix.put(NetService.ServiceType.valueOf(weight[0].toUpperCase()), w);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("" +
+                "USAGE: java dev.LoadGenerator [<options>]\n\n" +
+                "OPTIONS:\n" +
+                "  --clients <n>\t\t Number of simulated clients (default 8).\n" +
+                "  --rate <n>\t\t Frames per second per client, 0 sends as fast as possible (default 100).\n" +
+                "  --duration <s>\t Time to send in seconds (default 10).\n" +
+                "  --mix <type=w,...>\t Weights of toggle, colorpicker, textfield and checkbox frames (default all 1).\n" +
+                "  --poll <us>\t\t Interval the service file is polled at (default 500).\n" +
+                "  -m, --mode <mode>\t Server mode of the provider (default selector).\n" +
+                "  --flush-interval <ms>\t Flush interval of the provider (default 200).\n" +
+                "  --flush-threshold <n>\t Flush threshold of the provider (default 64).\n" +
+                "  --log-level <level>\t Log level of the provider (default warn).");
+        System.exit(1);
+    }
+
+    /**
+     * Start the provider, send for the configured duration, wait for outstanding frames and print the report.
+     * @throws IOException          If the provider or a client fails.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private void run() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("arios-load");
+        Path file = directory.resolve("load.service");
+
+        // every client owns one instance per type in the mix, instance numbers follow client order
+        List<NetService> services = new ArrayList<>();
+        List<List<Tracker>> owned = new ArrayList<>();
+        for (int c = 0; c < this.clients; c++) {
+            List<Tracker> own = new ArrayList<>();
+            for (NetService.ServiceType type: NetService.ServiceType.values()) {
+                int weight = this.mix.getOrDefault(type, 0);
+                if (weight == 0) {
+                    continue;
+                }
+                NetService service = new NetService(type, NetService.getDefaultValue(type));
+                services.add(service);
+                Tracker tracker = new Tracker(type, c == 0 ? type.toString() : type.toString() + NetService.INSTANCE_SEPARATOR + c);
+                this.trackers.put(tracker.key.toLowerCase(), tracker);
+                for (int w = 0; w < weight; w++) {
+                    own.add(tracker);
+                }
+            }
+            owned.add(own);
+        }
+
+        ServiceProvider provider = new ServiceProvider(services, file.toString(), 0, this.mode);
+        provider.setFlushPolicy(this.flushInterval, this.flushThreshold);
+        provider.setDaemon(true);
+        provider.start();
+        if (!provider.awaitListening(10000)) {
+            throw new IOException("provider did not start listening");
+        }
+
+        Thread poller = new Thread(() -> poll(file), "Load-Poller");
+        poller.setDaemon(true);
+        poller.start();
+
+        List<Thread> senders = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int c = 0; c < this.clients; c++) {
+            List<Tracker> own = owned.get(c);
+            int offset = c;
+            Thread sender = new Thread(() -> send(provider.getPort(), own, offset, start), "Load-Client-" + c);
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender: senders) {
+            sender.join();
+        }
+        long sendNanos = System.nanoTime() - start;
+
+        // give the provider time to write out what is still in flight
+        long drainDeadline = System.nanoTime() + (this.flushInterval + 5000) * 1_000_000L;
+        while (inFlight() > 0 && System.nanoTime() < drainDeadline) {
+            Thread.sleep(10);
+        }
+        long totalNanos = System.nanoTime() - start;
+
+        report(sendNanos, totalNanos);
+
+        provider.toggleRunningRecord(false);
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    /**
+     * Send frames at the configured rate until the duration has passed.
+     * @param port      The port of the provider.
+     * @param own       The services of the client, repeated by weight.
+     * @param offset    Offset into the services, so clients do not move in lockstep.
+     * @param start     Start of the test.
+     */
+    private void send(int port, List<Tracker> own, int offset, long start) {
+        long period = this.rate == 0 ? 0 : 1_000_000_000L / this.rate;
+        long end = start + this.durationMillis * 1_000_000L;
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+
+            for (long i = 0; ; i++) {
+                long due = period == 0 ? System.nanoTime() : start + i * period;
+                if (due >= end) {
+                    break;
+                }
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+
+                Tracker tracker = own.get((int) ((i + offset) % own.size()));
+                String value = tracker.next();
+                if (value == null) {
+                    this.heldBack.increment();
+                    continue;
+                }
+
+                tracker.sent(value, due);
+                out.write((tracker.key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8));
+                this.sentFrames.increment();
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Client stopped: " + e);
+        }
+    }
+
+    /**
+     * Read the service file in a loop and account every value that became visible.
+     * @param file  The service file.
+     */
+    private void poll(Path file) {
+        Map<String, String> seen = new HashMap<>();
+        long interval = this.pollMicros * 1000;
+
+        while (true) {
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            } catch (NoSuchFileException e) {
+                // replaced by the provider right now
+                continue;
+            } catch (IOException e) {
+                System.err.println("An error occurred while polling the service file: " + e);
+                return;
+            }
+            long now = System.nanoTime();
+
+            for (String line: lines) {
+                int open = line.indexOf("<txt-record>");
+                int close = line.indexOf("</txt-record>");
+                int separator = line.indexOf('=', open);
+                if (open < 0 || close < 0 || separator < 0 || separator > close) {
+                    continue;
+                }
+                String key = line.substring(open + "<txt-record>".length(), separator);
+                String value = line.substring(separator + 1, close);
+                if (value.equals(seen.get(key))) {
+                    continue;
+                }
+                seen.put(key, value);
+
+                Tracker tracker = this.trackers.get(key);
+                if (tracker != null) {
+                    this.appliedFrames.add(tracker.observe(value, now, this.latencies));
+                }
+            }
+
+            LockSupport.parkNanos(interval);
+        }
+    }
+
+    private long inFlight() {
+        long count = 0;
+        for (Tracker tracker: this.trackers.values()) {
+            count += tracker.inFlight();
+        }
+        return count;
+    }
+
+    /**
+     * Print throughput and latency percentiles.
+     * @param sendNanos     Time spent sending.
+     * @param totalNanos    Time until the last frame was visible, or the drain timed out.
+     */
+    private void report(long sendNanos, long totalNanos) {
+        long sent = this.sentFrames.sum();
+        long applied = this.appliedFrames.sum();
+
+        System.out.printf("clients %d, rate %s, mode %s, flush interval %d ms, threshold %d%n", this.clients,
+                this.rate == 0 ? "unlimited" : this.rate + "/s", this.mode.toString().toLowerCase(), this.flushInterval, this.flushThreshold);
+        System.out.printf("sent      %d frames in %.1f s (%.0f frames/s)%n", sent, sendNanos / 1e9, sent / (sendNanos / 1e9));
+        System.out.printf("applied   %d frames in %.1f s (%.0f frames/s)%n", applied, totalNanos / 1e9, applied / (totalNanos / 1e9));
+        System.out.printf("held back %d single-bit frames, lost %d frames%n", this.heldBack.sum(), inFlight());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            System.out.printf("%-9s %.3f ms%n", PERCENTILE_NAMES[i], this.latencies.getQuantile(PERCENTILES[i]) / 1e6);
+        }
+        System.out.printf("max       %.3f ms%n", this.latencies.getMax() / 1e6);
+        System.out.printf("(latency resolution: service file polled every %d us)%n", this.pollMicros);
+    }
+}
@@ -0,0 +1,234 @@
+package dev;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger. Callers only claim a preallocated event in a lock-free ring buffer and store references to
+ * their arguments; a background thread formats the event ("{}" is replaced by the next argument) and prints it.
+ * Events of a disabled level cost a single comparison. If the ring is full, events are dropped and counted instead of
+ * blocking the caller. A {@link Throwable} passed after the arguments is printed with its stack trace below the event.
+ */
+public final class Log {
+
+    /**
+     * Enum to determine the severity of an event.
+     */
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF
+    }
+
+    /**
+     * Preallocated slot of the ring buffer.
+     */
+    private static class Event {
+        private volatile long sequence = -1;
+        private Level level;
+        private String pattern;
+        private Object arg0;
+        private Object arg1;
+        private Object arg2;
+        private Object arg3;
+        private Throwable thrown;
+    }
+
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final Event[] RING = new Event[CAPACITY];
+    private static final AtomicLong CLAIMED = new AtomicLong();
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static volatile long consumed = 0;
+
+    private static volatile int threshold = Level.INFO.ordinal();
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            RING[i] = new Event();
+        }
+
+        Thread consumer = new Thread(Log::consume, "Log-Writer");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    private Log() { }
+
+    /**
+     * Set the minimum {@link Level} of events to log.
+     * @param level     The minimum {@link Level}.
+     */
+    public static void setLevel(Level level) { threshold = level.ordinal(); }
+
+    /**
+     * Returns whether events of a {@link Level} are logged.
+     * @param level     The {@link Level} to check.
+     * @return  Return true if the level is enabled. Otherwise return false.
+     */
+    public static boolean isEnabled(Level level) { return level.ordinal() >= threshold; }
+
+    /**
+     * Returns the number of events dropped because the ring buffer was full.
+     * @return  The number of dropped events.
+     */
+    public static long getDropped() { return DROPPED.get(); }
+
+    public static void debug(String pattern) { log(Level.DEBUG, pattern, null, null, null, null, null); }
+    public static void debug(String pattern, Object a0) { log(Level.DEBUG, pattern, a0, null, null, null, null); }
+    public static void debug(String pattern, Object a0, Object a1) { log(Level.DEBUG, pattern, a0, a1, null, null, null); }
+    public static void debug(String pattern, Object a0, Object a1, Object a2) { log(Level.DEBUG, pattern, a0, a1, a2, null, null); }
+    public static void debug(String pattern, Object a0, Object a1, Object a2, Object a3) { log(Level.DEBUG, pattern, a0, a1, a2, a3, null); }
+
+    public static void info(String pattern) { log(Level.INFO, pattern, null, null, null, null, null); }
+    public static void info(String pattern, Object a0) { log(Level.INFO, pattern, a0, null, null, null, null); }
+    public static void info(String pattern, Object a0, Object a1) { log(Level.INFO, pattern, a0, a1, null, null, null); }
+    public static void info(String pattern, Object a0, Object a1, Object a2) { log(Level.INFO, pattern, a0, a1, a2, null, null); }
+    public static void info(String pattern, Object a0, Object a1, Object a2, Object a3) { log(Level.INFO, pattern, a0, a1, a2, a3, null); }
+
+    public static void warn(String pattern) { log(Level.WARN, pattern, null, null, null, null, null); }
+    public static void warn(String pattern, Object a0) { log(Level.WARN, pattern, a0, null, null, null, null); }
+    public static void warn(String pattern, Object a0, Object a1) { log(Level.WARN, pattern, a0, a1, null, null, null); }
+    public static void warn(String pattern, Object a0, Object a1, Object a2) { log(Level.WARN, pattern, a0, a1, a2, null, null); }
+    public static void warn(String pattern, Object a0, Object a1, Object a2, Object a3) { log(Level.WARN, pattern, a0, a1, a2, a3, null); }
+    public static void warn(String pattern, Throwable thrown) { log(Level.WARN, pattern, null, null, null, null, thrown); }
+    public static void warn(String pattern, Object a0, Throwable thrown) { log(Level.WARN, pattern, a0, null, null, null, thrown); }
+    public static void warn(String pattern, Object a0, Object a1, Throwable thrown) { log(Level.WARN, pattern, a0, a1, null, null, thrown); }
+    public static void warn(String pattern, Object a0, Object a1, Object a2, Throwable thrown) { log(Level.WARN, pattern, a0, a1, a2, null, thrown); }
+
+    public static void error(String pattern) { log(Level.ERROR, pattern, null, null, null, null, null); }
+    public static void error(String pattern, Object a0) { log(Level.ERROR, pattern, a0, null, null, null, null); }
+    public static void error(String pattern, Object a0, Object a1) { log(Level.ERROR, pattern, a0, a1, null, null, null); }
+    public static void error(String pattern, Object a0, Object a1, Object a2) { log(Level.ERROR, pattern, a0, a1, a2, null, null); }
+    public static void error(String pattern, Object a0, Object a1, Object a2, Object a3) { log(Level.ERROR, pattern, a0, a1, a2, a3, null); }
+    public static void error(String pattern, Throwable thrown) { log(Level.ERROR, pattern, null, null, null, null, thrown); }
+    public static void error(String pattern, Object a0, Throwable thrown) { log(Level.ERROR, pattern, a0, null, null, null, thrown); }
+    public static void error(String pattern, Object a0, Object a1, Throwable thrown) { log(Level.ERROR, pattern, a0, a1, null, null, thrown); }
+    public static void error(String pattern, Object a0, Object a1, Object a2, Throwable thrown) { log(Level.ERROR, pattern, a0, a1, a2, null, thrown); }
+
+    /**
+     * Wait until all events logged so far have been printed, at most for the given time.
+     * @param timeoutMillis Maximum time to wait in milliseconds.
+     */
+    public static void flush(long timeoutMillis) {
+        long target = CLAIMED.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (consumed < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Claim a slot of the ring buffer and publish an event into it.
+     * @param level     The {@link Level} of the event.
+     * @param pattern   The message, containing a "{}" for every argument.
+     * @param a0        First argument or null.
+     * @param a1        Second argument or null.
+     * @param a2        Third argument or null.
+     * @param a3        Fourth argument or null.
+     * @param thrown    {@link Throwable} to print with its stack trace or null.
+     */
+    private static void log(Level level, String pattern, Object a0, Object a1, Object a2, Object a3, Throwable thrown) {
+        if (level.ordinal() < threshold) {
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = CLAIMED.get();
+            if (sequence - consumed >= CAPACITY) {
+                DROPPED.incrementAndGet();
+                return;
+            }
+        } while (!CLAIMED.compareAndSet(sequence, sequence + 1));
+
+        Event event = RING[(int) sequence & MASK];
+        event.level = level;
+        event.pattern = pattern;
+        event.arg0 = a0;
+        event.arg1 = a1;
+        event.arg2 = a2;
+        event.arg3 = a3;
+        event.thrown = thrown;
+        // publish, makes the fields above visible to the consumer
+        event.sequence = sequence;
+    }
+
+    /**
+     * Format and print published events in order. Runs on the background thread.
+     */
+    private static void consume() {
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        long idleNanos = TimeUnit.MICROSECONDS.toNanos(100);
+
+        while (true) {
+            long next = consumed;
+            Event event = RING[(int) next & MASK];
+
+            if (event.sequence != next) {
+                long drops = DROPPED.get();
+                if (drops != reportedDrops) {
+                    System.err.println("Dropped " + (drops - reportedDrops) + " log events.");
+                    reportedDrops = drops;
+                }
+                LockSupport.parkNanos(idleNanos);
+                idleNanos = Math.min(idleNanos * 2, TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+            idleNanos = TimeUnit.MICROSECONDS.toNanos(100);
+
+            line.setLength(0);
+            format(line, event.pattern, event.arg0, event.arg1, event.arg2, event.arg3);
+            PrintStream out = event.level.ordinal() >= Level.WARN.ordinal() ? System.err : System.out;
+            Level level = event.level;
+            Throwable thrown = event.thrown;
+
+            // release the slot before printing, so producers are never held up by the console
+            event.pattern = null;
+            event.arg0 = null;
+            event.arg1 = null;
+            event.arg2 = null;
+            event.arg3 = null;
+            event.thrown = null;
+            consumed = next + 1;
+
+            out.println(level == Level.DEBUG ? "DEBUG " + line : line);
+            if (thrown != null) {
+                thrown.printStackTrace(out);
+            }
+        }
+    }
+
+    /**
+     * Append pattern to line, replacing each "{}" by the next argument.
+     * @param line      The {@link StringBuilder} to append to.
+     * @param pattern   The message pattern.
+     * @param a0        First argument.
+     * @param a1        Second argument.
+     * @param a2        Third argument.
+     * @param a3        Fourth argument.
+     */
+    private static void format(StringBuilder line, String pattern, Object a0, Object a1, Object a2, Object a3) {
+        int arg = 0;
+        int start = 0;
+        int placeholder;
+        while ((placeholder = pattern.indexOf("{}", start)) >= 0) {
+            line.append(pattern, start, placeholder);
+            switch (arg++) {
+                case 0: line.append(a0); break;
+                case 1: line.append(a1); break;
+                case 2: line.append(a2); break;
+                case 3: line.append(a3); break;
+                default: line.append("{}"); break;
+            }
+            start = placeholder + 2;
+        }
+        line.append(pattern, start, pattern.length());
+    }
+}
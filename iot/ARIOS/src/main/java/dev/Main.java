@@ -1,10 +1,15 @@
 package dev;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class Main {
 
@@ -12,6 +17,27 @@ public class Main {
     private static List<NetService> services;
     private static String path;
     private static int port;
+    private static ServerSocketChannel server;
+    private static ServiceProvider.ServerMode mode = ServiceProvider.ServerMode.BLOCKING;
+    private static long flushInterval = 200;
+    private static int flushThreshold = 64;
+    private static int historyCapacity = ChangeHistory.DEFAULT_CAPACITY;
+    private static int metricsPort = -1;
+    private static int adminPort = -1;
+    private static long idleTimeout = 0;
+    private static long heartbeat = 0;
+    private static Map<NetService.ServiceType, Long> coalesceWindows = new EnumMap<>(NetService.ServiceType.class);
+    private static double rateLimit = 0;
+    private static int rateBurst = 0;
+    private static ServiceProvider.RateLimitAction rateLimitAction = ServiceProvider.RateLimitAction.THROTTLE;
+    private static int workers = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static DeviceHost host;
+    private static Map<NetService.ServiceType, Actuator> actuatorsByType = new EnumMap<>(NetService.ServiceType.class);
+    private static Set<NetService.ServiceType> latestOnly = EnumSet.noneOf(NetService.ServiceType.class);
+    private static int actuatorWorkers = Runtime.getRuntime().availableProcessors();
+    private static ActuatorPipeline actuators;
+    private static volatile MetricsEndpoint metrics;
+    private static volatile AdminChannel admin;
 
     private static boolean initializedParams = false;
 
@@ -26,9 +52,22 @@ public class Main {
     public static void main(String[] args) {
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            if(initializedParams && provider.getRunning()) {
+            if(initializedParams && provider != null && provider.getRunning()) {
                 provider.toggleRunningRecord(false);
             }
+            if (initializedParams && host != null) {
+                host.close();
+            }
+            if (actuators != null) {
+                actuators.close(1000);
+            }
+            if (metrics != null) {
+                metrics.stop();
+            }
+            if (admin != null) {
+                admin.close();
+            }
+            Log.flush(1000);
         }, "Shutdown-Thread"));
 
         if (args.length == 0) {
@@ -50,13 +89,19 @@ public class Main {
             }
         }
 
+        // hosting many devices
+        if (input[0].equals("--host")) {
+            extractHostParams(input);
+            return;
+        }
+
         // checking file path
         if (!input[0].contains(".service")) { commandPrompt(promptEnum.NO_FILE, ""); }
         else { path = input[0]; }
 
         // checking port
         try {
-            if (!checkPortAvailability(Integer.parseInt(input[1]))) {
+            if (!bindPort(Integer.parseInt(input[1]))) {
                 commandPrompt(promptEnum.PORT_UNAVAILABLE, "");
             }
         } catch (NumberFormatException e) {
@@ -66,24 +111,235 @@ public class Main {
         // checking elements
         if(input.length <= 2) { commandPrompt(promptEnum.NO_SERVICES, ""); }
 
-        String[] serviceParams = new String[input.length - 2];
-        for(int i = 0; i < serviceParams.length; i++) {
-            serviceParams[i] = input[2+i];
-        }
-
         services = new ArrayList<>();
-        for(String s: serviceParams) {
-            if (s.equals("-b") || s.equals("--button")) { services.add(new NetService(NetService.ServiceType.TOGGLE, "false")); }
-            else if (s.equals("-p") || s.equals("--colorpicker")) { services.add(new NetService(NetService.ServiceType.COLORPICKER, "FFFFFF")); }
-            else if (s.equals("-t") || s.equals("--textfield")) { services.add(new NetService(NetService.ServiceType.TEXTFIELD, "empty")); }
-            else if (s.equals("-c") || s.equals("--checkbox")) { services.add(new NetService(NetService.ServiceType.CHECKBOX, "false")); }
-            else { commandPrompt(promptEnum.UNKNOWN_SERVICE, s); }
+        for(int i = 2; i < input.length; i++) {
+            NetService service = extractService(input[i]);
+            if (service != null) { services.add(service); }
+            else { i = extractOption(input, i); }
         }
 
+        if(services.isEmpty()) { commandPrompt(promptEnum.NO_SERVICES, ""); }
+
         initializedParams = true;
         startProviderSocket();
     }
 
+    /**
+     * Extracting parameters of host mode from input array: --host &lt;config&gt; [&lt;options&gt;].
+     * @param input The input array.
+     */
+    private static void extractHostParams(String[] input) {
+        if (input.length < 2) { commandPrompt(promptEnum.HOST_CONFIG, "No configuration file given"); }
+
+        for(int i = 2; i < input.length; i++) {
+            i = extractOption(input, i);
+        }
+
+        try {
+            host = new DeviceHost(workers, ServiceProvider.getTimerTick(coalesceWindows.values()));
+            host.load(Paths.get(input[1]));
+        } catch (IOException e) {
+            commandPrompt(promptEnum.HOST_CONFIG, "An error occurred while reading " + input[1]);
+        } catch (IllegalArgumentException e) {
+            commandPrompt(promptEnum.HOST_CONFIG, e.getMessage());
+        }
+        if (host.getProviders().isEmpty()) { commandPrompt(promptEnum.NO_SERVICES, ""); }
+        if (adminPort > 0) { Log.warn("The admin channel is not available in host mode."); adminPort = -1; }
+
+        for (ServiceProvider device: host.getProviders()) {
+            configure(device);
+        }
+
+        initializedParams = true;
+        startDeferredThread();
+        host.run();
+    }
+
+    /**
+     * Resolve an input to the {@link NetService} it stands for.
+     * @param s         The input, e.g. -b.
+     * @return  A new {@link NetService} or null if s is no input.
+     */
+    static NetService extractService(String s) {
+        if (s.equals("-b") || s.equals("--button")) { return new NetService(NetService.ServiceType.TOGGLE); }
+        else if (s.equals("-p") || s.equals("--colorpicker")) { return new NetService(NetService.ServiceType.COLORPICKER); }
+        else if (s.equals("-t") || s.equals("--textfield")) { return new NetService(NetService.ServiceType.TEXTFIELD); }
+        else if (s.equals("-c") || s.equals("--checkbox")) { return new NetService(NetService.ServiceType.CHECKBOX); }
+        return null;
+    }
+
+    /**
+     * Extract the option at the given position of the input array, including its value.
+     * @param input The input array.
+     * @param i     Position of the option.
+     * @return  The position of the last input consumed.
+     */
+    private static int extractOption(String[] input, int i) {
+        String s = input[i];
+        if (s.equals("-m") || s.equals("--mode")) { mode = extractMode(i + 1 < input.length ? input[++i] : ""); }
+        else if (s.equals("--log-level")) { Log.setLevel(extractLevel(i + 1 < input.length ? input[++i] : "")); }
+        else if (s.equals("--flush-interval")) { flushInterval = extractNumber(i + 1 < input.length ? input[++i] : ""); }
+        else if (s.equals("--flush-threshold")) { flushThreshold = (int) extractNumber(i + 1 < input.length ? input[++i] : ""); }
+        else if (s.equals("--history")) { historyCapacity = (int) extractNumber(i + 1 < input.length ? input[++i] : "", 0); }
+        else if (s.equals("--metrics-port")) { metricsPort = (int) extractNumber(i + 1 < input.length ? input[++i] : ""); }
+        else if (s.equals("--admin-port")) { adminPort = (int) extractNumber(i + 1 < input.length ? input[++i] : ""); }
+        else if (s.equals("--idle-timeout")) { idleTimeout = extractNumber(i + 1 < input.length ? input[++i] : "", 0); }
+        else if (s.equals("--heartbeat")) { heartbeat = extractNumber(i + 1 < input.length ? input[++i] : "", 0); }
+        else if (s.equals("--coalesce")) { extractCoalesceWindows(i + 1 < input.length ? input[++i] : ""); }
+        else if (s.equals("--rate-limit")) { rateLimit = extractRate(i + 1 < input.length ? input[++i] : ""); }
+        else if (s.equals("--rate-burst")) { rateBurst = (int) extractNumber(i + 1 < input.length ? input[++i] : ""); }
+        else if (s.equals("--rate-action")) { rateLimitAction = extractRateLimitAction(i + 1 < input.length ? input[++i] : ""); }
+        else if (s.equals("--actuator")) { extractActuator(i + 1 < input.length ? input[++i] : ""); }
+        else if (s.equals("--actuate-latest")) { extractLatestOnly(i + 1 < input.length ? input[++i] : ""); }
+        else if (s.equals("--actuator-workers")) { actuatorWorkers = (int) extractNumber(i + 1 < input.length ? input[++i] : ""); }
+        else if (s.equals("--workers")) { workers = (int) extractNumber(i + 1 < input.length ? input[++i] : ""); }
+        else { commandPrompt(promptEnum.UNKNOWN_SERVICE, s); }
+        return i;
+    }
+
+    /**
+     * Resolve the {@link ServiceProvider.ServerMode} given by its name.
+     * @param name      Name of the mode.
+     * @return  The matching {@link ServiceProvider.ServerMode}.
+     */
+    private static ServiceProvider.ServerMode extractMode(String name) {
+        for (ServiceProvider.ServerMode m: ServiceProvider.ServerMode.values()) {
+            if (m.toString().equalsIgnoreCase(name)) {
+                return m;
+            }
+        }
+        commandPrompt(promptEnum.UNKNOWN_MODE, name);
+        return null;
+    }
+
+    /**
+     * Parse coalescing windows given as TYPE=ms, separated by commas.
+     * @param value     The option value.
+     */
+    private static void extractCoalesceWindows(String value) {
+        for (String entry: value.split(",")) {
+            String[] window = entry.split("=");
+            NetService.ServiceType type = window.length == 2 ? DataValidator.lookupType(window[0].toUpperCase()) : null;
+            if (type == null) {
+                commandPrompt(promptEnum.OPTION_SYNTAX, entry);
+            }
+            coalesceWindows.put(type, extractNumber(window[1], 0));
+        }
+    }
+
+    /**
+     * Parse an actuator given as TYPE=simulated[:ms] or TYPE=exec:command.
+     * @param value     The option value.
+     */
+    private static void extractActuator(String value) {
+        int separator = value.indexOf('=');
+        NetService.ServiceType type = separator > 0 ? DataValidator.lookupType(value.substring(0, separator).toUpperCase()) : null;
+        if (type == null) {
+            commandPrompt(promptEnum.OPTION_SYNTAX, value);
+        }
+
+        String spec = value.substring(separator + 1);
+        if (spec.equals("simulated")) {
+            actuatorsByType.put(type, new SimulatedActuator(0));
+        } else if (spec.startsWith("simulated:")) {
+            actuatorsByType.put(type, new SimulatedActuator(extractNumber(spec.substring(10), 0)));
+        } else if (spec.startsWith("exec:") && spec.length() > 5) {
+            actuatorsByType.put(type, new ScriptActuator(spec.substring(5)));
+        } else {
+            commandPrompt(promptEnum.OPTION_SYNTAX, value);
+        }
+    }
+
+    /**
+     * Parse the types whose actuators only handle the latest pending value, separated by commas.
+     * @param value     The option value.
+     */
+    private static void extractLatestOnly(String value) {
+        for (String name: value.split(",")) {
+            NetService.ServiceType type = DataValidator.lookupType(name.toUpperCase());
+            if (type == null) {
+                commandPrompt(promptEnum.OPTION_SYNTAX, name);
+            }
+            latestOnly.add(type);
+        }
+    }
+
+    /**
+     * Resolve the {@link ServiceProvider.RateLimitAction} given by its name.
+     * @param name      Name of the action.
+     * @return  The matching {@link ServiceProvider.RateLimitAction}.
+     */
+    private static ServiceProvider.RateLimitAction extractRateLimitAction(String name) {
+        for (ServiceProvider.RateLimitAction a: ServiceProvider.RateLimitAction.values()) {
+            if (a.toString().equalsIgnoreCase(name)) {
+                return a;
+            }
+        }
+        commandPrompt(promptEnum.OPTION_SYNTAX, name);
+        return null;
+    }
+
+    /**
+     * Resolve the {@link Log.Level} given by its name.
+     * @param name      Name of the level.
+     * @return  The matching {@link Log.Level}.
+     */
+    private static Log.Level extractLevel(String name) {
+        for (Log.Level l: Log.Level.values()) {
+            if (l.toString().equalsIgnoreCase(name)) {
+                return l;
+            }
+        }
+        commandPrompt(promptEnum.UNKNOWN_LEVEL, name);
+        return null;
+    }
+
+    /**
+     * Parse a positive number given as option value.
+     * @param value     The option value.
+     * @return  The parsed number.
+     */
+    private static long extractNumber(String value) {
+        return extractNumber(value, 1);
+    }
+
+    /**
+     * Parse a number given as option value.
+     * @param value     The option value.
+     * @param minimum   The smallest accepted number.
+     * @return  The parsed number.
+     */
+    private static long extractNumber(String value, long minimum) {
+        try {
+            long number = Long.parseLong(value);
+            if (number >= minimum) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        commandPrompt(promptEnum.OPTION_FORMAT, value);
+        return 0;
+    }
+
+    /**
+     * Parse a positive rate given as option value, which may be fractional, e.g. 0.5 for one frame every two seconds.
+     * @param value     The option value.
+     * @return  The parsed rate.
+     */
+    private static double extractRate(String value) {
+        try {
+            double rate = Double.parseDouble(value);
+            if (rate > 0 && rate < Double.POSITIVE_INFINITY) {
+                return rate;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        commandPrompt(promptEnum.OPTION_FORMAT, value);
+        return 0;
+    }
+
     /**
      * Setup and start {@link ServiceProvider}.
      *
@@ -91,9 +347,83 @@ public class Main {
      * @author malte.josten@stud.uni-due.de
      */
     private static void startProviderSocket() {
-        provider = new ServiceProvider(services, path, port);
+        provider = new ServiceProvider(services, path, port, mode);
+        provider.setServer(server);
+        configure(provider);
 
         provider.start();
+        startDeferredThread();
+    }
+
+    /**
+     * Apply the options to a {@link ServiceProvider}.
+     * @param target    The {@link ServiceProvider} to configure.
+     */
+    private static void configure(ServiceProvider target) {
+        if (actuators == null && !actuatorsByType.isEmpty()) {
+            actuators = new ActuatorPipeline(actuatorWorkers);
+            actuatorsByType.forEach((type, actuator) -> actuators.setActuator(type, actuator, latestOnly.contains(type)));
+        }
+        if (actuators != null) {
+            target.setActuators(actuators);
+        }
+        target.setFlushPolicy(flushInterval, flushThreshold);
+        target.setHistoryCapacity(historyCapacity);
+        target.setTimeouts(idleTimeout, heartbeat);
+        coalesceWindows.forEach(target::setCoalesceWindow);
+        if (rateLimit > 0) {
+            target.setRateLimit(rateLimit, rateBurst > 0 ? rateBurst : (int) Math.ceil(rateLimit), rateLimitAction);
+        }
+    }
+
+    /**
+     * Start the metrics endpoint and the admin channel, if configured, on a thread of their own.
+     */
+    private static void startDeferredThread() {
+        if (metricsPort > 0 || adminPort > 0) {
+            Thread deferred = new Thread(Main::startDeferred, "Startup-Deferred");
+            deferred.setDaemon(true);
+            deferred.start();
+        }
+    }
+
+    /**
+     * Start everything not needed to serve clients once the {@link ServiceProvider}s are listening, so it does not
+     * delay the first accept.
+     */
+    private static void startDeferred() {
+        List<ServiceProvider> listeners = host != null ? host.getProviders() : List.of(provider);
+        try {
+            for (ServiceProvider listener: listeners) {
+                while (!listener.awaitListening(1000)) {
+                    if (!listener.getRunning()) {
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        if (metricsPort > 0) {
+            MetricsEndpoint endpoint = new MetricsEndpoint(metricsPort);
+            try {
+                endpoint.start();
+                metrics = endpoint;
+            } catch (IOException e) {
+                Log.error("An error occurred while starting the metrics endpoint @ port {}: {}", metricsPort, e.getMessage());
+            }
+        }
+
+        if (adminPort > 0) {
+            AdminChannel channel = new AdminChannel(provider, adminPort);
+            try {
+                channel.open();
+                admin = channel;
+            } catch (IOException e) {
+                Log.error("An error occurred while starting the admin channel @ port {}: {}", adminPort, e.getMessage());
+            }
+        }
     }
 
     /**
@@ -105,22 +435,60 @@ public class Main {
         switch (reason) {
             case HELP:
                 System.err.println("" +
-                        "USAGE: java Main <file path> <port> [<inputs>]\n\n" +
+                        "USAGE: java Main <file path> <port> [<inputs>]\n" +
+                        "       java Main --host <config> [<options>]\n\n" +
                         "ARGUMENTS:\n" +
                         "  <file path>\t\t Absolute path to Avahi service file.\n" +
                         "  <port>\t\t Port to use (0 for random port usage).\n" +
-                        "  <inputs>\t\t Service elements to make available.\n\n" +
+                        "  <inputs>\t\t Service elements to make available.\n" +
+                        "  <config>\t\t File defining one device per line: <file path> <port> <inputs>. All devices\n" +
+                        "\t\t\t are served by one process, sharing one event loop and a pool of workers.\n\n" +
                         "INPUTS (one per):\n" +
                         "  -b, --button\t\t A simple button element.\n" +
                         "  -p, --colorpicker\t A colorpicker element.\n" +
                         "  -t, --textfield\t A textfield element.\n" +
                         "  -c, --checkbox\t A checkbox element.\n\n" +
                         "OPTIONS:\n" +
+                        "  -m, --mode <mode>\t How clients are served: blocking (default, one client at a time),\n" +
+                        "\t\t\t selector (many clients on one thread) or threaded (one virtual thread per client).\n" +
+                        "  --flush-interval <ms>\t Maximum time a changed value stays unwritten (default 200).\n" +
+                        "  --flush-threshold <n>\t Number of changed values which forces a write (default 64).\n" +
+                        "  --history <n>\t\t Number of changes kept per service in <file path>.history for HISTORY\n" +
+                        "\t\t\t queries (default 256, 0 disables).\n" +
+                        "  --idle-timeout <ms>\t Close connections silent for this long (default 0, disabled).\n" +
+                        "  --heartbeat <ms>\t Send PING to clients silent for this long (default 0, disabled).\n" +
+                        "  --coalesce <type=ms,...>\t Apply only the latest change of a type within the window,\n" +
+                        "\t\t\t e.g. colorpicker=100.\n" +
+                        "  --rate-limit <n>\t Frames per second each client may send, e.g. 0.5 (default 0, unlimited).\n" +
+                        "  --rate-burst <n>\t Frames a client may send at once (default: the rate limit).\n" +
+                        "  --rate-action <action>\t throttle (default, pause reading) or reject (drop frames) above the limit.\n" +
+                        "  --log-level <level>\t One of debug, info (default), warn, error or off.\n" +
+                        "  --metrics-port <port>\t Serve metrics in Prometheus format on localhost:<port>/metrics and via JMX.\n" +
+                        "  --actuator <type=spec>\t Act on changes of a type, repeatable. spec is simulated[:<ms>] (in-memory,\n" +
+                        "\t\t\t optionally taking <ms> per value) or exec:<command> (called with key and value).\n" +
+                        "  --actuate-latest <type,...> Only act on the latest value of these types if their actuator falls behind.\n" +
+                        "  --actuator-workers <n>\t Number of threads running actuators (default: number of processors).\n" +
+                        "  --workers <n>\t\t Number of workers writing service files and journals in host mode\n" +
+                        "\t\t\t (default: number of processors, at least 2).\n" +
+                        "  --admin-port <port>\t Accept ADD, REMOVE and LIST commands on localhost:<port> to change the\n" +
+                        "\t\t\t provided services while running.\n" +
                         "  --help\t\t Show help information.");
                 break;
             case UNKNOWN_SERVICE:
                 System.err.println("Unknown input " + info + ". Type --help to show help information.");
                 break;
+            case UNKNOWN_MODE:
+                System.err.println("Unknown mode " + info + ". Type --help to show help information.");
+                break;
+            case UNKNOWN_LEVEL:
+                System.err.println("Unknown log level " + info + ". Type --help to show help information.");
+                break;
+            case OPTION_FORMAT:
+                System.err.println("Option value " + info + " is not a positive number. Type --help to show help information.");
+                break;
+            case OPTION_SYNTAX:
+                System.err.println("Option value " + info + " is malformed. Type --help to show help information.");
+                break;
             case NO_PARAMETERS:
                 System.err.println("No parameters given. Type --help to show help information.");
                 break;
@@ -136,61 +504,33 @@ public class Main {
             case NO_SERVICES:
                 System.err.println("Add at least one service. Type --help to show help information.");
                 break;
+            case HOST_CONFIG:
+                System.err.println(info + ". Type --help to show help information.");
+                break;
         }
         System.exit(0);
     }
 
     /**
-     * Check if port should be chosen at random or if the availability of pPort needs to be determined.
-     * @param pPort         Port to check.
-     * @return  Return true if pPort is available. Otherwise return false.
+     * Bind the listening socket of the {@link ServiceProvider}, 0 for a random port. The bound channel is handed over
+     * to the provider, so the port is bound only once and cannot be taken in between.
+     * @param pPort         Port to bind.
+     * @return  Return true if pPort has been bound. Otherwise return false.
      */
-    private static boolean checkPortAvailability(int pPort) {
-        if(pPort == 0) {
-            port = 0;
-            return true;
-        } else {
-            if(portIsAvailable(pPort)) {
-                port = pPort;
-            }
-        }
-        return false;
-    }
-
-    /**
-     * Apache-SVN, _Contents of /camel/trunk/components/camel-test/src/main/java/org/apache/camel/test/AvailablePortFinder.java_ (davsclaus, 18.01.2012)
-     * Retrieved 13.10.2020 from https://svn.apache.org/viewvc/camel/trunk/components/camel-test/src/main/java/org/apache/camel/test/AvailablePortFinder.java?view=markup#l130
-     * @param pPort         Port to check availability of.
-     * @return  Return true if pPort is available. Otherwise return false.
-     */
-    private static boolean portIsAvailable(int pPort) {
-        ServerSocket ss = null;
-        DatagramSocket ds = null;
-
+    private static boolean bindPort(int pPort) {
         try {
-            ss = new ServerSocket(pPort);
-            ss.setReuseAddress(true);
-
-            ds = new DatagramSocket(pPort);
-            ds.setReuseAddress(true);
-
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(pPort));
+            port = server.socket().getLocalPort();
             return true;
-        } catch (IOException e) {
-            // Isn't harmful to application
-            // Do nothing
-        } finally {
-            if (ds != null) {
-                ds.close();
-            }
-            if (ss != null) {
+        } catch (IOException | IllegalArgumentException e) {
+            if (server != null) {
                 try {
-                    ss.close();
-                } catch (IOException e) {
+                    server.close();
+                } catch (IOException closeFailed) {
                     // Isn't harmful to application
-                    // Do nothing
                 }
             }
-
             return false;
         }
     }
@@ -0,0 +1,172 @@
+package dev;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of runtime metrics. Counters are striped ({@link LongAdder}), so counting on the update path costs no
+ * contention between threads; latencies are kept in {@link LatencyHistogram}s.
+ * The registry is exposed by {@link MetricsEndpoint}.
+ */
+public final class Metrics {
+
+    /**
+     * Monotonic counter, optionally carrying one label.
+     */
+    public static class Counter {
+        private String name;
+        private String labels;
+        private String help;
+        private LongAdder value = new LongAdder();
+
+        Counter(String pName, String pLabels, String pHelp) {
+            this.name = pName;
+            this.labels = pLabels;
+            this.help = pHelp;
+        }
+
+        public void increment() { this.value.increment(); }
+
+        public void add(long delta) { this.value.add(delta); }
+
+        public long get() { return this.value.sum(); }
+
+        public String getName() { return this.name; }
+
+        public String getLabels() { return this.labels; }
+
+        public String getHelp() { return this.help; }
+    }
+
+    /**
+     * Value sampled whenever metrics are exported.
+     */
+    public static class Gauge {
+        private String name;
+        private String help;
+        private LongSupplier supplier;
+
+        Gauge(String pName, String pHelp, LongSupplier pSupplier) {
+            this.name = pName;
+            this.help = pHelp;
+            this.supplier = pSupplier;
+        }
+
+        public long get() { return this.supplier.getAsLong(); }
+
+        public String getName() { return this.name; }
+
+        public String getHelp() { return this.help; }
+    }
+
+    private static final List<Counter> COUNTERS = new CopyOnWriteArrayList<>();
+    private static final List<Gauge> GAUGES = new CopyOnWriteArrayList<>();
+    private static final List<LatencyHistogram> HISTOGRAMS = new CopyOnWriteArrayList<>();
+
+    public static final Counter PACKETS = counter("arios_packets_total", "Frames received from clients.");
+    public static final Counter UPDATES = counter("arios_updates_total", "Value changes applied.");
+    public static final Counter CONNECTS = counter("arios_connects_total", "Accepted connections.");
+    public static final Counter DISCONNECTS = counter("arios_disconnects_total", "Closed connections.");
+    public static final Counter EVICTIONS = counter("arios_evictions_total", "Connections closed for being idle.");
+    public static final Counter COALESCED = counter("arios_coalesced_total", "Changes superseded within their coalescing window.");
+    public static final Counter CONFLICTS = counter("arios_conflicts_total", "Conditional changes rejected for a stale version.");
+    public static final Counter RATE_LIMITED = counter("arios_rate_limited_total", "Frames rejected by the per-client rate limit.");
+    public static final Counter THROTTLED = counter("arios_throttled_total", "Reads paused by the per-client rate limit.");
+    public static final Counter FILE_WRITES = counter("arios_service_file_writes_total", "Writes of the Avahi service file.");
+    public static final Counter ACTUATIONS = counter("arios_actuations_total", "Values handed to actuators.");
+    public static final Counter ACTUATION_FAILURES = counter("arios_actuation_failures_total", "Actuations which failed.");
+    public static final Counter ACTUATIONS_COLLAPSED = counter("arios_actuations_collapsed_total", "Values superseded before their actuator got to them.");
+
+    private static final Counter[] REJECTIONS = createRejectionCounters();
+
+    public static final LatencyHistogram UPDATE_LATENCY = histogram("arios_update_seconds", "Time to apply, journal and persist a value change.");
+    public static final LatencyHistogram FILE_WRITE_LATENCY = histogram("arios_service_file_write_seconds", "Time to rewrite the Avahi service file.");
+    public static final LatencyHistogram ACTUATION_LATENCY = histogram("arios_actuation_seconds", "Time from a value change until its actuator has finished.");
+    public static final LatencyHistogram JOURNAL_COMMIT_LATENCY = histogram("arios_journal_commit_seconds", "Time to write and fsync a batch of journal records.");
+
+    static {
+        gauge("arios_log_dropped_total", "Log events dropped because the log buffer was full.", Log::getDropped);
+    }
+
+    private Metrics() { }
+
+    /**
+     * Count a rejected frame.
+     * @param reason    The {@link DataValidator.Result} the frame was rejected with.
+     */
+    public static void reject(DataValidator.Result reason) {
+        REJECTIONS[reason.ordinal()].increment();
+    }
+
+    /**
+     * Register a counter.
+     * @param name      Name of the metric.
+     * @param help      Description of the metric.
+     * @return  The registered {@link Counter}.
+     */
+    public static Counter counter(String name, String help) {
+        return counter(name, "", help);
+    }
+
+    /**
+     * Register a counter carrying labels.
+     * @param name      Name of the metric.
+     * @param labels    Labels in exposition format, e.g. reason="format".
+     * @param help      Description of the metric.
+     * @return  The registered {@link Counter}.
+     */
+    public static Counter counter(String name, String labels, String help) {
+        Counter counter = new Counter(name, labels, help);
+        COUNTERS.add(counter);
+        return counter;
+    }
+
+    /**
+     * Register a gauge.
+     * @param name      Name of the metric.
+     * @param help      Description of the metric.
+     * @param supplier  Supplier of the current value.
+     * @return  The registered {@link Gauge}.
+     */
+    public static Gauge gauge(String name, String help, LongSupplier supplier) {
+        Gauge gauge = new Gauge(name, help, supplier);
+        GAUGES.add(gauge);
+        return gauge;
+    }
+
+    /**
+     * Register a latency histogram.
+     * @param name      Name of the metric.
+     * @param help      Description of the metric.
+     * @return  The registered {@link LatencyHistogram}.
+     */
+    public static LatencyHistogram histogram(String name, String help) {
+        LatencyHistogram histogram = new LatencyHistogram(name, help);
+        HISTOGRAMS.add(histogram);
+        return histogram;
+    }
+
+    public static List<Counter> getCounters() { return COUNTERS; }
+
+    public static List<Gauge> getGauges() { return GAUGES; }
+
+    public static List<LatencyHistogram> getHistograms() { return HISTOGRAMS; }
+
+    /**
+     * Create one rejection counter per reason.
+     * @return  The counters indexed by {@link DataValidator.Result} ordinal.
+     */
+    private static Counter[] createRejectionCounters() {
+        DataValidator.Result[] reasons = DataValidator.Result.values();
+        Counter[] counters = new Counter[reasons.length];
+        for (DataValidator.Result reason: reasons) {
+            if (reason != DataValidator.Result.VALID) {
+                counters[reason.ordinal()] = counter("arios_rejections_total", "reason=\"" + reason.toString().toLowerCase() + "\"",
+                        "Frames rejected by validation.");
+            }
+        }
+        return counters;
+    }
+}
@@ -0,0 +1,261 @@
+package dev;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exposes the {@link Metrics} registry in Prometheus text format on a local HTTP endpoint (/metrics) and as the
+ * MBean dev:type=Metrics over JMX. Both read the registry only when scraped, so they add nothing to the update path.
+ */
+public class MetricsEndpoint implements DynamicMBean {
+
+    public static final String PATH = "/metrics";
+    public static final String OBJECT_NAME = "dev:type=Metrics";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private int port;
+    private HttpServer server;
+    private ObjectName objectName;
+
+    /**
+     * Class constructor.
+     * @param pPort     The local port to serve metrics on. 0 picks a free port.
+     */
+    public MetricsEndpoint(int pPort) {
+        this.port = pPort;
+    }
+
+    /**
+     * Start the HTTP endpoint on the loopback interface and register the MBean.
+     * @throws IOException  If the port cannot be bound.
+     */
+    public void start() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port), 0);
+        this.server.createContext(PATH, this::handle);
+        this.server.start();
+        this.port = this.server.getAddress().getPort();
+
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            this.objectName = new ObjectName(OBJECT_NAME);
+            if (!mBeanServer.isRegistered(this.objectName)) {
+                mBeanServer.registerMBean(this, this.objectName);
+            }
+        } catch (JMException e) {
+            Log.warn("An error occurred while registering MBean {}: {}", OBJECT_NAME, e.getMessage());
+        }
+
+        Log.info("Serving metrics on http://{}:{}{}.", InetAddress.getLoopbackAddress().getHostAddress(), this.port, PATH);
+    }
+
+    /**
+     * Stop the HTTP endpoint and unregister the MBean.
+     */
+    public void stop() {
+        if (this.server != null) {
+            this.server.stop(0);
+        }
+        try {
+            if (this.objectName != null && ManagementFactory.getPlatformMBeanServer().isRegistered(this.objectName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+            }
+        } catch (JMException e) {
+            // nothing left to clean up
+        }
+    }
+
+    public int getPort() { return this.port; }
+
+    /**
+     * Render all metrics in Prometheus text exposition format.
+     * @return  The exposition.
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder(4096);
+
+        String family = null;
+        for (Metrics.Counter counter: Metrics.getCounters()) {
+            if (!counter.getName().equals(family)) {
+                family = counter.getName();
+                header(out, family, counter.getHelp(), "counter");
+            }
+            out.append(family);
+            if (!counter.getLabels().isEmpty()) {
+                out.append('{').append(counter.getLabels()).append('}');
+            }
+            out.append(' ').append(counter.get()).append('\n');
+        }
+
+        for (Metrics.Gauge gauge: Metrics.getGauges()) {
+            header(out, gauge.getName(), gauge.getHelp(), "gauge");
+            out.append(gauge.getName()).append(' ').append(gauge.get()).append('\n');
+        }
+
+        for (LatencyHistogram histogram: Metrics.getHistograms()) {
+            String name = histogram.getName();
+            header(out, name, histogram.getHelp(), "summary");
+            for (double quantile: QUANTILES) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.getQuantile(quantile))).append('\n');
+            }
+            out.append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+            out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Answer a scrape.
+     * @param exchange  The HTTP exchange.
+     * @throws IOException  If the response cannot be sent.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    // --- JMX ---
+
+    /**
+     * Returns the name of the MBean attribute of a counter, e.g. arios_rejections_total_format.
+     * @param counter   The {@link Metrics.Counter}.
+     * @return  The attribute name.
+     */
+    private static String attributeName(Metrics.Counter counter) {
+        if (counter.getLabels().isEmpty()) {
+            return counter.getName();
+        }
+        String labelValue = counter.getLabels().substring(counter.getLabels().indexOf('"') + 1, counter.getLabels().length() - 1);
+        return counter.getName() + "_" + labelValue;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (Metrics.Counter counter: Metrics.getCounters()) {
+            if (attributeName(counter).equals(attribute)) {
+                return counter.get();
+            }
+        }
+        for (Metrics.Gauge gauge: Metrics.getGauges()) {
+            if (gauge.getName().equals(attribute)) {
+                return gauge.get();
+            }
+        }
+        for (LatencyHistogram histogram: Metrics.getHistograms()) {
+            String name = histogram.getName();
+            if (attribute.equals(name + "_count")) {
+                return histogram.getCount();
+            } else if (attribute.equals(name + "_max")) {
+                return seconds(histogram.getMax());
+            }
+            for (double quantile: QUANTILES) {
+                if (attribute.equals(quantileAttribute(name, quantile))) {
+                    return seconds(histogram.getQuantile(quantile));
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute: attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // unknown attributes are left out
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Metrics.Counter counter: Metrics.getCounters()) {
+            attributes.add(attribute(attributeName(counter), "long", counter.getHelp()));
+        }
+        for (Metrics.Gauge gauge: Metrics.getGauges()) {
+            attributes.add(attribute(gauge.getName(), "long", gauge.getHelp()));
+        }
+        for (LatencyHistogram histogram: Metrics.getHistograms()) {
+            String name = histogram.getName();
+            attributes.add(attribute(name + "_count", "long", histogram.getHelp()));
+            attributes.add(attribute(name + "_max", "double", histogram.getHelp()));
+            for (double quantile: QUANTILES) {
+                attributes.add(attribute(quantileAttribute(name, quantile), "double", histogram.getHelp()));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "ARIOS runtime metrics.",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    private static MBeanAttributeInfo attribute(String name, String type, String description) {
+        return new MBeanAttributeInfo(name, type, description, true, false, false);
+    }
+
+    private static String quantileAttribute(String name, double quantile) {
+        // named by percentile without its decimal point: 0.5 -> p50, 0.9 -> p90, 0.999 -> p999
+        String percentile = BigDecimal.valueOf(quantile).movePointRight(2).stripTrailingZeros().toPlainString();
+        return name + "_p" + percentile.replace(".", "");
+    }
+}
@@ -1,5 +1,8 @@
 package dev;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 public class NetService {
     /**
      * Enum to determine service types.
@@ -14,8 +17,53 @@ public class NetService {
         CHECKBOX
     }
 
+    /**
+     * A value together with the version it was set as. Immutable, so value and version are always read together.
+     */
+    public static final class Revision {
+        private final String value;
+        private final long version;
+
+        Revision(String pValue, long pVersion) {
+            this.value = pValue;
+            this.version = pVersion;
+        }
+
+        public String getValue() { return this.value; }
+
+        public long getVersion() { return this.version; }
+    }
+
+    public static final char INSTANCE_SEPARATOR = '.';
+
+    /**
+     * Expected version of a change which is applied whatever the current version is.
+     */
+    public static final long ANY_VERSION = -1;
+
+    /**
+     * Maximum length of a {@link ServiceType#TEXTFIELD} value. Keeps key and value within the 255 bytes of a single
+     * TXT record string, e.g. textfield.65535=&lt;value&gt;.
+     */
+    public static final int MAX_TEXT_LENGTH = 239;
+
+    private static final String TRUE = "true";
+    private static final String FALSE = "false";
+
+    // slots hold the version in the upper 40 bits and the value in the lower 24 bits
+    private static final int PAYLOAD_BITS = 24;
+    private static final long PAYLOAD_MASK = (1L << PAYLOAD_BITS) - 1;
+
     private ServiceType type;
-    private String value;
+    // value and version of booleans and colours, which fit into a primitive
+    private final AtomicLong slot;
+    // value and version of text, null for other types
+    private final AtomicReference<Revision> revision;
+    private int id = -1;
+    private int instance = 0;
+    private String key;
+    // version last handed on to journal, service file and actuators, guarded by the lock of the provider
+    private long published = 0;
 
     /**
      * Class constructor.
@@ -28,7 +76,42 @@ public class NetService {
      */
     public NetService(ServiceType pType, String pValue) {
         this.type = pType;
-        this.value = pValue;
+        this.key = pType.toString();
+        if (pType == ServiceType.TEXTFIELD) {
+            this.slot = null;
+            this.revision = new AtomicReference<>(new Revision(pValue, 0));
+        } else {
+            this.slot = new AtomicLong(toPayload(pType, pValue));
+            this.revision = null;
+        }
+    }
+
+    /**
+     * Class constructor. The service starts with the default value of its type.
+     *
+     * @param pType     {@link ServiceType} to use for {@link NetService}.
+     */
+    public NetService(ServiceType pType) {
+        this(pType, getDefaultValue(pType));
+    }
+
+    /**
+     * Returns the value a new service of a {@link ServiceType} starts with.
+     *
+     * @param type      The {@link ServiceType}.
+     * @return  The default value.
+     */
+    public static String getDefaultValue(ServiceType type) {
+        switch (type) {
+            case COLORPICKER:
+                return "FFFFFF";
+            case TEXTFIELD:
+                return "empty";
+            case TOGGLE:
+            case CHECKBOX:
+            default:
+                return "false";
+        }
     }
 
     /**
@@ -38,8 +121,52 @@ public class NetService {
      * @author malte.josten@stud.uni-due.de
      *
      * @param pValue    The value to overwrite class variable value with.
+     * @return  The version the value was set as.
+     */
+    public long setValue(String pValue) {
+        return compareAndSet(ANY_VERSION, pValue);
+    }
+
+    /**
+     * Sets the value only if the service is still at the expected version, so concurrent writers cannot overwrite
+     * changes they have not seen.
+     *
+     * @param expected  The version the writer has last seen, or {@link #ANY_VERSION}.
+     * @param pValue    The new value.
+     * @return  The version the value was set as, or -1 if the service is at another version.
+     */
+    public long compareAndSet(long expected, String pValue) {
+        if (this.slot != null) {
+            return compareAndSet(expected, toPayload(this.type, pValue));
+        }
+
+        Revision current;
+        do {
+            current = this.revision.get();
+            if (expected != ANY_VERSION && current.version != expected) {
+                return -1;
+            }
+        } while (!this.revision.compareAndSet(current, new Revision(pValue, current.version + 1)));
+        return current.version + 1;
+    }
+
+    /**
+     * Sets the value of a boolean or colour service without allocating, if it is still at the expected version.
+     *
+     * @param expected  The version the writer has last seen, or {@link #ANY_VERSION}.
+     * @param payload   The new value, 0 or 1 for booleans and 0xRRGGBB for colours.
+     * @return  The version the value was set as, or -1 if the service is at another version.
      */
-    public void setValue(String pValue) { this.value = pValue; }
+    public long compareAndSet(long expected, int payload) {
+        long current;
+        do {
+            current = this.slot.get();
+            if (expected != ANY_VERSION && version(current) != expected) {
+                return -1;
+            }
+        } while (!this.slot.compareAndSet(current, pack(version(current) + 1, payload)));
+        return version(current) + 1;
+    }
 
     /**
      * Returns class variable value.
@@ -49,7 +176,101 @@ public class NetService {
      *
      * @return  A {@link String} value.
      */
-    public String getValue() { return this.value; }
+    public String getValue() {
+        return this.slot != null ? format(this.type, payload(this.slot.get())) : this.revision.get().value;
+    }
+
+    /**
+     * Returns the current version, which starts at 0 and grows by one with every change. Versions are not persisted.
+     *
+     * @return  The version.
+     */
+    public long getVersion() {
+        return this.slot != null ? version(this.slot.get()) : this.revision.get().version;
+    }
+
+    /**
+     * Returns the current value together with its version.
+     *
+     * @return  The current {@link Revision}.
+     */
+    public Revision getRevision() {
+        if (this.slot == null) {
+            return this.revision.get();
+        }
+        long current = this.slot.get();
+        return new Revision(format(this.type, payload(current)), version(current));
+    }
+
+    /**
+     * Returns the version held by a slot.
+     *
+     * @param slot      The packed value and version.
+     * @return  The version.
+     */
+    static long version(long slot) { return slot >>> PAYLOAD_BITS; }
+
+    /**
+     * Returns the value held by a slot.
+     *
+     * @param slot      The packed value and version.
+     * @return  0 or 1 for booleans, 0xRRGGBB for colours.
+     */
+    static int payload(long slot) { return (int) (slot & PAYLOAD_MASK); }
+
+    private static long pack(long version, int payload) {
+        return (version << PAYLOAD_BITS) | (payload & PAYLOAD_MASK);
+    }
+
+    /**
+     * Convert a boolean or colour value to its primitive form.
+     *
+     * @param type      The {@link ServiceType} of the value.
+     * @param value     The value, e.g. true or 00FF7F.
+     * @return  0 or 1 for booleans, 0xRRGGBB for colours.
+     * @throws IllegalArgumentException If the value is no valid colour.
+     */
+    public static int toPayload(ServiceType type, CharSequence value) {
+        if (type != ServiceType.COLORPICKER) {
+            return TRUE.contentEquals(value) ? 1 : 0;
+        }
+
+        int color = DataValidator.parseColor(value);
+        if (color < 0) {
+            throw new IllegalArgumentException("Invalid colour " + value);
+        }
+        return color;
+    }
+
+    /**
+     * Returns a validated value as {@link String}, in the form {@link #getValue()} returns it once set. Booleans
+     * share two constants, so they do not allocate.
+     *
+     * @param type      The {@link ServiceType} of the value.
+     * @param value     The validated value.
+     * @return  The value.
+     */
+    public static String valueOf(ServiceType type, CharSequence value) {
+        if (type != ServiceType.TEXTFIELD) {
+            return format(type, toPayload(type, value));
+        }
+        return value.toString();
+    }
+
+    /**
+     * Format the primitive form of a boolean or colour value as it is sent to clients and written to
+     * &lt;txt-record&gt;s. Booleans share two constants, so they do not allocate.
+     *
+     * @param type      The {@link ServiceType} of the value.
+     * @param payload   0 or 1 for booleans, 0xRRGGBB for colours.
+     * @return  The value, e.g. true or 00FF7F.
+     */
+    public static String format(ServiceType type, int payload) {
+        if (type == ServiceType.COLORPICKER) {
+            return DataValidator.formatColor(payload);
+        }
+        return payload != 0 ? TRUE : FALSE;
+    }
 
     /**
      * Returns {@link ServiceType} of class.
@@ -61,4 +282,65 @@ public class NetService {
      */
     public ServiceType getType() { return this.type; }
 
+    /**
+     * Sets id and instance number. Called once by {@link ServiceRegistry}.
+     *
+     * @param pId       The stable id of the service.
+     * @param pInstance The instance number among services of the same {@link ServiceType}.
+     */
+    void assign(int pId, int pInstance) {
+        this.id = pId;
+        this.instance = pInstance;
+        this.key = pInstance == 0 ? this.type.toString() : this.type.toString() + INSTANCE_SEPARATOR + pInstance;
+    }
+
+    /**
+     * Record that a version is handed on to journal, service file and actuators, unless a newer one has been already.
+     * Values are set without locking, so a writer may be overtaken between setting its value and handing it on.
+     * Only called by the {@link ServiceProvider} of the service, holding its lock.
+     *
+     * @param version   The version set by the writer.
+     * @return  Return true if the version is newer than the one handed on last. Otherwise return false.
+     */
+    boolean publish(long version) {
+        if (version <= this.published) {
+            return false;
+        }
+        this.published = version;
+        return true;
+    }
+
+    /**
+     * Returns whether a version has been handed on, by its own writer or by a newer one.
+     * Only called by the {@link ServiceProvider} of the service, holding its lock.
+     *
+     * @param version   The version.
+     * @return  Return true if the version is not newer than the one handed on last. Otherwise return false.
+     */
+    boolean isPublished(long version) {
+        return version <= this.published;
+    }
+
+    /**
+     * Returns the stable id assigned by {@link ServiceRegistry}.
+     *
+     * @return  The id, or -1 if the service is not registered.
+     */
+    public int getId() { return this.id; }
+
+    /**
+     * Returns the instance number among services of the same {@link ServiceType}.
+     *
+     * @return  The instance number, 0 for the first service of a type.
+     */
+    public int getInstance() { return this.instance; }
+
+    /**
+     * Returns the key addressing this service on the wire and in &lt;txt-record&gt;s: the type name, followed by
+     * '.' and the instance number for all but the first instance.
+     *
+     * @return  The key, e.g. TOGGLE or TOGGLE.1.
+     */
+    public String getKey() { return this.key; }
+
 }
@@ -0,0 +1,55 @@
+package dev;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Actuator} running an external command for every value, e.g. a script driving GPIO pins. The command is
+ * called with the service's key and the value as its last two arguments; its output goes to the application's output.
+ */
+public class ScriptActuator implements Actuator {
+
+    private static final long DEFAULT_TIMEOUT = 10000;
+
+    private List<String> command;
+    private long timeoutMillis;
+
+    /**
+     * Class constructor.
+     *
+     * @param pCommand  The command and its arguments, separated by whitespace.
+     */
+    public ScriptActuator(String pCommand) {
+        this(pCommand, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param pCommand          The command and its arguments, separated by whitespace.
+     * @param pTimeoutMillis    Time in milliseconds after which a running command is killed.
+     */
+    public ScriptActuator(String pCommand, long pTimeoutMillis) {
+        this.command = Arrays.asList(pCommand.trim().split("\\s+"));
+        this.timeoutMillis = pTimeoutMillis;
+    }
+
+    @Override
+    public void actuate(NetService service, String value) throws IOException, InterruptedException {
+        List<String> args = new ArrayList<>(this.command);
+        args.add(service.getKey());
+        args.add(value);
+
+        Process process = new ProcessBuilder(args).inheritIO().start();
+        if (!process.waitFor(this.timeoutMillis, TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+            throw new IOException(this.command.get(0) + " did not finish within " + this.timeoutMillis + " ms");
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException(this.command.get(0) + " exited with " + process.exitValue());
+        }
+    }
+}
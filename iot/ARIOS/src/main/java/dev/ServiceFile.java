@@ -0,0 +1,340 @@
+package dev;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory model of an Avahi service file. Record changes are applied to the model and written behind by this
+ * thread, merging all changes since the last write into one atomic file replacement. Every write renders the whole
+ * file from the model with {@link ServiceFileRenderer}. Instead of this thread, a shared worker pool may write the
+ * changes, see {@link #start(ScheduledExecutorService)}.
+ */
+public class ServiceFile extends Thread {
+
+    private static final String DEFAULT_NAME = "%h";
+    private static final String NAME_START = "<name";
+    private static final String NAME_END = "</name>";
+    private static final String RECORD_START = "<txt-record>";
+    private static final String RECORD_END = "</txt-record>";
+
+    private Path path;
+    private Path tempPath;
+
+    private String name = DEFAULT_NAME;
+    private boolean replaceWildcards = true;
+    private String type;
+    private int port;
+    private Map<String, String> records = new LinkedHashMap<>();
+    private boolean loaded = false;
+    private StringBuilder content = new StringBuilder(1024);
+    private volatile byte[] written;
+
+    private long flushInterval;
+    private int dirtyThreshold;
+    private int dirty = 0;
+
+    private final Object writeLock = new Object();
+
+    private ScheduledExecutorService workers;
+    private boolean flushScheduled = false;
+
+    private volatile boolean running = true;
+
+    /**
+     * Class constructor.
+     *
+     * @param pPath             The path of the Avahi service file.
+     * @param pFlushInterval    Maximum time in milliseconds a change stays unwritten.
+     * @param pDirtyThreshold   Number of unwritten changes which triggers an immediate write.
+     */
+    public ServiceFile(String pPath, long pFlushInterval, int pDirtyThreshold) {
+        super("ServiceFile-Flusher");
+        setDaemon(true);
+
+        this.path = Paths.get(pPath);
+        this.tempPath = this.path.resolveSibling("." + this.path.getFileName() + ".tmp");
+        this.flushInterval = pFlushInterval;
+        this.dirtyThreshold = pDirtyThreshold;
+    }
+
+    /**
+     * Read the name and the &lt;txt-record&gt;s of an existing service file in one pass. The name is kept for the
+     * model, the records are returned, so their values can be taken over.
+     * @return  The records' values by key.
+     * @throws IOException  If the file cannot be read.
+     */
+    public synchronized Map<String, String> read() throws IOException {
+        Map<String, String> values = new LinkedHashMap<>();
+
+        byte[] bytes = Files.readAllBytes(this.path);
+        this.written = bytes;
+
+        for (String line: new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+            int start = line.indexOf(RECORD_START);
+            if (start >= 0) {
+                start += RECORD_START.length();
+                int end = line.indexOf(RECORD_END, start);
+                int separator = line.indexOf('=', start);
+                if (end >= 0 && separator >= 0 && separator < end) {
+                    values.put(ServiceFileRenderer.unescape(line.substring(start, separator)),
+                            ServiceFileRenderer.unescape(line.substring(separator + 1, end)));
+                }
+                continue;
+            }
+
+            start = line.indexOf(NAME_START);
+            if (start >= 0) {
+                int open = line.indexOf('>', start);
+                int end = line.indexOf(NAME_END, start);
+                if (open >= 0 && end > open) {
+                    this.replaceWildcards = line.substring(start, open).contains("replace-wildcards=\"yes\"");
+                    this.name = ServiceFileRenderer.unescape(line.substring(open + 1, end));
+                }
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Set up the model and mark it for writing. Records are written in the given order.
+     * @param pType     The service type, e.g. _http._tcp.
+     * @param pPort     The port of the service.
+     * @param pRecords  The &lt;txt-record&gt;s.
+     */
+    public synchronized void define(String pType, int pPort, Map<String, String> pRecords) {
+        this.type = pType;
+        this.port = pPort;
+        this.records = new LinkedHashMap<>(pRecords);
+        this.loaded = true;
+        markDirty();
+    }
+
+    /**
+     * Returns whether the model has been set up.
+     * @return  Return true if {@link #define(String, int, Map)} has been called. Otherwise return false.
+     */
+    public synchronized boolean isLoaded() { return this.loaded; }
+
+    /**
+     * Set the value of a &lt;txt-record&gt; in the model. The file is written later by the flusher.
+     * @param key       The record's key.
+     * @param value     The record's new value.
+     */
+    public synchronized void setRecord(String key, String value) {
+        if (patchRecord(key, value)) {
+            markDirty();
+        }
+    }
+
+    /**
+     * Set the values of several &lt;txt-record&gt;s at once. The flusher never writes only a part of them.
+     * @param keys      The records' keys.
+     * @param values    The records' new values.
+     * @param count     The number of records to set.
+     */
+    public synchronized void setRecords(String[] keys, String[] values, int count) {
+        boolean changed = false;
+        for (int i = 0; i < count; i++) {
+            changed |= patchRecord(keys[i], values[i]);
+        }
+        if (changed) {
+            markDirty();
+        }
+    }
+
+    /**
+     * Append a &lt;txt-record&gt; to the model. The file is written later by the flusher.
+     * @param key       The record's key.
+     * @param value     The record's value.
+     */
+    public synchronized void addRecord(String key, String value) {
+        this.records.put(key, value);
+        markDirty();
+    }
+
+    /**
+     * Remove a &lt;txt-record&gt; from the model. The file is written later by the flusher.
+     * @param key       The record's key.
+     */
+    public synchronized void removeRecord(String key) {
+        if (this.records.remove(key) != null) {
+            markDirty();
+        }
+    }
+
+    /**
+     * Replace the value of a &lt;txt-record&gt; in the model.
+     * @param key       The record's key.
+     * @param value     The record's new value.
+     * @return  Return true if the record exists. Otherwise return false.
+     */
+    private boolean patchRecord(String key, String value) {
+        return this.records.replace(key, value) != null;
+    }
+
+    /**
+     * Count an unwritten change and wake up the flusher once the dirty threshold is reached.
+     */
+    private void markDirty() {
+        if (++this.dirty >= this.dirtyThreshold) {
+            notifyAll();
+        }
+
+        if (this.workers != null && this.running) {
+            if (this.dirty == this.dirtyThreshold) {
+                this.workers.execute(this::scheduledFlush);
+            } else if (!this.flushScheduled) {
+                this.flushScheduled = true;
+                this.workers.schedule(this::scheduledFlush, this.flushInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Write changes from a worker of the shared pool instead of this thread. Changes are written once the flush
+     * interval has passed or the dirty threshold has been reached, just as this thread would.
+     * @param pWorkers  The shared worker pool.
+     */
+    public void start(ScheduledExecutorService pWorkers) {
+        synchronized (this) {
+            this.workers = pWorkers;
+            if (this.dirty > 0) {
+                this.flushScheduled = true;
+                this.workers.execute(this::scheduledFlush);
+            }
+        }
+    }
+
+    /**
+     * Flush task run by the shared worker pool.
+     */
+    private void scheduledFlush() {
+        synchronized (this) {
+            this.flushScheduled = false;
+        }
+
+        try {
+            flush();
+        } catch (IOException e) {
+            Log.error("An error occurred while writing service file @ {}", this.path, e);
+        }
+    }
+
+    /**
+     * Write the model to the service file if it contains unwritten changes. The file is left untouched if it already
+     * holds the rendered content, e.g. on a restart with unchanged values.
+     * @throws IOException  If the file cannot be written.
+     */
+    public void flush() throws IOException {
+        synchronized (this.writeLock) {
+            byte[] bytes;
+            synchronized (this) {
+                if (this.dirty == 0 || !this.loaded) {
+                    return;
+                }
+                this.content.setLength(0);
+                ServiceFileRenderer.render(this.content, this.name, this.replaceWildcards, this.type, this.port, this.records);
+                bytes = this.content.toString().getBytes(StandardCharsets.UTF_8);
+                this.dirty = 0;
+            }
+
+            if (Arrays.equals(bytes, this.written)) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            try {
+                // the content is on disk before the rename, which must not reach it first after a power loss
+                try (FileChannel channel = FileChannel.open(this.tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(true);
+                }
+                try {
+                    Files.move(this.tempPath, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(this.tempPath, this.path, StandardCopyOption.REPLACE_EXISTING);
+                }
+                forceDirectory(this.path);
+            } catch (IOException e) {
+                synchronized (this) {
+                    // keep changes for the next attempt
+                    this.dirty++;
+                }
+                throw e;
+            }
+            this.written = bytes;
+            Metrics.FILE_WRITE_LATENCY.recordSince(start);
+            Metrics.FILE_WRITES.increment();
+        }
+    }
+
+    /**
+     * Write the directory entry of a file to disk, so a rename replacing it survives a power loss. Platforms which
+     * cannot open directories, e.g. Windows, keep the rename in the file system's own order.
+     * @param file      The renamed file.
+     */
+    static void forceDirectory(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported by the platform
+        }
+    }
+
+    /**
+     * Write changes whenever the flush interval has passed or the dirty threshold has been reached.
+     */
+    @Override
+    public void run() {
+        while (this.running) {
+            synchronized (this) {
+                try {
+                    if (this.dirty < this.dirtyThreshold && this.running) {
+                        wait(this.flushInterval);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            try {
+                flush();
+            } catch (IOException e) {
+                Log.error("An error occurred while writing service file @ {}", this.path, e);
+            }
+        }
+    }
+
+    /**
+     * Stop the flusher and write all outstanding changes.
+     * @throws IOException  If the file cannot be written.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            this.running = false;
+            notifyAll();
+        }
+        flush();
+    }
+}
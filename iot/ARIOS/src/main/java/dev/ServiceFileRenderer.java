@@ -0,0 +1,127 @@
+package dev;
+
+import java.util.Map;
+
+/**
+ * Renders an Avahi service file from its model in one pass. Every name, key and value is escaped, so no value can
+ * break the XML structure or be mistaken for another element.
+ */
+public final class ServiceFileRenderer {
+
+    private static final String HEADER =
+            "<?xml version=\"1.0\" standalone='no'?><!--*-nxml-*-->\n" +
+            "<!DOCTYPE service-group SYSTEM \"avahi-service.dtd\">\n\n" +
+            "<service-group>\n\n";
+
+    private ServiceFileRenderer() { }
+
+    /**
+     * Render a service group containing one service.
+     *
+     * @param out               The builder to render into.
+     * @param name              The name of the service group.
+     * @param replaceWildcards  Whether Avahi should replace wildcards like %h in the name.
+     * @param type              The service type, e.g. _http._tcp.
+     * @param port              The port of the service.
+     * @param records           The &lt;txt-record&gt;s in the order they are rendered.
+     */
+    public static void render(StringBuilder out, String name, boolean replaceWildcards, String type, int port,
+                              Map<String, String> records) {
+        out.append(HEADER);
+
+        out.append(replaceWildcards ? "  <name replace-wildcards=\"yes\">" : "  <name>");
+        escape(out, name).append("</name>\n\n");
+
+        out.append("  <service>\n");
+        out.append("    <type>");
+        escape(out, type).append("</type>\n");
+        out.append("    <port>").append(port).append("</port>\n");
+        for (Map.Entry<String, String> record: records.entrySet()) {
+            out.append("    <txt-record>");
+            escape(out, record.getKey()).append('=');
+            escape(out, record.getValue()).append("</txt-record>\n");
+        }
+        out.append("  </service>\n\n");
+
+        out.append("</service-group>\n");
+    }
+
+    /**
+     * Append text with XML special characters replaced by entities and control characters by numeric character
+     * references, so a value never spans lines of the service file.
+     * @param out       The builder to append to.
+     * @param text      The text to escape.
+     * @return  The builder.
+     */
+    public static StringBuilder escape(StringBuilder out, CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&': out.append("&amp;"); break;
+                case '<': out.append("&lt;"); break;
+                case '>': out.append("&gt;"); break;
+                case '"': out.append("&quot;"); break;
+                case '\'': out.append("&apos;"); break;
+                default:
+                    if (c < 0x20 || c == 0x7F) {
+                        out.append("&#x").append(Integer.toHexString(c)).append(';');
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Replace the entities written by {@link #escape(StringBuilder, CharSequence)} and numeric character references
+     * by the characters they stand for.
+     * @param text      The escaped text.
+     * @return  The plain text.
+     */
+    public static String unescape(String text) {
+        int amp = text.indexOf('&');
+        if (amp < 0) {
+            return text;
+        }
+
+        StringBuilder out = new StringBuilder(text.length());
+        int i = 0;
+        while (amp >= 0) {
+            out.append(text, i, amp);
+            int end = text.indexOf(';', amp);
+            if (end < 0) {
+                i = amp;
+                break;
+            }
+            String entity = text.substring(amp + 1, end);
+            switch (entity) {
+                case "amp": out.append('&'); break;
+                case "lt": out.append('<'); break;
+                case "gt": out.append('>'); break;
+                case "quot": out.append('"'); break;
+                case "apos": out.append('\''); break;
+                default:
+                    try {
+                        if (entity.startsWith("#x") || entity.startsWith("#X")) {
+                            out.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+                            break;
+                        } else if (entity.startsWith("#")) {
+                            out.appendCodePoint(Integer.parseInt(entity.substring(1)));
+                            break;
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // malformed reference, kept below
+                    }
+                    // unknown entity, keep it as it is
+                    out.append('&').append(entity).append(';');
+                    break;
+            }
+            i = end + 1;
+            amp = text.indexOf('&', i);
+        }
+        out.append(text, i, text.length());
+        return out.toString();
+    }
+}
@@ -1,27 +1,104 @@
 package dev;
 
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class ServiceProvider extends Thread {
+    /**
+     * Enum to determine how clients are served.
+     */
+    public enum ServerMode {
+        /** One client at a time, served with blocking reads. */
+        BLOCKING,
+        /** Many clients served by a single thread using a non-blocking {@link java.nio.channels.Selector}. */
+        SELECTOR,
+        /** Many clients, each served with blocking reads on its own virtual thread. */
+        THREADED
+    }
+
+    /**
+     * Enum to determine what happens to frames of a client exceeding its rate limit.
+     */
+    public enum RateLimitAction {
+        /** Stop reading from the client until it is back within its rate; other clients are not affected. */
+        THROTTLE,
+        /** Drop frames exceeding the rate. */
+        REJECT
+    }
+
+    private static final long CLIENT_STACK_SIZE = 256 * 1024;
+    private static final long DEFAULT_FLUSH_INTERVAL = 200;
+    private static final int DEFAULT_DIRTY_THRESHOLD = 64;
+    private static final int DEFAULT_SNAPSHOT_INTERVAL = 10000;
 
-    private List<NetService> services;
+    private static final String COMMAND_BEGIN = "BEGIN";
+    private static final String COMMAND_COMMIT = "COMMIT";
+    private static final String COMMAND_SUBSCRIBE = "SUBSCRIBE";
+    private static final String COMMAND_UNSUBSCRIBE = "UNSUBSCRIBE";
+    private static final String COMMAND_PING = "PING";
+    private static final String COMMAND_PONG = "PONG";
+    private static final String COMMAND_LAYOUT = "LAYOUT";
+    private static final String COMMAND_GET = "GET ";
+    private static final String COMMAND_SNAPSHOT = "SNAPSHOT";
+    private static final String COMMAND_HISTORY = "HISTORY ";
+    private static final int MAX_HISTORY_REPLY = 0xFFFF;
+
+    private static final long TIMER_TICK = 100;
+    private static final long MIN_TIMER_TICK = 10;
+
+    private ServiceRegistry registry;
+    private AtomicReference<StateSnapshot> state;
     private int port;
     private String type = "_http._tcp";
     private String serviceFilePath;
     private File serviceFile;
+    private ServiceFile serviceFileModel;
+    private StateJournal journal;
+    private ChangeHistory history;
+    // batches set their values one after another, so none builds on the values of a batch that is being undone
+    private final Object batchLock = new Object();
 
-    private ServerSocket server;
+    private ServerMode mode;
+    private ServerSocketChannel server;
     private Socket socket;
+    private EventLoop eventLoop;
+    private Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private Set<Connection> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private ThreadFactory clientThreads = createClientThreadFactory();
+    private TimerWheel timers;
+    private ScheduledExecutorService workers;
+    private ConnectionLifecycle lifecycle;
+    private long idleTimeout = 0;
+    private long heartbeat = 0;
+    private Coalescer coalescer;
+    private ActuatorPipeline actuators;
+    private Map<NetService.ServiceType, Long> coalesceWindows = new EnumMap<>(NetService.ServiceType.class);
+    private double rateLimit = 0;
+    private int rateBurst = 0;
+    private RateLimitAction rateLimitAction = RateLimitAction.THROTTLE;
 
     private DataValidator validator = new DataValidator();
 
-    private boolean running = true;
+    private volatile boolean running = true;
+    private CountDownLatch listening = new CountDownLatch(1);
+    private AtomicBoolean accepted = new AtomicBoolean(false);
 
     /**
      * Class constructor.
@@ -31,13 +108,115 @@ public class ServiceProvider extends Thread {
      *
      * @param pServices The list of provided {@link NetService}s.
      * @param path      The absolute path of the Avahi service file.
-     * @param port      The port to be used for the {@link ServerSocket}.
+     * @param port      The port to be used for the {@link ServerSocketChannel}.
      */
     public ServiceProvider(List<NetService> pServices, String path, int port) {
-        this.services = pServices;
+        this(pServices, path, port, ServerMode.BLOCKING);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param pServices The list of provided {@link NetService}s.
+     * @param path      The absolute path of the Avahi service file.
+     * @param port      The port to be used for the {@link ServerSocketChannel}.
+     * @param pMode     The {@link ServerMode} used to serve clients.
+     */
+    public ServiceProvider(List<NetService> pServices, String path, int port, ServerMode pMode) {
+        this.registry = new ServiceRegistry(pServices);
+        this.state = new AtomicReference<>(StateSnapshot.of(this.registry));
         this.serviceFilePath = path;
         this.serviceFile = new File(this.serviceFilePath);
+        this.serviceFileModel = new ServiceFile(this.serviceFilePath, DEFAULT_FLUSH_INTERVAL, DEFAULT_DIRTY_THRESHOLD);
+        this.journal = new StateJournal(this.serviceFilePath, DEFAULT_SNAPSHOT_INTERVAL);
+        this.history = new ChangeHistory(this.serviceFilePath, ChangeHistory.DEFAULT_CAPACITY);
         this.port = port;
+        this.mode = pMode;
+    }
+
+    /**
+     * Configure how changed values are written behind to the service file. Must be called before the provider is started.
+     * @param flushInterval     Maximum time in milliseconds a change stays unwritten.
+     * @param dirtyThreshold    Number of unwritten changes which triggers an immediate write.
+     */
+    public void setFlushPolicy(long flushInterval, int dirtyThreshold) {
+        this.serviceFileModel = new ServiceFile(this.serviceFilePath, flushInterval, dirtyThreshold);
+    }
+
+    /**
+     * Configure how many changes of every service are kept in the {@link ChangeHistory}. Must be called before the
+     * provider is started.
+     * @param capacity  Number of changes kept per service, 0 disables the history.
+     */
+    public void setHistoryCapacity(int capacity) {
+        this.history = capacity > 0 ? new ChangeHistory(this.serviceFilePath, capacity) : null;
+    }
+
+    /**
+     * Configure when silent clients are pinged and closed. Must be called before the provider is started.
+     * @param pIdleTimeout  Time in milliseconds after which a silent connection is closed, 0 disables idle timeouts.
+     * @param pHeartbeat    Time in milliseconds after which a silent client is pinged, 0 disables heartbeats.
+     *                      Only used together with an idle timeout.
+     */
+    public void setTimeouts(long pIdleTimeout, long pHeartbeat) {
+        this.idleTimeout = pIdleTimeout;
+        this.heartbeat = pHeartbeat;
+    }
+
+    /**
+     * Coalesce changes of a {@link NetService.ServiceType}: only the latest value received within the window is
+     * applied. Must be called before the provider is started.
+     * @param pType         The {@link NetService.ServiceType}.
+     * @param windowMillis  The window in milliseconds, 0 applies every change immediately.
+     */
+    public void setCoalesceWindow(NetService.ServiceType pType, long windowMillis) {
+        this.coalesceWindows.put(pType, windowMillis);
+    }
+
+    /**
+     * Limit the rate of frames every client may send. Must be called before the provider is started.
+     * @param pRate     Frames per second, 0 disables the limit.
+     * @param pBurst    Frames accepted at once before the rate applies.
+     * @param pAction   The {@link RateLimitAction} taken for frames exceeding the rate.
+     */
+    public void setRateLimit(double pRate, int pBurst, RateLimitAction pAction) {
+        this.rateLimit = pRate;
+        this.rateBurst = pBurst;
+        this.rateLimitAction = pAction;
+    }
+
+    /**
+     * Hand every applied value to an {@link ActuatorPipeline}. The values restored on startup are handed over, too,
+     * so actuators start in the state clients see. Must be called before the provider is started.
+     * @param pActuators    The {@link ActuatorPipeline}, possibly shared by several providers.
+     */
+    public void setActuators(ActuatorPipeline pActuators) {
+        this.actuators = pActuators;
+    }
+
+    /**
+     * Serve an already bound listener instead of binding the port when started, so the port is bound exactly once.
+     * Must be called before the provider is started.
+     * @param pServer   The bound {@link ServerSocketChannel}.
+     */
+    public void setServer(ServerSocketChannel pServer) {
+        this.server = pServer;
+    }
+
+    /**
+     * Serve this provider from the shared {@link EventLoop}, {@link TimerWheel} and worker pool of a {@link DeviceHost}
+     * instead of threads of its own: clients are served in {@link ServerMode#SELECTOR} mode, the service file and
+     * the journal are written by the workers. Once started, the provider registers its listener with the loop and
+     * its own thread ends. Must be called before the provider is started.
+     * @param pLoop     The shared {@link EventLoop}, run by the host.
+     * @param pTimers   The shared {@link TimerWheel}, advanced by the loop.
+     * @param pWorkers  The shared worker pool.
+     */
+    void host(EventLoop pLoop, TimerWheel pTimers, ScheduledExecutorService pWorkers) {
+        this.mode = ServerMode.SELECTOR;
+        this.eventLoop = pLoop;
+        this.timers = pTimers;
+        this.workers = pWorkers;
     }
 
     /**
@@ -49,75 +228,974 @@ public class ServiceProvider extends Thread {
     @Override
     public void run() {
         this.running = true;
-        startSocket(false);
+        startSocket();
     }
 
     /**
-     * Setup and start server socket.
+     * Setup and start server socket. The listener is bound once, unless it has been handed over already, and kept
+     * for the whole lifetime of the provider.
      *
      * @author Malte Josten, Universität Duisburg-Essen
      * @author malte.josten@stud.uni-due.de
+     */
+    private void startSocket() {
+        try {
+            if (this.server == null) {
+                this.server = ServerSocketChannel.open();
+                this.server.bind(new InetSocketAddress(this.port));
+            }
+            this.port = this.server.socket().getLocalPort();
+            checkServiceFile();
+            if (!this.running) {
+                return;
+            }
+
+            Log.info("Using port {}.", this.port);
+            Log.info("Listening {} ms after launch.", millisSinceLaunch());
+            this.listening.countDown();
+
+            createTimers();
+
+            if (this.workers != null) {
+                // hosted, the host runs the loop
+                this.eventLoop.register(this.server, this);
+                return;
+            }
+
+            switch (this.mode) {
+                case SELECTOR:
+                    this.eventLoop = new EventLoop();
+                    this.eventLoop.setTimers(this.timers);
+                    this.eventLoop.register(this.server, this);
+                    this.eventLoop.run();
+                    break;
+                case THREADED:
+                    startTimers();
+                    acceptThreaded();
+                    break;
+                case BLOCKING:
+                default:
+                    startTimers();
+                    acceptBlocking();
+                    break;
+            }
+        } catch(IOException e) {
+            if (this.running) {
+                Log.error("An error occurred while serving port {}.", this.port, e);
+                toggleRunningRecord(false);
+            }
+        }
+    }
+
+    /**
+     * Create the {@link TimerWheel}, unless a shared one is used, and everything driven by it, if idle timeouts,
+     * coalescing or throttling are configured.
+     */
+    private void createTimers() {
+        boolean throttling = this.rateLimit > 0 && this.rateLimitAction == RateLimitAction.THROTTLE;
+        if (this.idleTimeout <= 0 && this.coalesceWindows.isEmpty() && !throttling) {
+            return;
+        }
+
+        if (this.timers == null) {
+            this.timers = new TimerWheel(getTimerTick(this.coalesceWindows.values()));
+        }
+
+        if (this.idleTimeout > 0) {
+            this.lifecycle = new ConnectionLifecycle(this.timers, this.idleTimeout, this.heartbeat);
+        }
+        if (!this.coalesceWindows.isEmpty()) {
+            this.coalescer = new Coalescer(this.timers, this::applyValue);
+            this.coalesceWindows.forEach(this.coalescer::setWindow);
+        }
+    }
+
+    /**
+     * Returns the resolution of a {@link TimerWheel} driving the given coalescing windows: it ticks at least as often
+     * as the shortest window.
+     * @param windows   The coalescing windows in milliseconds.
+     * @return  The duration of one tick in milliseconds.
+     */
+    public static long getTimerTick(Collection<Long> windows) {
+        long tick = TIMER_TICK;
+        for (long window: windows) {
+            if (window > 0) {
+                tick = Math.max(MIN_TIMER_TICK, Math.min(tick, window));
+            }
+        }
+        return tick;
+    }
+
+    /**
+     * Tick the {@link TimerWheel} on its own thread, as no {@link EventLoop} advances it.
+     */
+    private void startTimers() {
+        if (this.timers != null) {
+            this.timers.start();
+        }
+    }
+
+    /**
+     * Accept one client at a time and serve it with blocking reads until it disconnects.
      *
-     * @param restart   Indicates whether the function is called initially or after restart of the {@link ServerSocket}.
+     * @throws IOException  If the {@link ServerSocketChannel} fails or gets closed.
      */
-    private void startSocket(boolean restart) {
+    private void acceptBlocking() throws IOException {
+        while (this.running) {
+            SocketChannel client = this.server.accept();
+            this.socket = client.socket();
+            serveBlocking(client);
+        }
+    }
+
+    /**
+     * Accept clients in a loop and serve each of them with blocking reads on its own (virtual, if available) thread.
+     *
+     * @throws IOException  If the {@link ServerSocketChannel} fails or gets closed.
+     */
+    private void acceptThreaded() throws IOException {
+        while (this.running) {
+            SocketChannel client = this.server.accept();
+            this.clientThreads.newThread(() -> serveBlocking(client)).start();
+        }
+    }
+
+    /**
+     * Serve a blocking client until it disconnects.
+     * @param client    The accepted blocking {@link SocketChannel}.
+     */
+    private void serveBlocking(SocketChannel client) {
+        Connection connection = new Connection(client, this);
+        onConnect(connection);
+
         try {
-            this.server = new ServerSocket(this.port);
-            if(!restart) {
-                this.port = this.server.getLocalPort();
-                checkServiceFile();
+            // wait for input and process it
+            do {
+                long delay = connection.getThrottleDelay();
+                if (delay > 0) {
+                    Metrics.THROTTLED.increment();
+                    LockSupport.parkNanos(delay);
+                }
+            } while (connection.read() >= 0);
+        }
+        // device disconnected
+        catch (IOException e) {
+            // connection reset or closed by closeServer()
+        }
 
-                System.out.println("Using port " + this.port + ".");
+        connection.close();
+        onDisconnect(connection);
+    }
+
+    /**
+     * Create the {@link ThreadFactory} used for client threads in {@link ServerMode#THREADED} mode.
+     * Virtual threads are used when the running JVM provides them (Java 21+); otherwise daemon threads with
+     * a small stack are created.
+     * @return  The {@link ThreadFactory} for client threads.
+     */
+    private ThreadFactory createClientThreadFactory() {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "Client-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // no virtual threads available
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(null, runnable, "Client-" + counter.getAndIncrement(), CLIENT_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Validate a received frame and apply it to the matching {@link NetService}.
+     * Frames are in following format: &lt;SERVICE_TYPE&gt;=&lt;value&gt;, or a command without separator.
+     * A value may end with {@link DataValidator#CONDITION} and a version, which applies it only if the service is
+     * still at that version. Values ending like a condition are rejected, so the suffix is never part of a value.
+     *
+     * @param connection    The {@link Connection} the frame was received from.
+     * @param key           The received key, or null if the frame contains no separator.
+     * @param value         The received value, or the command if the frame contains no separator.
+     */
+    public void handleFrame(Connection connection, CharSequence key, CharSequence value) {
+        String client = connection.getAddress();
+        Metrics.PACKETS.increment();
+        if (!admit(connection)) {
+            return;
+        }
+
+        if (key == null) {
+            if (COMMAND_BEGIN.contentEquals(value)) {
+                connection.getBatch().begin();
+                return;
+            } else if (COMMAND_COMMIT.contentEquals(value)) {
+                commitBatch(connection);
+                return;
+            } else if (COMMAND_SUBSCRIBE.contentEquals(value)) {
+                subscribe(connection, true);
+                return;
+            } else if (COMMAND_UNSUBSCRIBE.contentEquals(value)) {
+                subscribe(connection, false);
+                return;
+            } else if (COMMAND_PING.contentEquals(value)) {
+                sendControl(connection, Connection.CONTROL_PONG);
+                return;
+            } else if (COMMAND_PONG.contentEquals(value)) {
+                // reading the frame already counts as activity
+                return;
+            } else if (COMMAND_LAYOUT.contentEquals(value)) {
+                sendControl(connection, Connection.CONTROL_LAYOUT);
+                return;
+            } else if (COMMAND_SNAPSHOT.contentEquals(value)) {
+                reply(connection, connection.encode(this.state.get()));
+                return;
+            } else if (startsWith(value, COMMAND_GET)) {
+                get(connection, value.subSequence(COMMAND_GET.length(), value.length()).toString().trim());
+                return;
+            } else if (startsWith(value, COMMAND_HISTORY)) {
+                queryHistory(connection, value.subSequence(COMMAND_HISTORY.length(), value.length()).toString().trim());
+                return;
+            }
+        }
+
+        long expected = NetService.ANY_VERSION;
+        int condition = key != null ? DataValidator.findCondition(value) : -1;
+        if (condition >= 0) {
+            expected = DataValidator.parseVersion(value, condition);
+            value = value.subSequence(0, condition);
+            if (expected < 0) {
+                Log.warn("Received malformed version for {} [{}]!", key.toString(), client);
+                if (connection.getBatch().isOpen()) {
+                    connection.getBatch().fail();
+                }
+                return;
+            }
+        }
+
+        if(this.validator.validData(key, value, client)) {
+            // retrieve service by serviceType and instance (key) and set its value
+            NetService service = this.registry.get(DataValidator.lookupType(key), DataValidator.parseInstance(key));
+            if (service != null) {
+                update(connection, service, NetService.valueOf(service.getType(), value), expected);
+                return;
+            }
+
+            Log.warn("Couldn't find service {} [{}]!", key.toString(), client);
+            if (connection.getBatch().isOpen()) {
+                connection.getBatch().fail();
+            }
+        } else if (connection.getBatch().isOpen()) {
+            connection.getBatch().fail();
+        }
+    }
+
+    /**
+     * Validate a received binary frame and apply it to the addressed {@link NetService}.
+     *
+     * @param connection    The {@link Connection} the frame was received from.
+     * @param frame         The decoder holding the received frame.
+     */
+    public void handleBinaryFrame(Connection connection, BinaryFrameDecoder frame) {
+        String client = connection.getAddress();
+        Metrics.PACKETS.increment();
+        if (!admit(connection)) {
+            return;
+        }
+
+        switch (frame.opcode()) {
+            case BinaryFrameDecoder.OP_BATCH_BEGIN:
+                connection.getBatch().begin();
+                return;
+            case BinaryFrameDecoder.OP_BATCH_COMMIT:
+                commitBatch(connection);
+                return;
+            case BinaryFrameDecoder.OP_SUBSCRIBE:
+                subscribe(connection, true);
+                return;
+            case BinaryFrameDecoder.OP_UNSUBSCRIBE:
+                subscribe(connection, false);
+                return;
+            case BinaryFrameDecoder.OP_PING:
+                sendControl(connection, Connection.CONTROL_PONG);
+                return;
+            case BinaryFrameDecoder.OP_PONG:
+                return;
+            case BinaryFrameDecoder.OP_LAYOUT:
+                sendControl(connection, Connection.CONTROL_LAYOUT);
+                return;
+            case BinaryFrameDecoder.OP_SNAPSHOT:
+                reply(connection, connection.encode(this.state.get()));
+                return;
+            case BinaryFrameDecoder.OP_GET:
+                get(connection, frame.serviceId());
+                return;
+            case BinaryFrameDecoder.OP_IF_VERSION:
+                connection.setCondition(frame.serviceId(), frame.version());
+                return;
+            case BinaryFrameDecoder.OP_HISTORY:
+                NetService requested = this.state.get().getService(frame.serviceId());
+                if (requested == null) {
+                    reply(connection, connection.encodeMissing(String.valueOf(frame.serviceId()), frame.serviceId()));
+                } else {
+                    queryHistory(connection, requested, frame.from(), frame.to());
+                }
+                return;
+        }
+
+        long expected = connection.takeCondition(frame.serviceId());
+        NetService service = this.registry.get(frame.serviceId());
+        if (service == null) {
+            Log.warn("Couldn't find service with id {} [{}]!", frame.serviceId(), client);
+            if (connection.getBatch().isOpen()) {
+                connection.getBatch().fail();
+            }
+            return;
+        }
+        if (expected == Connection.MISMATCHED_CONDITION) {
+            // applying it unconditionally could overwrite a change the client has not seen
+            Log.warn("Rejected change of service with id {}, its condition was set for another service [{}]!", frame.serviceId(), client);
+            if (connection.getBatch().isOpen()) {
+                connection.getBatch().fail();
+            } else {
+                reply(connection, connection.encodeConflict(service, service.getRevision()));
+            }
+            return;
+        }
+
+        String value;
+        switch (frame.opcode()) {
+            case BinaryFrameDecoder.OP_SET_FALSE:
+            case BinaryFrameDecoder.OP_SET_TRUE:
+                value = String.valueOf(frame.flag());
+                break;
+            case BinaryFrameDecoder.OP_SET_RGB:
+                value = DataValidator.formatColor(frame.color());
+                break;
+            case BinaryFrameDecoder.OP_SET_TEXT:
+            default:
+                value = frame.text().toString();
+                break;
+        }
+
+        if (this.validator.validData(service.getType(), value, client)) {
+            update(connection, service, value, expected);
+        } else if (connection.getBatch().isOpen()) {
+            connection.getBatch().fail();
+        }
+    }
+
+    /**
+     * Answer a request for the value of a service given by its key or id. Served from the current
+     * {@link StateSnapshot} without locking.
+     * @param connection    The {@link Connection} the request was received from.
+     * @param name          The requested key, e.g. TOGGLE.1, or id.
+     */
+    private void get(Connection connection, String name) {
+        StateSnapshot snapshot = this.state.get();
+        NetService service = lookup(snapshot, name);
+        if (service == null) {
+            reply(connection, connection.encodeMissing(name, -1));
+            return;
+        }
+        reply(connection, connection.encode(service, snapshot.getValue(service.getId())));
+    }
+
+    /**
+     * Resolve a service given by its key or id.
+     * @param snapshot  The {@link StateSnapshot} holding the provided services.
+     * @param name      The key, e.g. TOGGLE.1, or id.
+     * @return  The {@link NetService} or null if it is not provided.
+     */
+    private NetService lookup(StateSnapshot snapshot, String name) {
+        if (!name.isEmpty() && Character.isDigit(name.charAt(0))) {
+            try {
+                return snapshot.getService(Integer.parseInt(name));
+            } catch (NumberFormatException e) {
+                return null;
             }
+        }
 
-            this.socket = server.accept();
+        NetService.ServiceType serviceType = DataValidator.lookupType(name);
+        NetService service = serviceType != null ? this.registry.get(serviceType, DataValidator.parseInstance(name)) : null;
+        return service != null && snapshot.getService(service.getId()) == service ? service : null;
+    }
 
-            System.out.println(this.socket.getInetAddress().toString().substring(1) + " has connected.");
+    /**
+     * Answer a request for the recorded changes of a service: HISTORY &lt;key or id&gt; &lt;from&gt; &lt;to&gt;, both
+     * times given in milliseconds since the epoch or as ISO-8601 instants, e.g. 2020-05-01T12:00:00Z.
+     * @param connection    The {@link Connection} the request was received from.
+     * @param arguments     The arguments of the request.
+     */
+    private void queryHistory(Connection connection, String arguments) {
+        String[] parts = arguments.split("\\s+");
+        if (parts.length != 3) {
+            reply(connection, connection.encodeError("expected " + COMMAND_HISTORY + "<service> <from> <to>"));
+            return;
+        }
 
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(this.socket.getInputStream()))){
-                while(true) {
-                    // wait for input and process it
-                    String data = br.readLine();
+        NetService service = lookup(this.state.get(), parts[0]);
+        if (service == null) {
+            reply(connection, connection.encodeMissing(parts[0], -1));
+            return;
+        }
 
-                    // Input should be in following format: <SERVICE_TYPE>=<value>
-                    String[] splitUpData = data.split("=");
+        long from;
+        long to;
+        try {
+            from = parseTime(parts[1]);
+            to = parseTime(parts[2]);
+        } catch (RuntimeException e) {
+            reply(connection, connection.encodeError("malformed time " + e.getMessage()));
+            return;
+        }
+        queryHistory(connection, service, from, to);
+    }
 
-                    if(this.validator.validData(splitUpData, this)) {
-                        // retrieve service by serviceType (splitUpData[0]) and set its value (splitUpData[1])
-                        for (NetService service : this.services) {
-                            if (service.getType().toString().equals(splitUpData[0])) {
+    /**
+     * Answer a request for the recorded changes of a service within a time range.
+     * @param connection    The {@link Connection} the request was received from.
+     * @param service       The requested {@link NetService}.
+     * @param from          Start of the range in milliseconds since the epoch, inclusive.
+     * @param to            End of the range in milliseconds since the epoch, inclusive.
+     */
+    private void queryHistory(Connection connection, NetService service, long from, long to) {
+        List<ChangeHistory.Entry> entries = this.history != null ? this.history.query(service, from, to) : List.of();
+        if (entries.size() > MAX_HISTORY_REPLY) {
+            // keep the latest changes
+            entries = entries.subList(entries.size() - MAX_HISTORY_REPLY, entries.size());
+        }
+        reply(connection, connection.encodeHistory(service, entries));
+    }
 
-                                String old = service.getValue();
+    /**
+     * Parse a time given in milliseconds since the epoch or as ISO-8601 instant.
+     * @param value     The time.
+     * @return  The time in milliseconds since the epoch.
+     * @throws RuntimeException If the time is malformed.
+     */
+    private static long parseTime(String value) {
+        if (Character.isDigit(value.charAt(0))) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                // an ISO-8601 instant starts with digits, too
+            }
+        }
+        try {
+            return Instant.parse(value).toEpochMilli();
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException(value, e);
+        }
+    }
 
-                                // change value
-                                service.setValue(splitUpData[1]);
+    /**
+     * Answer a request for the value of a service given by its id. Served from the current {@link StateSnapshot}
+     * without locking.
+     * @param connection    The {@link Connection} the request was received from.
+     * @param id            The requested id.
+     */
+    private void get(Connection connection, int id) {
+        StateSnapshot snapshot = this.state.get();
+        NetService service = snapshot.getService(id);
+        if (service == null) {
+            reply(connection, connection.encodeMissing(String.valueOf(id), id));
+            return;
+        }
+        reply(connection, connection.encode(service, snapshot.getValue(id)));
+    }
 
-                                // update service file
-                                updateService(service);
+    /**
+     * Send the reply to a request.
+     * @param connection    The {@link Connection} the request was received from.
+     * @param frame         The encoded reply.
+     */
+    private void reply(Connection connection, byte[] frame) {
+        if (connection.queueReply(frame)) {
+            startWriter(connection);
+        }
+    }
 
-                                // print info
-                                System.out.println("[" + this.socket.getInetAddress().toString().substring(1) + "]: " +
-                                        "Changed value of Service " + service.getType() + " to " + splitUpData[1] + " (old: " + old + ").");
+    /**
+     * Returns whether a frame starts with a command taking an argument.
+     * @param value     The received frame.
+     * @param command   The command including its trailing space.
+     * @return  Return true if the frame starts with the command. Otherwise return false.
+     */
+    private static boolean startsWith(CharSequence value, String command) {
+        if (value.length() < command.length()) {
+            return false;
+        }
+        for (int i = 0; i < command.length(); i++) {
+            if (value.charAt(i) != command.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                                break;
-                            }
-                        }
+    /**
+     * Charge a frame to the rate limit of its connection. Throttled connections run into debt, which is paid by
+     * pausing reads before the next one.
+     * @param connection    The {@link Connection} the frame was received from.
+     * @return  Return true if the frame may be handled. Otherwise return false.
+     */
+    private boolean admit(Connection connection) {
+        TokenBucket bucket = connection.getRateLimit();
+        if (bucket == null) {
+            return true;
+        }
+
+        if (this.rateLimitAction == RateLimitAction.THROTTLE) {
+            bucket.take();
+            return true;
+        }
+
+        if (bucket.tryTake()) {
+            connection.setLimited(false);
+            return true;
+        }
+
+        Metrics.RATE_LIMITED.increment();
+        if (!connection.isLimited()) {
+            // report once per burst, not once per frame
+            connection.setLimited(true);
+            Log.warn("Rate limit exceeded, rejecting frames [{}]!", connection.getAddress());
+        }
+        if (connection.getBatch().isOpen()) {
+            connection.getBatch().fail();
+        }
+        return false;
+    }
+
+    /**
+     * Apply a validated value, or collect it if the connection has an open {@link Batch}.
+     * Changes of coalesced {@link NetService.ServiceType}s are handed to the {@link Coalescer}, unless they are
+     * conditional: those are applied right away and answered with the new version or the conflicting one.
+     *
+     * @param connection    The {@link Connection} the value was received from.
+     * @param service       The {@link NetService} to change.
+     * @param newValue      The validated value.
+     * @param expected      The version the service must be at, or {@link NetService#ANY_VERSION}.
+     */
+    private void update(Connection connection, NetService service, String newValue, long expected) {
+        Batch batch = connection.getBatch();
+        if (batch.isOpen()) {
+            batch.add(service.getId(), newValue, expected);
+        } else if (expected != NetService.ANY_VERSION) {
+            long version = applyValue(service, newValue, connection.getAddress(), expected);
+            reply(connection, version >= 0 ? connection.encodeVersion(service, version)
+                    : connection.encodeConflict(service, service.getRevision()));
+        } else if (this.coalescer == null || !this.coalescer.offer(service, newValue, connection.getAddress())) {
+            applyValue(service, newValue, connection.getAddress());
+        }
+    }
+
+    /**
+     * Change the value of a {@link NetService}, journal and persist it.
+     *
+     * @param service   The {@link NetService} to change.
+     * @param newValue  The validated value.
+     * @param client    The address of the client the value was received from.
+     */
+    private void applyValue(NetService service, String newValue, String client) {
+        applyValue(service, newValue, client, NetService.ANY_VERSION);
+    }
+
+    /**
+     * Change the value of a {@link NetService} if it is at the expected version, journal and persist it.
+     * The value is set by compare-and-set without locking. Only handing it on to the history, the
+     * {@link StateSnapshot}, journal, service file and actuators takes the lock, in the order of versions: a value
+     * overtaken by a newer one in between is not handed on, as the newer one already has been. What is handed on is
+     * the value set as this version, never the current one, which may belong to a change not handed on yet.
+     *
+     * @param service   The {@link NetService} to change.
+     * @param newValue  The validated value.
+     * @param client    The address of the client the value was received from.
+     * @param expected  The version the service must be at, or {@link NetService#ANY_VERSION}.
+     * @return  The version the value was set as, or -1 if the service is at another version.
+     */
+    private long applyValue(NetService service, String newValue, String client, long expected) {
+        long start = System.nanoTime();
+        String old = service.getValue();
+
+        // change value, unless another client changed it first
+        long version = service.compareAndSet(expected, newValue);
+        if (version < 0) {
+            Metrics.CONFLICTS.increment();
+            Log.info("[{}]: Rejected change of Service {}, expected version {} but found {}.", client,
+                    service.getKey(), expected, service.getVersion());
+            return version;
+        }
+        if (expected != NetService.ANY_VERSION && this.coalescer != null) {
+            // a value still waiting in its window is older than this one
+            this.coalescer.discard(service.getId());
+        }
+
+        boolean overtaken;
+        synchronized (this.serviceFile) {
+            overtaken = !service.publish(version);
+            if (!overtaken) {
+                if (this.history != null) {
+                    this.history.record(service, newValue, client, System.currentTimeMillis());
+                }
+                this.state.set(this.state.get().with(service, newValue));
+                this.journal.append(service, newValue);
+
+                // update service file
+                updateService(service, newValue);
+
+                // act on it, in the order values are applied
+                if (this.actuators != null) {
+                    this.actuators.submit(service, newValue);
+                }
+            }
+        }
+        Metrics.UPDATE_LATENCY.recordSince(start);
+        Metrics.UPDATES.increment();
+
+        if (overtaken) {
+            Log.info("[{}]: Changed value of Service {} to {}, overtaken by a newer value.", client, service.getKey(), newValue);
+            return version;
+        }
+
+        publish(service);
+
+        // print info
+        Log.info("[{}]: Changed value of Service {} to {} (old: {}).", client, service.getKey(), newValue, old);
+        return version;
+    }
+
+    /**
+     * Apply all changes collected by the {@link Batch} of a connection as one unit: they are validated together,
+     * become visible together, are journaled as one record and persisted with one write of the service file.
+     * Values are set by compare-and-set without taking the lock of the service file, like single changes; batches set
+     * theirs one batch at a time. If a concurrent single change breaks a condition of the batch in between, the
+     * changes made so far are undone and the batch is rejected; its values are never handed on.
+     *
+     * @param connection    The {@link Connection} whose {@link Batch} is committed.
+     */
+    private void commitBatch(Connection connection) {
+        Batch batch = connection.getBatch();
+        String client = connection.getAddress();
+
+        if (!batch.isOpen()) {
+            Log.warn("Received {} without {} [{}]!", COMMAND_COMMIT, COMMAND_BEGIN, client);
+            return;
+        }
+        if (batch.isFailed()) {
+            Log.warn("Rejected batch of {} changes [{}]!", batch.size(), client);
+            batch.clear();
+            return;
+        }
+
+        int count = batch.size();
+        int[] indexes = new int[count];
+        NetService[] changed = new NetService[count];
+        NetService.Revision[] previous = new NetService.Revision[count];
+        long[] versions = new long[count];
+        int conflict = -1;
+        NetService.Revision current = null;
+
+        for (int i = 0; i < count; i++) {
+            indexes[i] = batch.getIndex(i);
+            changed[i] = this.registry.get(indexes[i]);
+            if (changed[i] == null) {
+                // removed while the batch was open, nothing has been changed yet
+                Log.warn("Rejected batch of {} changes, service with id {} has been removed [{}]!", count, indexes[i], client);
+                batch.clear();
+                return;
+            }
+        }
+
+        for (int i = 0; i < count && conflict < 0; i++) {
+            if (batch.getExpected(i) != NetService.ANY_VERSION && changed[i].getVersion() != batch.getExpected(i)) {
+                // another client changed it first, nothing has been changed yet
+                conflict = i;
+                current = changed[i].getRevision();
+            }
+        }
+
+        long start = System.nanoTime();
+        int applied = 0;
+        synchronized (this.batchLock) {
+            for (int i = 0; i < count && conflict < 0; i++) {
+                long expected = batch.getExpected(i);
+                for (int j = 0; j < i; j++) {
+                    if (changed[j] == changed[i] && expected != NetService.ANY_VERSION) {
+                        // the condition refers to the version before the batch, which the batch has changed since
+                        expected = versions[j];
+                    }
+                }
+
+                // change value, retrying unconditional changes until no other writer interferes
+                do {
+                    previous[i] = changed[i].getRevision();
+                    if (expected != NetService.ANY_VERSION && previous[i].getVersion() != expected) {
+                        conflict = i;
+                        current = previous[i];
+                        break;
                     }
+                    versions[i] = changed[i].compareAndSet(previous[i].getVersion(), batch.getValue(i));
+                } while (versions[i] < 0);
+                if (conflict < 0) {
+                    applied++;
                 }
             }
-            // device disconnected
-            catch (NullPointerException e) {
-                System.out.println(this.socket.getInetAddress().toString().substring(1) + " has disconnected.");
-                this.server.close();
-                startSocket(true);
-            } catch (SocketException e) {
-                System.out.println(this.socket.getInetAddress().toString().substring(1) + " has disconnected.");
-                this.server.close();
-                startSocket(true);
+
+            // undo the changes made so far, in reverse, unless a single change has been set on top of them since
+            for (int i = applied - 1; i >= 0 && conflict >= 0; i--) {
+                versions[i] = changed[i].compareAndSet(versions[i], previous[i].getValue());
             }
-        } catch(IOException e) {
-            e.printStackTrace();
-            toggleRunningRecord(false);
+        }
+
+        if (conflict >= 0) {
+            undo(changed, previous, versions, applied);
+            Metrics.CONFLICTS.increment();
+            Log.info("[{}]: Rejected batch, expected version {} of Service {} but found {}.", client,
+                    batch.getExpected(conflict), changed[conflict].getKey(), current.getVersion());
+            reply(connection, connection.encodeConflict(changed[conflict], current));
+            batch.clear();
+            return;
+        }
+
+        if (this.coalescer != null) {
+            for (int i = 0; i < count; i++) {
+                // the batch is newer than a value still waiting in its window
+                this.coalescer.discard(indexes[i]);
+            }
+        }
+
+        // changes overtaken by a concurrent writer in between are left out, the newer values have been handed on
+        NetService[] handed = new NetService[count];
+        String[] keys = new String[count];
+        String[] values = new String[count];
+        int handedCount = 0;
+        synchronized (this.serviceFile) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                if (!changed[i].publish(versions[i])) {
+                    continue;
+                }
+                handed[handedCount] = changed[i];
+                keys[handedCount] = recordKey(changed[i]);
+                values[handedCount] = batch.getValue(i);
+                handedCount++;
+
+                if (this.history != null) {
+                    this.history.record(changed[i], batch.getValue(i), client, now);
+                }
+                if (this.actuators != null) {
+                    this.actuators.submit(changed[i], batch.getValue(i));
+                }
+            }
+
+            if (handedCount > 0) {
+                this.state.set(this.state.get().with(handed, values, handedCount));
+                this.journal.append(handed, values, handedCount);
+                this.serviceFileModel.setRecords(keys, values, handedCount);
+            }
+        }
+        Metrics.UPDATE_LATENCY.recordSince(start);
+        Metrics.UPDATES.add(count);
+
+        StringBuilder info = Log.isEnabled(Log.Level.INFO) ? new StringBuilder() : null;
+        for (int i = 0; i < count; i++) {
+            publish(changed[i]);
+            if (batch.getExpected(i) != NetService.ANY_VERSION) {
+                reply(connection, connection.encodeVersion(changed[i], versions[i]));
+            }
+            if (info != null) {
+                info.append(i == 0 ? "" : ", ").append(changed[i].getKey()).append(" to ").append(batch.getValue(i))
+                        .append(" (old: ").append(previous[i].getValue()).append(")");
+            }
+        }
+        batch.clear();
+
+        // print info
+        Log.info("[{}]: Changed values of Services {}.", client, info);
+    }
+
+    /**
+     * Hand on the undo of a rejected batch as a version of its own. The values of the batch have never been handed
+     * on, so this only matters if the restored value has been already and a newer version must follow it. A restored
+     * value whose writer has not handed it on yet is left to that writer, which would be overtaken otherwise.
+     *
+     * @param changed   The {@link NetService}s changed by the batch.
+     * @param previous  The {@link NetService.Revision}s they were restored to.
+     * @param versions  The versions of the undo, or -1 where a newer change has been set on top of the batch.
+     * @param applied   The number of changes that have been undone.
+     */
+    private void undo(NetService[] changed, NetService.Revision[] previous, long[] versions, int applied) {
+        synchronized (this.serviceFile) {
+            for (int i = applied - 1; i >= 0; i--) {
+                if (versions[i] < 0 || !changed[i].isPublished(previous[i].getVersion()) || !changed[i].publish(versions[i])) {
+                    continue;
+                }
+
+                String value = previous[i].getValue();
+                this.state.set(this.state.get().with(changed[i], value));
+                this.journal.append(changed[i], value);
+                updateService(changed[i], value);
+                publish(changed[i]);
+            }
+        }
+    }
+
+    /**
+     * Start or stop pushing changes to a client. Blocking connections get a writer thread of their own, so a
+     * stalled client never blocks the thread serving its requests or any other client.
+     *
+     * @param connection    The {@link Connection} to (un)subscribe.
+     * @param subscribe     Whether changes should be pushed to the client.
+     */
+    private void subscribe(Connection connection, boolean subscribe) {
+        if (subscribe == connection.isSubscribed()) {
+            return;
+        }
+
+        connection.setSubscribed(subscribe);
+        if (!subscribe) {
+            this.subscribers.remove(connection);
+            return;
+        }
+
+        this.subscribers.add(connection);
+        startWriter(connection);
+    }
+
+    /**
+     * Send a control frame to a client.
+     * @param connection    The {@link Connection}.
+     * @param control       {@link Connection#CONTROL_PING}, {@link Connection#CONTROL_PONG} or
+     *                      {@link Connection#CONTROL_LAYOUT}.
+     */
+    void sendControl(Connection connection, int control) {
+        connection.queueControl(control);
+        startWriter(connection);
+    }
+
+    /**
+     * Start the writer thread of a blocking connection unless it is already running.
+     * @param connection    The {@link Connection}.
+     */
+    private void startWriter(Connection connection) {
+        if (connection.getKey() == null && connection.claimWriter()) {
+            this.clientThreads.newThread(connection::runWriter).start();
+        }
+    }
+
+    /**
+     * Push the change of a {@link NetService} to all subscribed clients. Slow clients only ever hold the latest
+     * value of each service, so publishing never blocks and never queues without bound.
+     *
+     * @param service   The changed {@link NetService}.
+     */
+    private void publish(NetService service) {
+        for (Connection subscriber: this.subscribers) {
+            subscriber.markChanged(service.getId());
+        }
+    }
+
+    /**
+     * Provide a new {@link NetService} while running. It is journaled, added to the service file and announced to
+     * all connected clients, which keep their connections.
+     *
+     * @param serviceType   The {@link NetService.ServiceType} of the new service.
+     * @param value         The validated initial value.
+     * @return  The registered {@link NetService}.
+     * @throws IllegalStateException    If no more services can be registered.
+     */
+    public NetService addService(NetService.ServiceType serviceType, String value) {
+        NetService service;
+        synchronized (this.serviceFile) {
+            service = this.registry.add(new NetService(serviceType, value));
+            this.state.set(this.state.get().with(service, value));
+            this.journal.append(service, value);
+            this.serviceFileModel.addRecord(recordKey(service), value);
+            if (this.actuators != null) {
+                this.actuators.submit(service, value);
+            }
+        }
+
+        pushLayout();
+        publish(service);
+
+        Log.info("Added service {} with id {} (value: {}).", service.getKey(), service.getId(), value);
+        return service;
+    }
+
+    /**
+     * Stop providing a {@link NetService} while running. Its record is removed from the service file and the change
+     * is announced to all connected clients, which keep their connections. Ids and keys of other services stay valid.
+     *
+     * @param service   The {@link NetService} to remove.
+     * @return  Return true if the service has been removed. Otherwise return false.
+     */
+    public boolean removeService(NetService service) {
+        synchronized (this.serviceFile) {
+            if (!this.registry.remove(service)) {
+                return false;
+            }
+            this.state.set(this.state.get().without(service));
+            this.serviceFileModel.removeRecord(recordKey(service));
+        }
+        if (this.coalescer != null) {
+            this.coalescer.discard(service.getId());
+        }
+        if (this.actuators != null) {
+            this.actuators.discard(service);
+        }
+
+        pushLayout();
+
+        Log.info("Removed service {} with id {}.", service.getKey(), service.getId());
+        return true;
+    }
+
+    /**
+     * Announce the current set of services to all connected clients.
+     */
+    private void pushLayout() {
+        for (Connection connection: this.connections) {
+            sendControl(connection, Connection.CONTROL_LAYOUT);
+        }
+    }
+
+    /**
+     * Register a newly accepted {@link Connection}.
+     * @param connection    The accepted {@link Connection}.
+     */
+    public void onConnect(Connection connection) {
+        if (!this.accepted.get() && this.accepted.compareAndSet(false, true)) {
+            Log.info("Accepted first client {} ms after launch.", millisSinceLaunch());
+        }
+        this.connections.add(connection);
+        if (this.rateLimit > 0) {
+            connection.setRateLimit(new TokenBucket(this.rateLimit, this.rateBurst));
+        }
+        if (this.lifecycle != null) {
+            this.lifecycle.register(connection);
+        }
+        Metrics.CONNECTS.increment();
+        Log.info("{} has connected.", connection.getAddress());
+    }
+
+    /**
+     * Unregister a closed {@link Connection}.
+     * @param connection    The closed {@link Connection}.
+     */
+    public void onDisconnect(Connection connection) {
+        this.subscribers.remove(connection);
+        if (this.lifecycle != null) {
+            this.lifecycle.unregister(connection);
+        }
+        if (this.connections.remove(connection)) {
+            Metrics.DISCONNECTS.increment();
+            Log.info("{} has disconnected.", connection.getAddress());
         }
     }
 
@@ -128,24 +1206,80 @@ public class ServiceProvider extends Thread {
      * @author malte.josten@stud.uni-due.de
      */
     private void checkServiceFile() {
+        // file exists
+        if(serviceFile.isFile()) {
+            validateServiceFile();
+        }
+        // path is not a directory but doesn't exist yet
+        else if(!serviceFile.isDirectory()) {
+            initServiceFile();
+        }
+        // invalid file/path
+        else {
+            return;
+        }
+
         try {
-            // file exists
-            if(serviceFile.isFile()) {
-                validateServiceFile();
+            restoreState();
+            openHistory();
+            this.state.set(StateSnapshot.of(this.registry));
+            if (this.actuators != null) {
+                for (NetService service: this.registry.getServices()) {
+                    this.actuators.submit(service, service.getValue());
+                }
             }
-            // path is not a directory but doesn't exist yet
-            else if(!serviceFile.isDirectory()) {
-                serviceFile.createNewFile();
-                initServiceFile();
+            this.serviceFileModel.flush();
+            if (this.workers != null) {
+                this.serviceFileModel.start(this.workers);
+            } else {
+                this.serviceFileModel.start();
             }
-            // invalid file/path
-            else {
-                return;
+        } catch (IOException e) {
+            Log.error("An error occurred while writing to service file @ {}", this.serviceFilePath, e);
+            fail();
+        }
+    }
+
+    /**
+     * Restore the values of the last run from the {@link StateJournal} and start journaling new changes.
+     */
+    private void restoreState() {
+        try {
+            Map<String, StateJournal.Entry> state = this.journal.recover();
+
+            // matched by key, a value of a service missing from this run's layout is dropped
+            for (NetService service: this.registry.getServices()) {
+                StateJournal.Entry entry = state.get(service.getKey());
+                if (entry != null && service.getType() == entry.getType()
+                        && this.validator.validData(service.getType(), entry.getValue(), this.serviceFilePath)) {
+                    service.setValue(entry.getValue());
+                    updateService(service, service.getValue());
+                }
+            }
+
+            if (this.workers != null) {
+                this.journal.start(this.workers);
+            } else {
+                this.journal.start();
             }
         } catch (IOException e) {
-            System.err.println("An error occurred while checking service file @ " + this.serviceFilePath);
-            this.running = false;
-            System.exit(0);
+            Log.warn("An error occurred while restoring state from journal of {}. Continuing without journal.", this.serviceFilePath, e);
+        }
+    }
+
+    /**
+     * Open the {@link ChangeHistory} kept by earlier runs.
+     */
+    private void openHistory() {
+        if (this.history == null) {
+            return;
+        }
+
+        try {
+            this.history.open();
+        } catch (IOException e) {
+            Log.warn("An error occurred while opening history of {}. Continuing without history.", this.serviceFilePath, e);
+            this.history = null;
         }
     }
 
@@ -156,33 +1290,12 @@ public class ServiceProvider extends Thread {
      * @author malte.josten@stud.uni-due.de
      */
     private void initServiceFile() {
-        try {
-            // CREATING CONTENT AND WRITING TO FILE
-            String fileContent =
-                    "<?xml version=\"1.0\" standalone='no'?><!--*-nxml-*-->\n" +
-                            "<!DOCTYPE service-group SYSTEM \"avahi-service.dtd\">\n\n" +
-                            "<service-group>\n\n" +
-                            "  <name replace-wildcards=\"yes\">%h</name>\n\n" +
-                            "  <service>\n" +
-                            "    <type>" + this.type + "</type>\n" +
-                            "    <port>" + this.port + "</port>\n" +
-                            createTxtRecords() +
-                            "  </service>\n\n" +
-                            "</service-group>\n";
-
-            FileWriter fw = new FileWriter(this.serviceFile);
-            fw.write(fileContent);
-            fw.flush();
-            fw.close();
-        } catch (IOException e) {
-            System.err.println("An error occurred while writing to service file @" + this.serviceFilePath);
-            this.running = false;
-            System.exit(0);
-        }
+        this.serviceFileModel.define(this.type, this.port, createTxtRecords());
     }
 
     /**
-     * Update txt-records (except 'running') and port.
+     * Update txt-records (except 'running') and port. Provided services take over their values from the file,
+     * records of services which are no longer provided are dropped.
      *
      * @author Malte Josten, Universität Duisburg-Essen
      * @author malte.josten@stud.uni-due.de
@@ -190,33 +1303,22 @@ public class ServiceProvider extends Thread {
     public void validateServiceFile() {
         try {
             synchronized (this.serviceFile) {
-                List<String> lines = Files.readAllLines(Paths.get(this.serviceFilePath));
-                List<String> txt_records = new ArrayList<>();
-
-                for (String line: lines) {
-
-                    if(line.contains("<port>") && !line.contains(("<txt-record>textfield="))) {
-                        lines.set(lines.indexOf(line), "    <port>" + this.port + "</port>");
-                    }
+                Map<String, String> values = this.serviceFileModel.read();
 
-                    // check for old txt-record usage (except running)
-                    if (line.contains("<txt-record>") && !line.contains("<txt-record>running")) {
-                        txt_records.add(line);
-                    }
-
-                    if(line.contains(("txt-record>running"))) {
-                        lines.set(lines.indexOf(line), "    <txt-record>running=" + true + "</txt-record>\"");
+                for (NetService service: this.registry.getServices()) {
+                    String value = values.get(recordKey(service));
+                    // NetService is already in file. Use value from file.
+                    if (value != null && this.validator.validData(service.getType(), value, this.serviceFilePath)) {
+                        service.setValue(value);
                     }
                 }
+                this.state.set(StateSnapshot.of(this.registry));
 
-                lines = checkOldRecordUsage(lines, txt_records);
-
-                Files.write(Paths.get(this.serviceFilePath), lines);
+                initServiceFile();
             }
         } catch (IOException e) {
-            System.err.println("An error occurred while validating service file @ " + this.serviceFilePath);
-            this.running = false;
-            System.exit(0);
+            Log.error("An error occurred while validating service file @ {}", this.serviceFilePath, e);
+            fail();
         }
     }
 
@@ -226,23 +1328,32 @@ public class ServiceProvider extends Thread {
      */
     public void toggleRunningRecord(boolean running) {
         try {
-            synchronized (this.serviceFile) {
-                List<String> lines = Files.readAllLines(Paths.get(this.serviceFilePath));
-
-                for (String line : lines) {
-                    if (line.contains("<txt-record>running")) {
-                        lines.set(lines.indexOf(line), "    <txt-record>running=" + running + "</txt-record>");
-                    }
+            if (!this.serviceFileModel.isLoaded()) {
+                if (!this.serviceFile.isFile()) {
+                    return;
                 }
-
-                Files.write(Paths.get(this.serviceFilePath), lines);
+                validateServiceFile();
             }
 
-            if(!running) { closeServer(); }
+            this.serviceFileModel.setRecord("running", String.valueOf(running));
+
+            if(!running) {
+                // force outstanding changes to disk before shutting down
+                if (this.coalescer != null) {
+                    this.coalescer.drain();
+                }
+                this.journal.close();
+                if (this.history != null) {
+                    this.history.close();
+                }
+                this.serviceFileModel.close();
+                closeServer();
+            } else {
+                this.serviceFileModel.flush();
+            }
         } catch (IOException e) {
-            System.err.println("An error occurred while toggling running entry @ " + this.serviceFilePath);
-            this.running = false;
-            System.exit(0);
+            Log.error("An error occurred while toggling running entry @ {}", this.serviceFilePath, e);
+            fail();
         }
     }
 
@@ -252,142 +1363,83 @@ public class ServiceProvider extends Thread {
      * @author Malte Josten, Universität Duisburg-Essen
      * @author malte.josten@stud.uni-due.de
      *
-     * @return The {@link String} containing all &lt;txt-record&gt;-tags.
+     * @return The &lt;txt-record&gt;s by key, in the order they are written.
      */
-    private String createTxtRecords() {
-        String txt_records = "";
+    private Map<String, String> createTxtRecords() {
+        Map<String, String> txt_records = new LinkedHashMap<>();
 
-        txt_records += "    <txt-record>running=true</txt-record>\n";
+        txt_records.put("running", "true");
 
-        for (NetService service: this.services) {
-            txt_records += "    <txt-record>" + service.getType().toString().toLowerCase() + "=" + service.getValue() + "</txt-record>\n";
+        for (NetService service: this.registry.getServices()) {
+            txt_records.put(recordKey(service), service.getValue());
         }
 
         return txt_records;
     }
 
     /**
-     * Update {@link NetService} record in service file.
+     * Update {@link NetService} record in service file. The change is written behind by {@link ServiceFile}.
      * @param service   The {@link NetService} to update.
+     * @param value     The value to write.
      */
-    private void updateService(NetService service) {
-        try {
-            synchronized (this.serviceFile) {
-                List<String> lines = Files.readAllLines(Paths.get(this.serviceFilePath));
-
-                for (String line: lines) {
-                    if(line.contains("<txt-record>" + service.getType().toString().toLowerCase())) {
-                        lines.set(lines.indexOf(line), "    <txt-record>" + service.getType().toString().toLowerCase() + "=" + service.getValue() + "</txt-record>");
-                    }
-                }
-
-                Files.write(Paths.get(this.serviceFilePath), lines);
-            }
-        } catch (IOException e) {
-            System.err.println("An error occurred while updating service " + service.getType().toString() + " @ " + this.serviceFilePath);
-            this.running = false;
-            System.exit(0);
-        }
+    private void updateService(NetService service, String value) {
+        this.serviceFileModel.setRecord(recordKey(service), value);
     }
 
     /**
-     * Checks service-file for old &lt;txt-records&gt; usage. Removes old records and adds new ones.
-     * @param lines         The content of the service-file.
-     * @param records       The &lt;txt-record&gt;s contained in service-file.
-     * @return  The new service-file with the old records removed and new ones added.
+     * Returns the key of the &lt;txt-record&gt; holding the value of a {@link NetService}.
+     * @param service   The {@link NetService}.
+     * @return  The record's key.
      */
-    private List<String> checkOldRecordUsage(List<String> lines, List<String> records) {
-        List<NetService> tServices = deepCopy(this.services);
-
-        // we cannot use "normal" foreach loop because removing inside the loop triggers ConcurrentModificationException
-        for (Iterator<NetService> ns_iterator = tServices.iterator(); ns_iterator.hasNext();) {
-            NetService ns = ns_iterator.next();
-            for (Iterator<String> record_iterator = records.iterator(); record_iterator.hasNext();) {
-                String record = record_iterator.next();
-                // NetService is already in file. Use value from file.
-                if (record.toLowerCase().contains(ns.getType().toString().toLowerCase())) {
-                    record_iterator.remove();
-                    ns_iterator.remove();
-                }
-            }
-        }
-        // records now contains records which are old and not used anymore.
-        // tServices now contains NetServices which are new and needs to be added to file.
-
-        // removing old/unused records
-        for(String record: records) {
-            lines.remove(lines.indexOf(record));
-        }
-
-        // adding new NetServices
-        for(NetService ns: tServices) {
-            int lastTxtRecordIndex = getLastTxtRecordIndex(lines);
-            String entry = "    <txt-record>" + ns.getType().toString().toLowerCase() + "=" + ns.getValue() + "</txt-record>";
-            lines.add(lastTxtRecordIndex + 1, entry);
-        }
-
-        return lines;
+    private String recordKey(NetService service) {
+        return service.getKey().toLowerCase();
     }
 
     /**
-     * Returns line index of last &lt;txt-record&gt; in the service-file.
-     * @param lines     The content of the service-file.
-     * @return  The index of the last &lt;txt-record&gt;.
+     * Stop after a fatal error. A hosted provider only closes its own listener and clients, so the other devices of
+     * its host keep running; otherwise the application exits.
      */
-    private int getLastTxtRecordIndex(List<String> lines) {
-        String lastTxtRecord = "";
-        for(String line: lines) {
-            if ((line.contains("<txt-record>") && !line.contains("textfield")) || line.contains("<txt-record>textfield")) {
-                lastTxtRecord = line;
-            }
-        }
-
-        // no txt-records in file, return index of port-line
-        if(lastTxtRecord.equals("")) {
-            for(String line: lines) {
-                if (line.contains("<port>") && !line.contains("textfield")) {
-                    return lines.indexOf(line);
-                }
-            }
-            // should not happen. file should always contain <port>-entry.
-            return -1;
+    private void fail() {
+        this.running = false;
+        if (this.workers != null) {
+            closeServer();
+        } else {
+            // print the reason before exiting
+            Log.flush(1000);
+            System.exit(0);
         }
-        else { return lines.indexOf(lastTxtRecord); }
-
     }
 
     /**
-     * Send closing message to remote Socket and close {@link ServerSocket}.
+     * Send closing message to remote Sockets and close {@link ServerSocketChannel}.
      *
      * @author Malte Josten, Universität Duisburg-Essen
      * @author malte.josten@stud.uni-due.de
      */
     public void closeServer() {
+        this.running = false;
+
+        for (Connection connection: this.connections) {
+            connection.close("Closing connection!");
+        }
+
         try {
-            try (BufferedWriter bos = new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream()))){
-                bos.write("Closing connection!");
+            // a shared loop and wheel are closed by their host
+            if (this.eventLoop != null && this.workers == null) {
+                this.eventLoop.close();
+            }
+            if (this.timers != null && this.workers == null) {
+                this.timers.close();
+            }
+            if (this.server != null) {
+                this.server.close();
             }
-            this.server.close();
         } catch (IOException e) {
-            // no active connection
-            // exception can be ignored.
-        } catch (NullPointerException e) {
-            // no active connection
+            // server already closed
             // exception can be ignored.
         }
     }
 
-    /**
-     * Make a deep-copy of given {@link NetService}-{@link List}.
-     * @param list      The {@link NetService}-{@link List} to make a deep-copy of.
-     * @return  A deep-copy of list.
-     */
-    private List<NetService> deepCopy(List<NetService> list) {
-        List<NetService> copy = new ArrayList<>(list.size());
-        for(NetService item: list) { copy.add(item); }
-        return copy;
-    }
-
     /**
      * Prints serviceFile content.
      *
@@ -401,11 +1453,21 @@ public class ServiceProvider extends Thread {
                 System.out.println(line);
             }
         } catch (IOException e) {
-            System.err.println("An error occurred while reading service file @" + this.serviceFilePath);
+            Log.error("An error occurred while reading service file @ {}", this.serviceFilePath, e);
             toggleRunningRecord(false);
         }
     }
 
+    /**
+     * Returns the time since the JVM has been launched, including its own startup.
+     * @return  The time in milliseconds, or -1 if the launch time is unknown.
+     */
+    private static long millisSinceLaunch() {
+        return ProcessHandle.current().info().startInstant()
+                .map(start -> Duration.between(start, Instant.now()).toMillis())
+                .orElse(-1L);
+    }
+
     /**
      * Returns the {@link Socket}-object.
      * @return  The {@link Socket}-object.
@@ -413,4 +1475,32 @@ public class ServiceProvider extends Thread {
     public Socket getSocket() { return this.socket; }
 
     public boolean getRunning() { return this.running; }
+
+    /**
+     * Returns the {@link ServiceRegistry} holding the provided {@link NetService}s.
+     * @return  The {@link ServiceRegistry}.
+     */
+    public ServiceRegistry getRegistry() { return this.registry; }
+
+    /**
+     * Returns the {@link StateSnapshot} of the values handed on last, as pushed to subscribers.
+     * @return  The {@link StateSnapshot}.
+     */
+    public StateSnapshot getSnapshot() { return this.state.get(); }
+
+    /**
+     * Returns the port the provider is listening on.
+     * @return  The port.
+     */
+    public int getPort() { return this.port; }
+
+    /**
+     * Wait until the provider accepts connections, i.e. its port is bound and the service file is in place.
+     * @param timeoutMillis     Maximum time to wait in milliseconds.
+     * @return  Return true if the provider is listening. Otherwise return false.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean awaitListening(long timeoutMillis) throws InterruptedException {
+        return this.listening.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
 }
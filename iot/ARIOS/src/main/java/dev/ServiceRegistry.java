@@ -0,0 +1,174 @@
+package dev;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Registry of the {@link NetService}s provided by a {@link ServiceProvider}.
+ * Every {@link NetService} gets a stable id and an instance number among the services of its
+ * {@link NetService.ServiceType}; both are resolved in constant time.
+ *
+ * Services may be added and removed at runtime. The lookup tables are copied on every change and published at once,
+ * so lookups never lock and always see a consistent set of services. Ids and instance numbers of removed services
+ * are not reused, so keys held by clients never point to a different service.
+ */
+public class ServiceRegistry {
+
+    public static final int MAX_SERVICES = 0xFFFF;
+
+    /**
+     * Immutable lookup tables. Removed services leave a null entry.
+     */
+    private static class Tables {
+        private NetService[] byId;
+        private NetService[][] byType;
+        private int size;
+
+        Tables(NetService[] pById, NetService[][] pByType, int pSize) {
+            this.byId = pById;
+            this.byType = pByType;
+            this.size = pSize;
+        }
+    }
+
+    private volatile Tables tables;
+
+    /**
+     * Class constructor. Ids are assigned in list order, starting at 0.
+     *
+     * @param pServices The {@link NetService}s to register.
+     */
+    public ServiceRegistry(List<NetService> pServices) {
+        if (pServices.size() > MAX_SERVICES) {
+            throw new IllegalArgumentException("At most " + MAX_SERVICES + " services are supported.");
+        }
+
+        NetService.ServiceType[] types = NetService.ServiceType.values();
+        int[] counts = new int[types.length];
+        for (NetService service: pServices) {
+            counts[service.getType().ordinal()]++;
+        }
+
+        NetService[] byId = new NetService[pServices.size()];
+        NetService[][] byType = new NetService[types.length][];
+        for (int t = 0; t < types.length; t++) {
+            byType[t] = new NetService[counts[t]];
+        }
+
+        int[] instances = new int[types.length];
+        for (int id = 0; id < pServices.size(); id++) {
+            NetService service = pServices.get(id);
+            int ordinal = service.getType().ordinal();
+            service.assign(id, instances[ordinal]);
+            byId[id] = service;
+            byType[ordinal][instances[ordinal]++] = service;
+        }
+
+        this.tables = new Tables(byId, byType, byId.length);
+    }
+
+    /**
+     * Register a new {@link NetService}. It gets the next free id and instance number.
+     * @param service   The {@link NetService} to register.
+     * @return  The registered {@link NetService}.
+     * @throws IllegalStateException    If no id is left.
+     */
+    public synchronized NetService add(NetService service) {
+        Tables current = this.tables;
+        int id = current.byId.length;
+        if (id >= MAX_SERVICES) {
+            throw new IllegalStateException("At most " + MAX_SERVICES + " services are supported.");
+        }
+
+        int ordinal = service.getType().ordinal();
+        NetService[] instances = current.byType[ordinal];
+        service.assign(id, instances.length);
+
+        NetService[] byId = Arrays.copyOf(current.byId, id + 1);
+        byId[id] = service;
+        NetService[][] byType = current.byType.clone();
+        byType[ordinal] = Arrays.copyOf(instances, instances.length + 1);
+        byType[ordinal][instances.length] = service;
+
+        this.tables = new Tables(byId, byType, current.size + 1);
+        return service;
+    }
+
+    /**
+     * Unregister a {@link NetService}.
+     * @param service   The {@link NetService} to unregister.
+     * @return  Return true if the service was registered. Otherwise return false.
+     */
+    public synchronized boolean remove(NetService service) {
+        Tables current = this.tables;
+        int id = service.getId();
+        if (id < 0 || id >= current.byId.length || current.byId[id] != service) {
+            return false;
+        }
+
+        int ordinal = service.getType().ordinal();
+        NetService[] byId = current.byId.clone();
+        byId[id] = null;
+        NetService[][] byType = current.byType.clone();
+        byType[ordinal] = byType[ordinal].clone();
+        byType[ordinal][service.getInstance()] = null;
+
+        this.tables = new Tables(byId, byType, current.size - 1);
+        return true;
+    }
+
+    /**
+     * Returns the {@link NetService} with the given id.
+     * @param id        The id of the {@link NetService}.
+     * @return  The {@link NetService} or null if there is none.
+     */
+    public NetService get(int id) {
+        NetService[] byId = this.tables.byId;
+        return (id >= 0 && id < byId.length) ? byId[id] : null;
+    }
+
+    /**
+     * Returns the given instance of a {@link NetService.ServiceType}.
+     * @param type      The {@link NetService.ServiceType}.
+     * @param instance  The instance number, 0 for the first service of the type.
+     * @return  The {@link NetService} or null if there is none.
+     */
+    public NetService get(NetService.ServiceType type, int instance) {
+        NetService[] instances = this.tables.byType[type.ordinal()];
+        return (instance >= 0 && instance < instances.length) ? instances[instance] : null;
+    }
+
+    /**
+     * Returns all {@link NetService}s of a {@link NetService.ServiceType}.
+     * @param type      The {@link NetService.ServiceType}.
+     * @return  The {@link NetService}s ordered by instance number.
+     */
+    public List<NetService> getServices(NetService.ServiceType type) {
+        return collect(this.tables.byType[type.ordinal()]);
+    }
+
+    /**
+     * Returns all {@link NetService}s.
+     * @return  The {@link NetService}s ordered by id.
+     */
+    public List<NetService> getServices() {
+        return collect(this.tables.byId);
+    }
+
+    /**
+     * Returns the number of registered {@link NetService}s.
+     * @return  The number of {@link NetService}s.
+     */
+    public int size() { return this.tables.size; }
+
+    private static List<NetService> collect(NetService[] services) {
+        List<NetService> list = new ArrayList<>(services.length);
+        for (NetService service: services) {
+            if (service != null) {
+                list.add(service);
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,87 @@
+package dev;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory {@link Actuator} standing in for real hardware. It records the latest values it is given per service and
+ * may take a fixed time per value, so slow hardware can be simulated without any attached. Only a fixed number of
+ * values is kept per service, so a long-running device does not grow without bound.
+ */
+public class SimulatedActuator implements Actuator {
+
+    private long delayNanos;
+    private int capacity;
+    private Map<String, ArrayDeque<String>> history = new ConcurrentHashMap<>();
+
+    /**
+     * Class constructor. Only the last value of every service is kept.
+     *
+     * @param delayMillis   Time in milliseconds every actuation takes.
+     */
+    public SimulatedActuator(long delayMillis) {
+        this(delayMillis, 1);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param delayMillis   Time in milliseconds every actuation takes.
+     * @param pCapacity     Number of values kept per service, the oldest is dropped first.
+     */
+    public SimulatedActuator(long delayMillis, int pCapacity) {
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        this.capacity = Math.max(1, pCapacity);
+    }
+
+    @Override
+    public void actuate(NetService service, String value) {
+        if (this.delayNanos > 0) {
+            LockSupport.parkNanos(this.delayNanos);
+        }
+        ArrayDeque<String> values = this.history.computeIfAbsent(service.getKey(), key -> new ArrayDeque<>());
+        synchronized (values) {
+            if (values.size() == this.capacity) {
+                values.poll();
+            }
+            values.add(value);
+        }
+        Log.debug("Simulated actuation of {} = {}.", service.getKey(), value);
+    }
+
+    /**
+     * Returns the latest values handled for a service, in the order they were handled.
+     * @param key       The key of the {@link NetService}, e.g. TOGGLE.1.
+     * @return  A copy of the kept values.
+     */
+    public List<String> getHistory(String key) {
+        ArrayDeque<String> values = this.history.get(key);
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        synchronized (values) {
+            return new ArrayList<>(values);
+        }
+    }
+
+    /**
+     * Returns the value last handled for a service.
+     * @param key       The key of the {@link NetService}, e.g. TOGGLE.1.
+     * @return  The value or null if none has been handled.
+     */
+    public String getLast(String key) {
+        ArrayDeque<String> values = this.history.get(key);
+        if (values == null) {
+            return null;
+        }
+        synchronized (values) {
+            return values.peekLast();
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package dev;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of {@link NetService} value changes with periodic compacted snapshots.
+ * Appended records are committed by this thread, which writes and fsyncs everything appended since its last commit
+ * at once (group commit), or by a shared worker pool, see {@link #start(Executor)}. Torn or corrupted records at the end
+ * of the journal are discarded on recovery.
+ *
+ * Journal record: int payload length, int CRC32 of payload, payload (one or more entries of UTF service key,
+ * byte type ordinal, UTF value). Entries are keyed by {@link NetService#getKey()}, which names the same service in
+ * every run, unlike its registry id.
+ * Snapshot: int magic, int entry count, entries as above, int CRC32 of everything before it.
+ */
+public class StateJournal extends Thread {
+
+    /**
+     * A recovered value of the service with a given key.
+     */
+    public static class Entry {
+        private NetService.ServiceType type;
+        private String value;
+
+        Entry(NetService.ServiceType pType, String pValue) {
+            this.type = pType;
+            this.value = pValue;
+        }
+
+        public NetService.ServiceType getType() { return this.type; }
+
+        public String getValue() { return this.value; }
+    }
+
+    private static final int SNAPSHOT_MAGIC = 0x41524954;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    private Path journalPath;
+    private Path snapshotPath;
+    private Path tempPath;
+    private FileChannel journal;
+
+    private int snapshotInterval;
+    private int recordsSinceSnapshot = 0;
+
+    private Map<String, Entry> state = new HashMap<>();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private ByteArrayOutputStream committing = new ByteArrayOutputStream();
+    private long appended = 0;
+    private long committed = 0;
+
+    private final Object commitLock = new Object();
+
+    private Executor workers;
+    private boolean commitScheduled = false;
+
+    private volatile boolean running = true;
+
+    /**
+     * Class constructor.
+     *
+     * @param serviceFilePath   The path of the Avahi service file the journal belongs to.
+     * @param pSnapshotInterval Number of journal records after which a compacted snapshot is written.
+     */
+    public StateJournal(String serviceFilePath, int pSnapshotInterval) {
+        super("StateJournal-Committer");
+        setDaemon(true);
+
+        this.journalPath = Paths.get(serviceFilePath + ".journal");
+        this.snapshotPath = Paths.get(serviceFilePath + ".snapshot");
+        this.tempPath = Paths.get(serviceFilePath + ".snapshot.tmp");
+        this.snapshotInterval = pSnapshotInterval;
+    }
+
+    /**
+     * Restore the last committed state from snapshot and journal and open the journal for appending.
+     * @return  The recovered values by service key.
+     * @throws IOException  If snapshot or journal cannot be accessed.
+     */
+    public synchronized Map<String, Entry> recover() throws IOException {
+        this.state.clear();
+        readSnapshot();
+
+        this.journal = FileChannel.open(this.journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long valid = replayJournal();
+
+        // discard torn or corrupted tail
+        if (valid < this.journal.size()) {
+            Log.warn("Discarding {} corrupted bytes of journal @ {}", this.journal.size() - valid, this.journalPath);
+            this.journal.truncate(valid);
+        }
+        this.journal.position(valid);
+
+        return new HashMap<>(this.state);
+    }
+
+    /**
+     * Append a value change. The record is committed asynchronously together with all other pending records.
+     * @param service   The changed {@link NetService}.
+     * @param value     The value it was changed to.
+     */
+    public void append(NetService service, String value) {
+        append(new NetService[] { service }, new String[] { value }, 1);
+    }
+
+    /**
+     * Append several value changes as one record, so they are recovered either all together or not at all.
+     * @param services  The changed {@link NetService}s.
+     * @param values    The values they were changed to.
+     * @param count     The number of changes to append.
+     */
+    public void append(NetService[] services, String[] values, int count) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            payload.writeBytes(encode(services[i].getKey(), services[i].getType(), values[i]));
+        }
+
+        synchronized (this) {
+            if (this.journal == null) {
+                return;
+            }
+
+            writeRecord(this.pending, payload.toByteArray());
+            for (int i = 0; i < count; i++) {
+                this.state.put(services[i].getKey(), new Entry(services[i].getType(), values[i]));
+            }
+            this.appended++;
+            notifyAll();
+
+            if (this.workers != null && !this.commitScheduled && this.running) {
+                this.commitScheduled = true;
+                this.workers.execute(this::scheduledCommit);
+            }
+        }
+    }
+
+    /**
+     * Commit appended records on a worker of the shared pool instead of this thread.
+     * @param pWorkers  The shared worker pool.
+     */
+    public synchronized void start(Executor pWorkers) {
+        this.workers = pWorkers;
+        if (this.pending.size() > 0) {
+            this.commitScheduled = true;
+            this.workers.execute(this::scheduledCommit);
+        }
+    }
+
+    /**
+     * Commit task run by the shared worker pool. Records appended while it runs schedule the next one.
+     */
+    private void scheduledCommit() {
+        synchronized (this) {
+            this.commitScheduled = false;
+        }
+
+        try {
+            commit();
+        } catch (IOException e) {
+            Log.error("An error occurred while writing journal @ {}", this.journalPath, e);
+        }
+    }
+
+    /**
+     * Block until every record appended so far has been committed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized void sync() throws InterruptedException {
+        long target = this.appended;
+        while (this.committed < target && this.running) {
+            wait();
+        }
+    }
+
+    /**
+     * Commit pending records whenever there are any and compact the journal from time to time.
+     */
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                synchronized (this) {
+                    while (this.pending.size() == 0 && this.running) {
+                        wait();
+                    }
+                }
+                commit();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Log.error("An error occurred while writing journal @ {}", this.journalPath, e);
+            }
+        }
+    }
+
+    /**
+     * Stop the committer, commit all pending records and compact the journal.
+     * @throws IOException  If the journal cannot be written.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            this.running = false;
+            notifyAll();
+
+            if (this.journal == null) {
+                return;
+            }
+            this.recordsSinceSnapshot = Math.max(this.recordsSinceSnapshot, this.snapshotInterval);
+        }
+        commit();
+
+        synchronized (this.commitLock) {
+            synchronized (this) {
+                this.journal.close();
+                this.journal = null;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Write and fsync all pending records as one batch. Writes a snapshot and truncates the journal if enough
+     * records have been committed since the last snapshot. Appenders are not blocked while the disk is busy.
+     * @throws IOException  If the journal or snapshot cannot be written.
+     */
+    private void commit() throws IOException {
+        synchronized (this.commitLock) {
+            FileChannel channel;
+            ByteArrayOutputStream batch;
+            long batchEnd;
+            Map<String, Entry> snapshot = null;
+
+            synchronized (this) {
+                if (this.journal == null) {
+                    return;
+                }
+                channel = this.journal;
+
+                // swap buffers so appenders never wait for the disk
+                batch = this.pending;
+                this.pending = this.committing;
+                this.committing = batch;
+                batchEnd = this.appended;
+
+                this.recordsSinceSnapshot += (int) (batchEnd - this.committed);
+                if (this.recordsSinceSnapshot >= this.snapshotInterval) {
+                    snapshot = new HashMap<>(this.state);
+                    this.recordsSinceSnapshot = 0;
+                }
+            }
+
+            long start = System.nanoTime();
+            channel.write(ByteBuffer.wrap(batch.toByteArray()));
+            channel.force(false);
+            batch.reset();
+            Metrics.JOURNAL_COMMIT_LATENCY.recordSince(start);
+
+            if (snapshot != null) {
+                writeSnapshot(snapshot);
+                channel.truncate(0);
+                channel.force(false);
+            }
+
+            synchronized (this) {
+                this.committed = batchEnd;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Read the compacted snapshot into the state, if a valid one exists.
+     * @throws IOException  If the snapshot cannot be read.
+     */
+    private void readSnapshot() throws IOException {
+        if (!Files.isRegularFile(this.snapshotPath)) {
+            return;
+        }
+
+        byte[] content = Files.readAllBytes(this.snapshotPath);
+        if (content.length < 12) {
+            return;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - 4);
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        if (buffer.getInt(content.length - 4) != (int) crc.getValue() || buffer.getInt() != SNAPSHOT_MAGIC) {
+            Log.warn("Ignoring corrupted snapshot @ {}", this.snapshotPath);
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content, 8, content.length - 12))) {
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                decode(in, this.state);
+            }
+        }
+    }
+
+    /**
+     * Apply all valid journal records to the state.
+     * @return  The position after the last valid record.
+     * @throws IOException  If the journal cannot be read.
+     */
+    private long replayJournal() throws IOException {
+        ByteBuffer content = ByteBuffer.allocate((int) Math.min(this.journal.size(), Integer.MAX_VALUE));
+        this.journal.read(content, 0);
+        content.flip();
+
+        CRC32 crc = new CRC32();
+        long valid = 0;
+
+        while (content.remaining() >= 8) {
+            int length = content.getInt();
+            int checksum = content.getInt();
+            if (length <= 0 || length > MAX_RECORD_LENGTH || length > content.remaining()) {
+                break;
+            }
+
+            crc.reset();
+            crc.update(content.array(), content.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            // a record is applied as a whole or, if it cannot be decoded, ends the valid part of the journal
+            Map<String, Entry> entries = new HashMap<>();
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(content.array(), content.position(), length));
+            try {
+                while (in.available() > 0) {
+                    decode(in, entries);
+                }
+            } catch (IOException e) {
+                break;
+            }
+            this.state.putAll(entries);
+            content.position(content.position() + length);
+            valid = content.position();
+        }
+
+        return valid;
+    }
+
+    /**
+     * Write the given state to the snapshot file atomically.
+     * @param snapshot  The state to write.
+     * @throws IOException  If the snapshot cannot be written.
+     */
+    private void writeSnapshot(Map<String, Entry> snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(snapshot.size());
+        for (Map.Entry<String, Entry> entry: snapshot.entrySet()) {
+            out.write(encode(entry.getKey(), entry.getValue().getType(), entry.getValue().getValue()));
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        try (FileChannel channel = FileChannel.open(this.tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+            channel.force(true);
+        }
+
+        try {
+            Files.move(this.tempPath, this.snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(this.tempPath, this.snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        ServiceFile.forceDirectory(this.snapshotPath);
+    }
+
+    /**
+     * Encode a value change as record payload.
+     * @param key       The key of the {@link NetService}.
+     * @param type      The {@link NetService.ServiceType} of the {@link NetService}.
+     * @param value     The value of the {@link NetService}.
+     * @return  The encoded payload.
+     */
+    private static byte[] encode(String key, NetService.ServiceType type, String value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + key.length() + value.length());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(key);
+            out.writeByte(type.ordinal());
+            out.writeUTF(value);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decode one entry of a record payload.
+     * @param in        The payload to decode.
+     * @param into      The map to put the entry into.
+     * @throws IOException  If the payload is malformed.
+     */
+    private static void decode(DataInputStream in, Map<String, Entry> into) throws IOException {
+        String key = in.readUTF();
+        int ordinal = in.readUnsignedByte();
+        String value = in.readUTF();
+
+        NetService.ServiceType[] types = NetService.ServiceType.values();
+        if (ordinal < types.length) {
+            into.put(key, new Entry(types[ordinal], value));
+        }
+    }
+
+    /**
+     * Write a framed record to the given stream.
+     * @param out       The stream to write to.
+     * @param payload   The record payload.
+     */
+    private static void writeRecord(ByteArrayOutputStream out, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeBytes(ByteBuffer.allocate(8).putInt(payload.length).putInt((int) crc.getValue()).array());
+        out.writeBytes(payload);
+    }
+}
@@ -0,0 +1,180 @@
+package dev;
+
+import java.util.Arrays;
+
+/**
+ * Immutable copy of the values of all {@link NetService}s of a {@link ServiceProvider}. Every change publishes a new
+ * snapshot at once, so readers never lock, never see a half-applied batch and never hold up writers.
+ * Services and values are kept by id; removed services leave a null entry. Booleans and colours are kept as
+ * primitives, text only for {@link NetService.ServiceType#TEXTFIELD}s, so changing a boolean or colour copies an int[]
+ * and shares everything else.
+ */
+public final class StateSnapshot {
+
+    private final NetService[] services;
+    private final int[] payloads;
+    private final String[] texts;
+
+    private StateSnapshot(NetService[] pServices, int[] pPayloads, String[] pTexts) {
+        this.services = pServices;
+        this.payloads = pPayloads;
+        this.texts = pTexts;
+    }
+
+    /**
+     * Take a snapshot of the current values of all registered services.
+     * @param registry  The {@link ServiceRegistry} holding the services.
+     * @return  The snapshot.
+     */
+    public static StateSnapshot of(ServiceRegistry registry) {
+        int capacity = 0;
+        for (NetService service: registry.getServices()) {
+            capacity = Math.max(capacity, service.getId() + 1);
+        }
+
+        NetService[] services = new NetService[capacity];
+        int[] payloads = new int[capacity];
+        String[] texts = new String[capacity];
+        for (NetService service: registry.getServices()) {
+            capture(service, service.getValue(), services, payloads, texts);
+        }
+        return new StateSnapshot(services, payloads, texts);
+    }
+
+    /**
+     * Returns a snapshot in which a service has the given value. The value is the one its writer has set, not the
+     * current one, which may already belong to a newer change that has not been handed on yet.
+     * @param service   The changed {@link NetService}.
+     * @param value     The value it was changed to.
+     * @return  The new snapshot.
+     */
+    public StateSnapshot with(NetService service, String value) {
+        int id = service.getId();
+        if (id >= this.services.length || this.services[id] != service) {
+            return with(new NetService[] { service }, new String[] { value }, 1);
+        }
+
+        int[] nextPayloads = this.payloads;
+        String[] nextTexts = this.texts;
+        if (service.getType() == NetService.ServiceType.TEXTFIELD) {
+            nextTexts = this.texts.clone();
+        } else {
+            nextPayloads = this.payloads.clone();
+        }
+        capture(service, value, this.services, nextPayloads, nextTexts);
+        return new StateSnapshot(this.services, nextPayloads, nextTexts);
+    }
+
+    /**
+     * Returns a snapshot in which several services have the given values.
+     * @param changed   The changed {@link NetService}s.
+     * @param values    The values they were changed to.
+     * @param count     The number of changes.
+     * @return  The new snapshot.
+     */
+    public StateSnapshot with(NetService[] changed, String[] values, int count) {
+        int capacity = this.payloads.length;
+        boolean text = false;
+        for (int i = 0; i < count; i++) {
+            capacity = Math.max(capacity, changed[i].getId() + 1);
+            text |= changed[i].getType() == NetService.ServiceType.TEXTFIELD;
+        }
+
+        // services and texts are shared between snapshots until one of them changes
+        NetService[] nextServices = this.services;
+        String[] nextTexts = text || capacity > this.texts.length ? Arrays.copyOf(this.texts, capacity) : this.texts;
+        int[] nextPayloads = Arrays.copyOf(this.payloads, capacity);
+        for (int i = 0; i < count; i++) {
+            int id = changed[i].getId();
+            if ((id >= nextServices.length || nextServices[id] != changed[i]) && nextServices == this.services) {
+                nextServices = Arrays.copyOf(this.services, capacity);
+            }
+            capture(changed[i], values[i], nextServices, nextPayloads, nextTexts);
+        }
+        return new StateSnapshot(nextServices, nextPayloads, nextTexts);
+    }
+
+    /**
+     * Returns a snapshot without a removed service. The values of all other services are kept.
+     * @param service   The removed {@link NetService}.
+     * @return  The new snapshot.
+     */
+    public StateSnapshot without(NetService service) {
+        int id = service.getId();
+        if (id >= this.services.length || this.services[id] != service) {
+            return this;
+        }
+
+        NetService[] nextServices = this.services.clone();
+        nextServices[id] = null;
+        return new StateSnapshot(nextServices, this.payloads, this.texts);
+    }
+
+    /**
+     * Copy the value of a service into the arrays of a new snapshot.
+     * @param service   The {@link NetService} to copy.
+     * @param value     Its value.
+     * @param services  The services of the new snapshot.
+     * @param payloads  The booleans and colours of the new snapshot.
+     * @param texts     The texts of the new snapshot.
+     */
+    private static void capture(NetService service, String value, NetService[] services, int[] payloads, String[] texts) {
+        int id = service.getId();
+        services[id] = service;
+        if (service.getType() == NetService.ServiceType.TEXTFIELD) {
+            texts[id] = value;
+        } else {
+            payloads[id] = NetService.toPayload(service.getType(), value);
+        }
+    }
+
+    /**
+     * Returns the service with the given id.
+     * @param id        The id of the {@link NetService}.
+     * @return  The {@link NetService} or null if there is none.
+     */
+    public NetService getService(int id) {
+        return id >= 0 && id < this.services.length ? this.services[id] : null;
+    }
+
+    /**
+     * Returns the value of the service with the given id, formatted as it is sent to text clients.
+     * @param id        The id of the {@link NetService}.
+     * @return  The value or null if there is no such service.
+     */
+    public String getValue(int id) {
+        NetService service = getService(id);
+        if (service == null) {
+            return null;
+        }
+        return service.getType() == NetService.ServiceType.TEXTFIELD ? this.texts[id]
+                : NetService.format(service.getType(), this.payloads[id]);
+    }
+
+    /**
+     * Returns the value of the boolean or colour service with the given id.
+     * @param id        The id of the {@link NetService}.
+     * @return  0 or 1 for booleans, 0xRRGGBB for colours.
+     */
+    public int getPayload(int id) { return this.payloads[id]; }
+
+    /**
+     * Returns the number of ids covered by this snapshot.
+     * @return  One more than the highest id.
+     */
+    public int capacity() { return this.payloads.length; }
+
+    /**
+     * Returns the number of services in this snapshot.
+     * @return  The number of services.
+     */
+    public int size() {
+        int size = 0;
+        for (NetService service: this.services) {
+            if (service != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,193 @@
+package dev;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel. Timeouts are kept in a ring of slots, one slot per tick, so scheduling and expiring a timeout
+ * costs constant time no matter how many are pending, and no thread or scheduled task is needed per timeout.
+ *
+ * The wheel is advanced by a single thread: either the {@link EventLoop}, which calls {@link #advance(long)} after
+ * every select, or this thread, which ticks on its own once started. Timeouts may be scheduled and cancelled from
+ * any thread, their tasks always run on the advancing thread.
+ */
+public class TimerWheel extends Thread {
+
+    /**
+     * Task scheduled on a {@link TimerWheel}. A timeout may be scheduled again once it has expired.
+     */
+    public static class Timeout {
+        private Runnable task;
+        private volatile long deadline;
+        private volatile boolean cancelled = false;
+
+        // owned by the advancing thread
+        private long rounds;
+        private int slot = -1;
+        private Timeout prev;
+        private Timeout next;
+
+        /**
+         * Class constructor.
+         * @param pTask     The task to run on expiry.
+         */
+        public Timeout(Runnable pTask) {
+            this.task = pTask;
+        }
+
+        /**
+         * Cancel the timeout. It is dropped when the wheel reaches its slot.
+         */
+        public void cancel() { this.cancelled = true; }
+
+        public boolean isCancelled() { return this.cancelled; }
+    }
+
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private long tickNanos;
+    private Timeout[] slots;
+    private int mask;
+    private long startNanos;
+    private long tick = 0;
+
+    private Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+
+    /**
+     * Class constructor.
+     *
+     * @param tickMillis    Resolution of the wheel in milliseconds.
+     */
+    public TimerWheel(long tickMillis) {
+        super("TimerWheel-Ticker");
+        setDaemon(true);
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.slots = new Timeout[DEFAULT_WHEEL_SIZE];
+        this.mask = DEFAULT_WHEEL_SIZE - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Run a timeout after the given delay, at the resolution of one tick. May be called from any thread.
+     * @param timeout       The {@link Timeout} to schedule.
+     * @param delayMillis   The delay in milliseconds.
+     */
+    public void schedule(Timeout timeout, long delayMillis) {
+        timeout.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        timeout.cancelled = false;
+        this.scheduled.add(timeout);
+    }
+
+    /**
+     * Returns the resolution of the wheel.
+     * @return  The duration of one tick in milliseconds.
+     */
+    public long getTickMillis() { return TimeUnit.NANOSECONDS.toMillis(this.tickNanos); }
+
+    /**
+     * Insert newly scheduled timeouts and run every timeout whose deadline has passed. Must only be called by the
+     * thread advancing the wheel.
+     * @param nowNanos      The current time as returned by {@link System#nanoTime()}.
+     */
+    public void advance(long nowNanos) {
+        Timeout timeout;
+        while ((timeout = this.scheduled.poll()) != null) {
+            insert(timeout);
+        }
+
+        long target = (nowNanos - this.startNanos) / this.tickNanos;
+        while (this.tick <= target) {
+            expire(this.slots[(int) (this.tick & this.mask)]);
+            this.tick++;
+        }
+    }
+
+    /**
+     * Tick the wheel until {@link #close()} is called. Used when no {@link EventLoop} advances the wheel.
+     */
+    @Override
+    public void run() {
+        while (this.running) {
+            LockSupport.parkNanos(this.tickNanos);
+            advance(System.nanoTime());
+        }
+    }
+
+    /**
+     * Stop ticking.
+     */
+    public void close() {
+        this.running = false;
+    }
+
+    /**
+     * Link a timeout into the slot of its deadline.
+     * @param timeout   The {@link Timeout} to insert.
+     */
+    private void insert(Timeout timeout) {
+        if (timeout.slot >= 0) {
+            // scheduled again before it expired
+            unlink(timeout);
+        }
+
+        long deadlineTick = Math.max(this.tick, (timeout.deadline - this.startNanos + this.tickNanos - 1) / this.tickNanos);
+        timeout.rounds = (deadlineTick - this.tick) / this.slots.length;
+        timeout.slot = (int) (deadlineTick & this.mask);
+
+        timeout.prev = null;
+        timeout.next = this.slots[timeout.slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        this.slots[timeout.slot] = timeout;
+    }
+
+    /**
+     * Run the due timeouts of a slot and drop cancelled ones. Timeouts due in a later round stay.
+     * @param head      The first {@link Timeout} of the slot.
+     */
+    private void expire(Timeout head) {
+        Timeout timeout = head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+
+            if (timeout.cancelled) {
+                unlink(timeout);
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                unlink(timeout);
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    Log.error("An error occurred while running a timeout.", e);
+                }
+            }
+
+            timeout = next;
+        }
+    }
+
+    /**
+     * Remove a timeout from its slot.
+     * @param timeout   The {@link Timeout} to remove.
+     */
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            this.slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+    }
+}
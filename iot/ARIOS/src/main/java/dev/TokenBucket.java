@@ -0,0 +1,64 @@
+package dev;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of frames of one connection. The bucket holds up to burst tokens and is refilled
+ * at a constant rate; every frame takes one token. Only used by the thread reading the connection.
+ */
+public class TokenBucket {
+
+    private double tokensPerNano;
+    private double burst;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Class constructor.
+     *
+     * @param pRate     Tokens added per second.
+     * @param pBurst    Maximum number of tokens, i.e. frames accepted at once.
+     */
+    public TokenBucket(double pRate, int pBurst) {
+        this.tokensPerNano = pRate / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, pBurst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take a token if one is available.
+     * @return  Return true if a token was taken. Otherwise return false.
+     */
+    public boolean tryTake() {
+        refill();
+        if (this.tokens >= 1) {
+            this.tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take a token, running into debt if none is available. The debt is paid by waiting {@link #getDelay()}.
+     */
+    public void take() {
+        refill();
+        this.tokens -= 1;
+    }
+
+    /**
+     * Returns how long to wait until the bucket is out of debt.
+     * @return  The delay in nanoseconds, 0 if no debt is left.
+     */
+    public long getDelay() {
+        refill();
+        return this.tokens >= 0 ? 0 : (long) Math.ceil(-this.tokens / this.tokensPerNano);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        this.tokens = Math.min(this.burst, this.tokens + (now - this.lastRefill) * this.tokensPerNano);
+        this.lastRefill = now;
+    }
+}
@@ -10,5 +10,10 @@ public enum promptEnum {
     PORT_FORMAT,
     NO_SERVICES,
     UNKNOWN_SERVICE,
+    UNKNOWN_MODE,
+    UNKNOWN_LEVEL,
+    OPTION_FORMAT,
+    OPTION_SYNTAX,
+    HOST_CONFIG,
     HELP
 }
@@ -0,0 +1,121 @@
+package dev;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives an {@link ActuatorPipeline} with {@link SimulatedActuator}s and checks that values of a service are handled
+ * in order, that collapsing lanes skip only intermediate values and that the simulated actuator stays bounded.
+ */
+public class ActuatorPipelineTest {
+
+    private static final int WORKERS = 4;
+    private static final int SERVICES = 8;
+    private static final int VALUES = 500;
+    private static final long TIMEOUT = 10000;
+
+    private ActuatorPipeline pipeline;
+    private List<NetService> services;
+
+    @Before
+    public void setUp() {
+        Log.setLevel(Log.Level.WARN);
+        this.pipeline = new ActuatorPipeline(WORKERS);
+
+        List<NetService> list = new ArrayList<>();
+        for (int i = 0; i < SERVICES; i++) {
+            list.add(new NetService(NetService.ServiceType.TEXTFIELD));
+        }
+        this.services = new ServiceRegistry(list).getServices();
+    }
+
+    @After
+    public void tearDown() {
+        this.pipeline.close(TIMEOUT);
+    }
+
+    @Test
+    public void handlesValuesOfEveryServiceInOrder() throws InterruptedException {
+        SimulatedActuator actuator = new SimulatedActuator(0, VALUES);
+        this.pipeline.setActuator(NetService.ServiceType.TEXTFIELD, actuator, false);
+
+        // interleave the services, so workers pick up lanes of several services at once
+        for (int v = 0; v < VALUES; v++) {
+            for (NetService service: this.services) {
+                this.pipeline.submit(service, "value" + v);
+            }
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int v = 0; v < VALUES; v++) {
+            expected.add("value" + v);
+        }
+        for (NetService service: this.services) {
+            awaitLast(actuator, service, "value" + (VALUES - 1));
+            assertEquals(service.getKey(), expected, actuator.getHistory(service.getKey()));
+        }
+    }
+
+    @Test
+    public void collapsesToLatestValueWhenFallingBehind() throws InterruptedException {
+        SimulatedActuator actuator = new SimulatedActuator(5, VALUES);
+        this.pipeline.setActuator(NetService.ServiceType.TEXTFIELD, actuator, true);
+        NetService service = this.services.get(0);
+
+        int values = 50;
+        for (int v = 0; v < values; v++) {
+            this.pipeline.submit(service, String.valueOf(v));
+        }
+        awaitLast(actuator, service, String.valueOf(values - 1));
+
+        // the actuator took 5 ms per value while all of them arrived at once
+        List<String> handled = actuator.getHistory(service.getKey());
+        assertTrue("expected intermediate values to be skipped but handled " + handled, handled.size() < values);
+        int previous = -1;
+        for (String value: handled) {
+            int current = Integer.parseInt(value);
+            assertTrue("handled " + current + " after " + previous, current > previous);
+            previous = current;
+        }
+    }
+
+    @Test
+    public void keepsOnlyTheLastValuesOfAService() throws InterruptedException {
+        SimulatedActuator actuator = new SimulatedActuator(0);
+        this.pipeline.setActuator(NetService.ServiceType.TEXTFIELD, actuator, false);
+        NetService service = this.services.get(0);
+
+        for (int v = 0; v < VALUES; v++) {
+            this.pipeline.submit(service, "value" + v);
+        }
+        awaitLast(actuator, service, "value" + (VALUES - 1));
+
+        assertEquals(List.of("value" + (VALUES - 1)), actuator.getHistory(service.getKey()));
+    }
+
+    /**
+     * Wait until an actuator has handled a value of a service.
+     * @param actuator  The {@link SimulatedActuator}.
+     * @param service   The {@link NetService}.
+     * @param value     The value.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static void awaitLast(SimulatedActuator actuator, NetService service, String value) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (value.equals(actuator.getLast(service.getKey()))) {
+                return;
+            }
+            Thread.sleep(5);
+        }
+        fail(service.getKey() + " did not reach " + value + ", last handled " + actuator.getLast(service.getKey()));
+    }
+}
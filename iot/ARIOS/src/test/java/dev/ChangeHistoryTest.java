@@ -0,0 +1,132 @@
+package dev;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records changes in a {@link ChangeHistory} and checks that text values are kept whole and that the file does not
+ * grow when the services behind its ids change type or a ring's id is corrupted.
+ */
+public class ChangeHistoryTest {
+
+    private static final int CAPACITY = 4;
+    private static final String CLIENT = "127.0.0.1";
+
+    private Path directory;
+    private String serviceFile;
+    private ChangeHistory history;
+
+    @Before
+    public void setUp() throws IOException {
+        Log.setLevel(Log.Level.WARN);
+        this.directory = Files.createTempDirectory("arios-history");
+        this.serviceFile = this.directory.resolve("history.service").toString();
+        this.history = new ChangeHistory(this.serviceFile, CAPACITY);
+        this.history.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.history.close();
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    @Test
+    public void keepsLongestTextWhole() {
+        NetService service = register(NetService.ServiceType.TEXTFIELD);
+
+        // 3 bytes of UTF-8 per char, and 4 bytes per surrogate pair
+        String threeBytes = "€".repeat(NetService.MAX_TEXT_LENGTH);
+        String fourBytes = "😀".repeat(NetService.MAX_TEXT_LENGTH / 2);
+        this.history.record(service, threeBytes, CLIENT, 1);
+        this.history.record(service, fourBytes, CLIENT, 2);
+
+        List<ChangeHistory.Entry> entries = this.history.query(service, 0, Long.MAX_VALUE);
+        assertEquals(2, entries.size());
+        assertEquals(threeBytes, entries.get(0).getValue());
+        assertEquals(fourBytes, entries.get(1).getValue());
+    }
+
+    @Test
+    public void reusesRingsWhenServicesChangeType() throws IOException {
+        Path file = this.directory.resolve("history.service.history");
+        long size = -1;
+        for (int run = 0; run < 6; run++) {
+            // every run has a service of another type under id 0, like after a restart with another configuration
+            NetService.ServiceType type = run % 2 == 0 ? NetService.ServiceType.TOGGLE : NetService.ServiceType.TEXTFIELD;
+            NetService service = register(type);
+            String value = type == NetService.ServiceType.TOGGLE ? "true" : "run" + run;
+            this.history.record(service, value, CLIENT, run);
+
+            List<ChangeHistory.Entry> entries = this.history.query(service, 0, Long.MAX_VALUE);
+            assertEquals("changes of another type must not be reported", 1, entries.size());
+            assertEquals(value, entries.get(0).getValue());
+
+            this.history.close();
+            if (run == 1) {
+                size = Files.size(file);
+            } else if (run > 1) {
+                assertEquals("history grew in run " + run, size, Files.size(file));
+            }
+            this.history = new ChangeHistory(this.serviceFile, CAPACITY);
+            this.history.open();
+        }
+        assertTrue(size > 0);
+    }
+
+    @Test
+    public void resetsRingsWithInvalidIds() throws IOException {
+        Path file = this.directory.resolve("history.service.history");
+        NetService service = register(NetService.ServiceType.TOGGLE);
+        this.history.record(service, "true", CLIENT, 1);
+        this.history.close();
+        long size = Files.size(file);
+
+        for (int id: new int[] { Integer.MAX_VALUE, ServiceRegistry.MAX_SERVICES, -2 }) {
+            // the id of the only ring, right behind the file header
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(4).putInt(0, id), 16);
+            }
+
+            this.history = new ChangeHistory(this.serviceFile, CAPACITY);
+            this.history.open();
+            assertEquals("id " + id, 0, this.history.query(service, 0, Long.MAX_VALUE).size());
+
+            // the reset ring is reused instead of appending another one
+            this.history.record(service, "false", CLIENT, 2);
+            assertEquals(1, this.history.query(service, 0, Long.MAX_VALUE).size());
+            this.history.close();
+            assertEquals(size, Files.size(file));
+        }
+        this.history = new ChangeHistory(this.serviceFile, CAPACITY);
+        this.history.open();
+    }
+
+    /**
+     * Register a single service, so it gets id 0.
+     * @param type      The {@link NetService.ServiceType}.
+     * @return  The registered {@link NetService}.
+     */
+    private static NetService register(NetService.ServiceType type) {
+        List<NetService> services = new ArrayList<>();
+        services.add(new NetService(type));
+        return new ServiceRegistry(services).get(0);
+    }
+}
@@ -0,0 +1,378 @@
+package dev;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Lets several clients of a {@link ServiceProvider.ServerMode#THREADED} provider write the same services at once and
+ * checks that conditional changes lose no updates and that the service file ends with the latest value.
+ */
+public class ConditionalUpdateTest {
+
+    private static final int CLIENTS = 8;
+    private static final int CHANGES = 100;
+    private static final long TIMEOUT = 10000;
+
+    private Path directory;
+    private Path file;
+    private ServiceProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        this.directory = Files.createTempDirectory("arios-conditional");
+        this.file = this.directory.resolve("conditional.service");
+
+        List<NetService> services = new ArrayList<>();
+        services.add(new NetService(NetService.ServiceType.TEXTFIELD, "0"));
+        services.add(new NetService(NetService.ServiceType.TEXTFIELD, "0"));
+        services.add(new NetService(NetService.ServiceType.TOGGLE));
+        this.provider = new ServiceProvider(services, this.file.toString(), 0, ServiceProvider.ServerMode.THREADED);
+        this.provider.setFlushPolicy(20, 64);
+        this.provider.setDaemon(true);
+        this.provider.start();
+        assertTrue("provider did not start listening", this.provider.awaitListening(TIMEOUT));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.provider.toggleRunningRecord(false);
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    @Test
+    public void conditionalIncrementsLoseNoUpdates() throws Exception {
+        runClients(client -> {
+            long version = 0;
+            int value = 0;
+            for (int done = 0; done < CHANGES; ) {
+                String reply = client.send(conditional("TEXTFIELD", String.valueOf(value + 1), version));
+                if (reply.startsWith("OK=TEXTFIELD ")) {
+                    version = Long.parseLong(reply.substring(reply.indexOf("version=") + 8));
+                    value++;
+                    done++;
+                } else if (reply.startsWith("CONFLICT=TEXTFIELD ")) {
+                    // start over from the value another client has set
+                    version = Long.parseLong(reply.substring(reply.indexOf("version=") + 8, reply.indexOf(" value=")));
+                    value = Integer.parseInt(reply.substring(reply.indexOf("value=") + 6));
+                } else {
+                    fail("unexpected reply " + reply);
+                }
+            }
+        });
+
+        String total = String.valueOf(CLIENTS * CHANGES);
+        try (Client client = new Client(this.provider.getPort())) {
+            assertEquals("TEXTFIELD=" + total, client.send("GET TEXTFIELD"));
+        }
+        awaitRecord("textfield=" + total);
+    }
+
+    @Test
+    public void conditionalBatchesChangeAllOrNothing() throws Exception {
+        String[] keys = {"TEXTFIELD", "TEXTFIELD.1"};
+        runClients(client -> {
+            long[] versions = new long[keys.length];
+            int[] values = new int[keys.length];
+            for (int done = 0; done < CHANGES; ) {
+                client.write("BEGIN");
+                for (int k = 0; k < keys.length; k++) {
+                    client.write(conditional(keys[k], String.valueOf(values[k] + 1), versions[k]));
+                }
+                String reply = client.send("COMMIT");
+                if (reply.startsWith("CONFLICT=")) {
+                    // learn the current value of the conflicting counter, the other one may conflict next time
+                    int k = reply.startsWith("CONFLICT=" + keys[1] + " ") ? 1 : 0;
+                    versions[k] = Long.parseLong(reply.substring(reply.indexOf("version=") + 8, reply.indexOf(" value=")));
+                    values[k] = Integer.parseInt(reply.substring(reply.indexOf("value=") + 6));
+                    continue;
+                }
+                for (int k = 0; k < keys.length; k++) {
+                    assertTrue("unexpected reply " + reply, reply.startsWith("OK=" + keys[k] + " "));
+                    versions[k] = Long.parseLong(reply.substring(reply.indexOf("version=") + 8));
+                    values[k]++;
+                    reply = k + 1 < keys.length ? client.in.readLine() : null;
+                }
+                done++;
+            }
+        });
+
+        // a batch rejected half-way has been undone, so both counters were incremented by the same batches
+        String total = String.valueOf(CLIENTS * CHANGES);
+        try (Client client = new Client(this.provider.getPort())) {
+            assertEquals(keys[0] + "=" + total, client.send("GET " + keys[0]));
+            assertEquals(keys[1] + "=" + total, client.send("GET " + keys[1]));
+        }
+    }
+
+    @Test
+    public void serviceFileEndsWithLatestValue() throws Exception {
+        runClients(client -> {
+            String name = Thread.currentThread().getName();
+            for (int i = 0; i < CHANGES; i++) {
+                client.write("TEXTFIELD=" + name + "change" + i);
+            }
+            // answered once every change before it has been applied
+            client.send("GET TEXTFIELD");
+        });
+
+        String latest;
+        try (Client client = new Client(this.provider.getPort())) {
+            latest = client.send("GET TEXTFIELD");
+        }
+        assertEquals("TEXTFIELD=" + this.provider.getRegistry().get(0).getValue(), latest);
+        awaitRecord("textfield=" + latest.substring("TEXTFIELD=".length()));
+    }
+
+    @Test
+    public void conflictingBatchChangesNothing() throws Exception {
+        try (Client client = new Client(this.provider.getPort())) {
+            client.write("BEGIN");
+            client.write("TEXTFIELD=batch");
+            client.write(conditional("TOGGLE", "true", 1));
+            String reply = client.send("COMMIT");
+            assertEquals("CONFLICT=TOGGLE version=0 value=false", reply);
+
+            assertEquals("TEXTFIELD=0", client.send("GET TEXTFIELD"));
+            assertEquals("TOGGLE=false", client.send("GET TOGGLE"));
+        }
+    }
+
+    @Test
+    public void rejectedBatchesAreNeverHandedOn() throws Exception {
+        Set<String> committed = ConcurrentHashMap.newKeySet();
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        AtomicInteger clients = new AtomicInteger();
+
+        // pushed values and the service file must only ever hold values of accepted changes
+        Client subscriber = new Client(this.provider.getPort());
+        subscriber.write("SUBSCRIBE");
+        Thread watcher = new Thread(() -> {
+            try {
+                String line;
+                while ((line = subscriber.in.readLine()) != null) {
+                    if (line.startsWith("TEXTFIELD=batch")) {
+                        seen.add(line.substring("TEXTFIELD=".length()));
+                    }
+                    String content = Files.isRegularFile(this.file) ? new String(Files.readAllBytes(this.file), StandardCharsets.UTF_8) : "";
+                    int at = content.indexOf("<txt-record>textfield=batch");
+                    if (at >= 0) {
+                        seen.add(content.substring(at + "<txt-record>textfield=".length(), content.indexOf('<', at + 1)));
+                    }
+                }
+            } catch (IOException e) {
+                // closed once done
+            }
+        }, "subscriber");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        runClients(client -> {
+            int index = clients.getAndIncrement();
+            long version = 0;
+            for (int i = 0; i < CHANGES * 5; i++) {
+                switch (index % 4) {
+                    case 0:
+                    case 1:
+                        // the text is set before the condition on the toggle, which the togglers break now and then
+                        String value = "batch" + index + "-" + i;
+                        client.write("BEGIN");
+                        client.write("TEXTFIELD=" + value);
+                        client.write(conditional("TOGGLE", i % 2 == 0 ? "true" : "false", version));
+                        String reply = client.send("COMMIT");
+                        if (reply.startsWith("OK=TOGGLE ")) {
+                            committed.add(value);
+                            version = Long.parseLong(reply.substring(reply.indexOf("version=") + 8));
+                        } else {
+                            assertTrue("unexpected reply " + reply, reply.startsWith("CONFLICT=TOGGLE "));
+                            version = Long.parseLong(reply.substring(reply.indexOf("version=") + 8, reply.indexOf(" value=")));
+                        }
+                        break;
+                    case 2:
+                        client.write("TOGGLE=" + (i % 2 == 0));
+                        break;
+                    default:
+                        client.write("TEXTFIELD=accepted" + i);
+                        break;
+                }
+            }
+            client.send("GET TEXTFIELD");
+        });
+        subscriber.close();
+        watcher.join(TIMEOUT);
+
+        seen.removeAll(committed);
+        assertEquals("values of rejected batches were handed on", Set.of(), seen);
+    }
+
+    @Test
+    public void rejectsBinaryChangeOfAnotherServiceThanItsCondition() throws Exception {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.provider.getPort())) {
+            socket.setSoTimeout((int) TIMEOUT);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(new byte[] { BinaryFrameDecoder.MAGIC, BinaryFrameDecoder.VERSION });
+            assertEquals(BinaryFrameDecoder.MAGIC, in.readByte());
+            assertEquals(BinaryFrameDecoder.VERSION, in.readByte());
+
+            // the condition is set for the text, the change is for the toggle
+            out.writeByte(BinaryFrameDecoder.OP_IF_VERSION);
+            out.writeShort(0);
+            out.writeLong(0);
+            out.writeByte(BinaryFrameDecoder.OP_SET_TRUE);
+            out.writeShort(2);
+            assertEquals(BinaryFrameDecoder.OP_CONFLICT, in.readUnsignedByte());
+            assertEquals(2, in.readUnsignedShort());
+            assertEquals(0, in.readLong());
+            assertEquals(BinaryFrameDecoder.OP_SET_FALSE, in.readUnsignedByte());
+            assertEquals(2, in.readUnsignedShort());
+
+            // a condition for the changed service still applies
+            out.writeByte(BinaryFrameDecoder.OP_IF_VERSION);
+            out.writeShort(2);
+            out.writeLong(0);
+            out.writeByte(BinaryFrameDecoder.OP_SET_TRUE);
+            out.writeShort(2);
+            assertEquals(BinaryFrameDecoder.OP_IF_VERSION, in.readUnsignedByte());
+            assertEquals(2, in.readUnsignedShort());
+            assertEquals(1, in.readLong());
+        }
+    }
+
+    @Test
+    public void rejectsValuesEndingLikeACondition() throws Exception {
+        try (Client client = new Client(this.provider.getPort())) {
+            // the last suffix is the condition, the value left would be taken for a conditional change when read back
+            client.write(conditional("TEXTFIELD", "text" + DataValidator.CONDITION + "1", 0));
+            assertEquals("TEXTFIELD=0", client.send("GET TEXTFIELD"));
+
+            client.write("TEXTFIELD=text IF version=x");
+            assertEquals("TEXTFIELD=text IF version=x", client.send("GET TEXTFIELD"));
+        }
+    }
+
+    /**
+     * Returns a text frame changing a service only if it is still at a version.
+     * @param key       The key of the service.
+     * @param value     The new value.
+     * @param version   The expected version.
+     * @return  The frame.
+     */
+    private static String conditional(String key, String value, long version) {
+        return key + "=" + value + DataValidator.CONDITION + version;
+    }
+
+    /**
+     * Task of a client.
+     */
+    private interface Task {
+        void run(Client client) throws Exception;
+    }
+
+    /**
+     * Run a task on every client at the same time and wait for all of them.
+     * @param task      The {@link Task}.
+     * @throws Exception    If a client fails.
+     */
+    private void runClients(Task task) throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < CLIENTS; c++) {
+            Thread thread = new Thread(() -> {
+                try (Client client = new Client(this.provider.getPort())) {
+                    task.run(client);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "client" + c);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread: threads) {
+            thread.join(TIMEOUT);
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("client failed", failure.get());
+        }
+        for (Thread thread: threads) {
+            assertFalse(thread.getName() + " did not finish", thread.isAlive());
+        }
+    }
+
+    /**
+     * Wait until the service file holds a record.
+     * @param record    The record, e.g. textfield=1.
+     * @throws Exception    If the file cannot be read or waiting is interrupted.
+     */
+    private void awaitRecord(String record) throws Exception {
+        String element = "<txt-record>" + record + "</txt-record>";
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.isRegularFile(this.file) && new String(Files.readAllBytes(this.file), StandardCharsets.UTF_8).contains(element)) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        fail("service file does not contain " + record);
+    }
+
+    /**
+     * Text client sending frames and reading replies line by line.
+     */
+    private static class Client implements AutoCloseable {
+        private Socket socket;
+        private OutputStream out;
+        private BufferedReader in;
+
+        Client(int port) throws IOException {
+            this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            this.socket.setSoTimeout((int) TIMEOUT);
+            // frames are written one by one, do not wait for the replies of earlier ones
+            this.socket.setTcpNoDelay(true);
+            this.out = this.socket.getOutputStream();
+            this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        void write(String frame) throws IOException {
+            this.out.write((frame + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        String send(String frame) throws IOException {
+            write(frame);
+            return this.in.readLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.socket.close();
+        }
+    }
+}
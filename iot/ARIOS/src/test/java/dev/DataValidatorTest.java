@@ -0,0 +1,45 @@
+package dev;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link DataValidator} only accepts text values which can be sent to text clients and written to the
+ * service file as they are.
+ */
+public class DataValidatorTest {
+
+    private static final String CLIENT = "127.0.0.1";
+
+    private DataValidator validator;
+
+    @Before
+    public void setUp() {
+        Log.setLevel(Log.Level.OFF);
+        this.validator = new DataValidator();
+    }
+
+    @Test
+    public void acceptsPrintableText() {
+        assertTrue(this.validator.validData(NetService.ServiceType.TEXTFIELD, "The quick brown fox", CLIENT));
+        assertTrue(this.validator.validData(NetService.ServiceType.TEXTFIELD, "Grüße, 5 € 😀", CLIENT));
+        assertTrue(this.validator.validData("TEXTFIELD", "a > b", CLIENT));
+    }
+
+    @Test
+    public void rejectsControlCharacters() {
+        // as received in binary frames, which carry any byte
+        String[] values = { "text\nTOGGLE=true", "text\r", "te\0xt", "tab\there", "\u001B[2J", "del\u007F" };
+        for (String value: values) {
+            assertFalse(value, this.validator.validData(NetService.ServiceType.TEXTFIELD, value, CLIENT));
+        }
+    }
+
+    @Test
+    public void rejectsInjectedRecords() {
+        assertFalse(this.validator.validData("TEXTFIELD", "<txt-record>running=false</txt-record>", CLIENT));
+    }
+}
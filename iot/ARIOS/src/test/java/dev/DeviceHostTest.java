@@ -0,0 +1,131 @@
+package dev;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Hosts dozens of devices in one {@link DeviceHost} and checks that every device serves its own clients and service
+ * file while the number of threads does not depend on the number of devices.
+ */
+public class DeviceHostTest {
+
+    private static final int DEVICES = 48;
+    private static final int WORKERS = 2;
+    private static final long TICK = 100;
+    // the loop, the workers and threads the JVM starts lazily, e.g. for the first socket
+    private static final int HOST_THREADS = 1 + WORKERS + 8;
+    private static final long TIMEOUT = 10000;
+
+    private Path directory;
+    private DeviceHost host;
+    private Thread loop;
+
+    @Before
+    public void setUp() throws IOException {
+        Log.setLevel(Log.Level.WARN);
+        this.directory = Files.createTempDirectory("arios-host");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (this.host != null) {
+            this.host.close();
+            this.loop.join(TIMEOUT);
+        }
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    @Test
+    public void servesEveryDeviceFromSharedThreads() throws Exception {
+        long threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        this.host = new DeviceHost(WORKERS, TICK);
+        List<Path> files = new ArrayList<>();
+        for (int d = 0; d < DEVICES; d++) {
+            Path file = this.directory.resolve("device" + d + ".service");
+            List<NetService> services = new ArrayList<>();
+            services.add(new NetService(NetService.ServiceType.TOGGLE));
+            services.add(new NetService(NetService.ServiceType.TEXTFIELD));
+            this.host.add(file.toString(), 0, services);
+            files.add(file);
+        }
+
+        this.loop = new Thread(this.host::run, "Host");
+        this.loop.setDaemon(true);
+        this.loop.start();
+        for (ServiceProvider provider: this.host.getProviders()) {
+            assertTrue("device did not start listening", provider.awaitListening(TIMEOUT));
+        }
+
+        // every device gets its own value through its own port
+        for (int d = 0; d < DEVICES; d++) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.host.getProviders().get(d).getPort())) {
+                OutputStream out = socket.getOutputStream();
+                out.write(("TOGGLE=true\nTEXTFIELD=device" + d + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        }
+
+        for (int d = 0; d < DEVICES; d++) {
+            awaitRecord(files.get(d), "toggle=true");
+            awaitRecord(files.get(d), "textfield=device" + d);
+        }
+
+        // the threads of the providers end once their listeners are registered with the loop
+        long threads = awaitThreads(threadsBefore + HOST_THREADS) - threadsBefore;
+        assertTrue("expected at most " + HOST_THREADS + " threads for " + DEVICES + " devices but found " + threads,
+                threads <= HOST_THREADS);
+    }
+
+    /**
+     * Wait until a service file holds a record.
+     * @param file      The service file.
+     * @param record    The record, e.g. toggle=true.
+     * @throws Exception    If the file cannot be read or waiting is interrupted.
+     */
+    private static void awaitRecord(Path file, String record) throws Exception {
+        String element = "<txt-record>" + record + "</txt-record>";
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.isRegularFile(file) && new String(Files.readAllBytes(file), StandardCharsets.UTF_8).contains(element)) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        fail(file.getFileName() + " does not contain " + record);
+    }
+
+    /**
+     * Wait until at most the given number of threads are alive.
+     * @param bound     The number of threads.
+     * @return  The number of live threads when done waiting.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static long awaitThreads(long bound) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        long threads;
+        while ((threads = ManagementFactory.getThreadMXBean().getThreadCount()) > bound && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        return threads;
+    }
+}
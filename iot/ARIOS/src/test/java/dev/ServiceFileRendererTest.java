@@ -0,0 +1,49 @@
+package dev;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Renders service files with values holding XML special and control characters and checks that every value stays on
+ * its own line and reads back as it was.
+ */
+public class ServiceFileRendererTest {
+
+    @Test
+    public void escapesControlCharactersAsReferences() {
+        String value = "line\nbreak\r\ttab\u0001\u007F";
+        String escaped = ServiceFileRenderer.escape(new StringBuilder(), value).toString();
+
+        assertEquals("line&#xa;break&#xd;&#x9;tab&#x1;&#x7f;", escaped);
+        assertEquals(value, ServiceFileRenderer.unescape(escaped));
+    }
+
+    @Test
+    public void keepsEveryRecordOnItsOwnLine() {
+        Map<String, String> records = new LinkedHashMap<>();
+        records.put("textfield", "<txt-record>a & 'b'\n</txt-record>");
+        records.put("toggle", "true");
+
+        StringBuilder out = new StringBuilder();
+        ServiceFileRenderer.render(out, "ARIOS", false, "_http._tcp", 8080, records);
+
+        int count = 0;
+        for (String line: out.toString().split("\n")) {
+            if (line.contains("<txt-record>")) {
+                assertTrue(line, line.trim().startsWith("<txt-record>") && line.endsWith("</txt-record>"));
+                count++;
+            }
+        }
+        assertEquals(2, count);
+        assertFalse(out.toString().contains("\r"));
+
+        String line = out.substring(out.indexOf("<txt-record>textfield="), out.indexOf("</txt-record>"));
+        assertEquals("textfield=" + records.get("textfield"), ServiceFileRenderer.unescape(line.substring("<txt-record>".length())));
+    }
+}
@@ -0,0 +1,94 @@
+package dev;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Journals values in one run and recovers them in the next one, where the services may have other ids.
+ */
+public class StateJournalTest {
+
+    private Path directory;
+    private String serviceFile;
+
+    @Before
+    public void setUp() throws IOException {
+        Log.setLevel(Log.Level.WARN);
+        this.directory = Files.createTempDirectory("arios-journal");
+        this.serviceFile = this.directory.resolve("journal.service").toString();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    @Test
+    public void recoversValuesByKeyAfterLayoutChange() throws IOException {
+        List<NetService> services = register(NetService.ServiceType.TOGGLE, NetService.ServiceType.TEXTFIELD);
+        StateJournal journal = new StateJournal(this.serviceFile, 1000);
+        journal.recover();
+        journal.append(services.get(0), "true");
+        journal.append(services.get(1), "hello");
+        journal.close();
+
+        // a checkbox in front moves every id by one
+        services = register(NetService.ServiceType.CHECKBOX, NetService.ServiceType.TOGGLE, NetService.ServiceType.TEXTFIELD);
+        journal = new StateJournal(this.serviceFile, 1000);
+        Map<String, StateJournal.Entry> state = journal.recover();
+        journal.close();
+
+        assertNull(state.get(services.get(0).getKey()));
+        assertEquals("true", state.get(services.get(1).getKey()).getValue());
+        assertEquals(NetService.ServiceType.TOGGLE, state.get(services.get(1).getKey()).getType());
+        assertEquals("hello", state.get(services.get(2).getKey()).getValue());
+    }
+
+    @Test
+    public void recoversBatchFromJournalWithoutSnapshot() throws IOException, InterruptedException {
+        List<NetService> services = register(NetService.ServiceType.TOGGLE, NetService.ServiceType.TOGGLE);
+        StateJournal journal = new StateJournal(this.serviceFile, 1000);
+        journal.recover();
+        journal.start();
+        journal.append(services.toArray(new NetService[0]), new String[] { "true", "false" }, 2);
+        journal.sync();
+
+        // a second journal reads what the first committed, the first one has not written a snapshot yet
+        StateJournal reader = new StateJournal(this.serviceFile, 1000);
+        Map<String, StateJournal.Entry> state = reader.recover();
+        reader.close();
+        journal.close();
+
+        assertEquals(2, state.size());
+        assertEquals("true", state.get("TOGGLE").getValue());
+        assertEquals("false", state.get("TOGGLE" + NetService.INSTANCE_SEPARATOR + 1).getValue());
+    }
+
+    /**
+     * Register new {@link NetService}s of the given types in a registry of their own.
+     * @param types     The types of the services in id order.
+     * @return  The registered {@link NetService}s ordered by id.
+     */
+    private static List<NetService> register(NetService.ServiceType... types) {
+        List<NetService> services = new ArrayList<>();
+        for (NetService.ServiceType type: types) {
+            services.add(new NetService(type));
+        }
+        return new ServiceRegistry(services).getServices();
+    }
+}
@@ -0,0 +1,171 @@
+package dev;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Serves many simultaneous clients in {@link ServiceProvider.ServerMode#THREADED} mode and checks that every update
+ * reaches the service file while threads and heap stay bounded.
+ */
+public class ThreadedModeTest {
+
+    private static final int CLIENTS = 200;
+    private static final int UPDATES = 5;
+    // threads of the provider itself: acceptor, service file, journal, timers
+    private static final int OWN_THREADS = 16;
+    private static final long HEAP_PER_CLIENT = 64 * 1024;
+    private static final long FLUSH_INTERVAL = 20;
+    private static final int FLUSH_THRESHOLD = 64;
+    private static final long TIMEOUT = 10000;
+
+    private Path directory;
+    private Path file;
+    private ServiceProvider provider;
+
+    @Before
+    public void setUp() throws IOException {
+        Log.setLevel(Log.Level.WARN);
+        this.directory = Files.createTempDirectory("arios-threaded");
+        this.file = this.directory.resolve("threaded.service");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (this.provider != null) {
+            this.provider.toggleRunningRecord(false);
+        }
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    @Test
+    public void servesSimultaneousClientsWithBoundedThreadsAndHeap() throws Exception {
+        List<NetService> services = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            services.add(new NetService(NetService.ServiceType.TEXTFIELD));
+        }
+
+        long threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapBefore = usedHeap();
+
+        this.provider = new ServiceProvider(services, this.file.toString(), 0, ServiceProvider.ServerMode.THREADED);
+        this.provider.setFlushPolicy(FLUSH_INTERVAL, FLUSH_THRESHOLD);
+        this.provider.setDaemon(true);
+        this.provider.start();
+        assertTrue("provider did not start listening", this.provider.awaitListening(TIMEOUT));
+
+        // all clients are connected at the same time and stay connected until threads and heap are measured
+        List<Socket> sockets = new ArrayList<>();
+        CountDownLatch sent = new CountDownLatch(CLIENTS);
+        List<Thread> senders = new ArrayList<>();
+        try {
+            for (int c = 0; c < CLIENTS; c++) {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.provider.getPort());
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+            }
+
+            for (int c = 0; c < CLIENTS; c++) {
+                Socket socket = sockets.get(c);
+                String key = services.get(c).getKey();
+                int client = c;
+                Thread sender = new Thread(() -> {
+                    try {
+                        OutputStream out = socket.getOutputStream();
+                        for (int u = 0; u < UPDATES; u++) {
+                            out.write((key + "=client" + client + "update" + u + "\n").getBytes(StandardCharsets.UTF_8));
+                        }
+                        out.flush();
+                    } catch (IOException e) {
+                        // reported as a missing value below
+                    }
+                    sent.countDown();
+                });
+                sender.start();
+                senders.add(sender);
+            }
+            assertTrue("clients did not finish sending", sent.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            for (Thread sender: senders) {
+                sender.join();
+            }
+
+            for (NetService service: services) {
+                String expected = service.getKey().toLowerCase() + "=client" + service.getInstance() + "update" + (UPDATES - 1);
+                awaitRecord(expected);
+            }
+
+            // every connection is still open here
+            long threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+            long threadBound = (hasVirtualThreads() ? Runtime.getRuntime().availableProcessors() : CLIENTS) + OWN_THREADS;
+            assertTrue("expected at most " + threadBound + " threads but found " + threads, threads <= threadBound);
+
+            long heap = usedHeap() - heapBefore;
+            long heapBound = CLIENTS * HEAP_PER_CLIENT;
+            assertTrue("expected at most " + heapBound + " bytes of heap but found " + heap, heap <= heapBound);
+        } finally {
+            for (Socket socket: sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Wait until the service file holds a record.
+     * @param record    The record, e.g. textfield.1=value.
+     * @throws Exception    If the file cannot be read or waiting is interrupted.
+     */
+    private void awaitRecord(String record) throws Exception {
+        String element = "<txt-record>" + record + "</txt-record>";
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.isRegularFile(this.file) && new String(Files.readAllBytes(this.file), StandardCharsets.UTF_8).contains(element)) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        fail("service file does not contain " + record);
+    }
+
+    /**
+     * Returns the heap in use after a garbage collection.
+     * @return  The used heap in bytes.
+     */
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Returns whether the running JVM serves clients on virtual threads, which share a few carrier threads.
+     * @return  Return true if virtual threads are available. Otherwise return false.
+     */
+    private static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}